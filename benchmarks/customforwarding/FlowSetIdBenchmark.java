@@ -0,0 +1,60 @@
+package net.floodlightcontroller.customforwarding;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.projectfloodlight.openflow.types.U64;
+
+/**
+ * The allocation of the flowset IDs by the forwarding flows, from 1 to 32
+ * threads, as the OpenFlow worker threads do on a burst of new flows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowSetIdBenchmark {
+    private Forwarding.FlowSetIdRegistry registry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = Forwarding.FlowSetIdRegistry.getInstance();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public U64 generateFlowSetId1() {
+        return registry.generateFlowSetId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public U64 generateFlowSetId4() {
+        return registry.generateFlowSetId();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public U64 generateFlowSetId16() {
+        return registry.generateFlowSetId();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public U64 generateFlowSetId32() {
+        return registry.generateFlowSetId();
+    }
+}
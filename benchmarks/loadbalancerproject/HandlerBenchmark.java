@@ -0,0 +1,282 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
+import org.projectfloodlight.openflow.protocol.OFPacketInReason;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv6Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFBufferId;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TransportPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.IOFSwitchService;
+import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.debugcounter.MockDebugCounterService;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.Path;
+import net.floodlightcontroller.routing.PathId;
+
+/**
+ * A whole packet-in through the handlers, on a single switch with a client
+ * and the SERVERS servers of one anycast group attached to it. The switch,
+ * the device manager and the routing service are mocks, so the numbers
+ * only include the work of the load balancer and the building of the
+ * OpenFlow messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+	private static final int SERVERS = 4;
+	private static final DatapathId DPID = DatapathId.of(1);
+	private static final IPv4Address ANYCAST = IPv4Address.of("9.9.9.9");
+	private static final IPv4Address CLIENT = IPv4Address.of("10.0.1.1");
+	private static final MacAddress CLIENT_MAC = MacAddress.of("00:00:00:00:01:01");
+	private static final short PORT = 80;
+	// Source ports of the new flows
+	private static final int FLOWS = 1024;
+
+	private ScheduledThreadPoolExecutor executor;
+	private IOFSwitch sw;
+	private FloodlightContext cntx;
+	private Ethernet knownTcp;
+	private OFPacketIn knownTcpIn;
+	private Ethernet[] newTcp;
+	private OFPacketIn[] newTcpIn;
+	private Ethernet echo;
+	private OFPacketIn echoIn;
+	private Ethernet arp;
+	private OFPacketIn arpIn;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final OFFactory factory = OFFactories.getFactory(OFVersion.OF_13);
+		sw = createMock(IOFSwitch.class);
+		expect(sw.getId()).andReturn(DPID).anyTimes();
+		expect(sw.getOFFactory()).andReturn(factory).anyTimes();
+		expect(sw.getBuffers()).andReturn(0L).anyTimes();
+		expect(sw.write(anyObject(OFMessage.class))).andReturn(true).anyTimes();
+		expect(sw.write(EasyMock.<Iterable<OFMessage>>anyObject()))
+				.andReturn(Collections.<OFMessage>emptyList()).anyTimes();
+		replay(sw);
+
+		IOFSwitchService switchService = createMock(IOFSwitchService.class);
+		expect(switchService.getSwitch(DPID)).andReturn(sw).anyTimes();
+		replay(switchService);
+
+		// Every server on its own port of the switch, the client on port 1
+		final List<IDevice> devices = new ArrayList<>();
+		final IDevice client = device(CLIENT, CLIENT_MAC, 1);
+		devices.add(client);
+		List<ServerEntry> servers = new ArrayList<>();
+		for (int i = 0; i < SERVERS; i++) {
+			IPv4Address ip = IPv4Address.of(IPv4Address.of("10.0.0.1").getInt() + i);
+			devices.add(device(ip, MacAddress.of(0x0A0000000001L + i), i + 2));
+			servers.add(new ServerEntry(ip, PORT));
+		}
+		IDeviceService deviceService = createMock(IDeviceService.class);
+		expect(deviceService.queryDevices(anyObject(MacAddress.class), anyObject(VlanVid.class),
+				anyObject(IPv4Address.class), anyObject(IPv6Address.class),
+				anyObject(DatapathId.class), anyObject(OFPort.class)))
+				.andAnswer(new IAnswer<Iterator<? extends IDevice>>() {
+					@Override
+					public Iterator<? extends IDevice> answer() {
+						IPv4Address ip = (IPv4Address) EasyMock.getCurrentArguments()[2];
+						for (IDevice d : devices) {
+							if (d.getIPv4Addresses()[0].equals(ip)) {
+								return Collections.singletonList(d).iterator();
+							}
+						}
+						return Collections.<IDevice>emptyList().iterator();
+					}
+				}).anyTimes();
+		replay(deviceService);
+
+		// Client and servers share the switch, so the paths are empty
+		IRoutingService routingService = createMock(IRoutingService.class);
+		expect(routingService.getPath(DPID, DPID))
+				.andReturn(new Path(new PathId(DPID, DPID), Collections.<NodePortTuple>emptyList()))
+				.anyTimes();
+		replay(routingService);
+
+		executor = new ScheduledThreadPoolExecutor(1);
+		LoadBalancer.switchService = switchService;
+		LoadBalancer.deviceManagerService = deviceService;
+		LoadBalancer.routingEngineService = routingService;
+		LoadBalancer.servReg = new ServiceRegister();
+		LoadBalancer.servCounter = new ServiceCounter(Integer.MAX_VALUE, ServiceCounter.DEFAULT_TIME_INTERVAL);
+		LoadBalancer.routeCache = new RouteCache(routingService, deviceService);
+		LoadBalancer.serverRanking = new ServerRanking(LoadBalancer.servReg, LoadBalancer.routeCache);
+		LoadBalancer.connTable = new ConnectionTable();
+		LoadBalancer.templates = new FlowTemplates();
+		LoadBalancer.statsPoller = new FlowStatsPoller(executor, 1, 1.0);
+		LoadBalancer.metrics = new LoadBalancerMetrics(new MockDebugCounterService());
+		LoadBalancer.decisionLog = new DecisionLog(DecisionLog.DEFAULT_SIZE, DecisionLog.Level.INFO,
+				DecisionLog.DEFAULT_SAMPLING);
+		LoadBalancer.servReg.subscribe(ANYCAST, servers);
+
+		cntx = new FloodlightContext();
+		IDeviceService.fcStore.put(cntx, IDeviceService.CONTEXT_SRC_DEVICE, client);
+
+		knownTcp = tcp(40000);
+		knownTcpIn = packetIn(factory, knownTcp);
+		newTcp = new Ethernet[FLOWS];
+		newTcpIn = new OFPacketIn[FLOWS];
+		for (int i = 0; i < FLOWS; i++) {
+			newTcp[i] = tcp(1024 + i);
+			newTcpIn[i] = packetIn(factory, newTcp[i]);
+		}
+		echo = (Ethernet) new Ethernet()
+				.setSourceMACAddress(CLIENT_MAC)
+				.setDestinationMACAddress(LoadBalancer.anycastMacAddress[0])
+				.setEtherType(EthType.IPv4)
+				.setPayload(new IPv4()
+						.setSourceAddress(CLIENT)
+						.setDestinationAddress(ANYCAST)
+						.setTtl((byte) 64)
+						.setProtocol(IpProtocol.ICMP)
+						.setPayload(new ICMP()
+								.setIcmpType((byte) 8)
+								.setIcmpCode((byte) 0)
+								.setPayload(new Data(new byte[] {0, 1, 0, 1}))));
+		echoIn = packetIn(factory, echo);
+		arp = (Ethernet) new Ethernet()
+				.setSourceMACAddress(CLIENT_MAC)
+				.setDestinationMACAddress(MacAddress.BROADCAST)
+				.setEtherType(EthType.ARP)
+				.setPayload(new ARP()
+						.setHardwareType(ARP.HW_TYPE_ETHERNET)
+						.setProtocolType(ARP.PROTO_TYPE_IP)
+						.setHardwareAddressLength((byte) 6)
+						.setProtocolAddressLength((byte) 4)
+						.setOpCode(ARP.OP_REQUEST)
+						.setSenderHardwareAddress(CLIENT_MAC)
+						.setSenderProtocolAddress(CLIENT)
+						.setTargetHardwareAddress(MacAddress.NONE)
+						.setTargetProtocolAddress(ANYCAST));
+		arpIn = packetIn(factory, arp);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static IDevice device(IPv4Address ip, MacAddress mac, int port) {
+		IDevice device = createMock(IDevice.class);
+		expect(device.getIPv4Addresses()).andReturn(new IPv4Address[] {ip}).anyTimes();
+		expect(device.getMACAddress()).andReturn(mac).anyTimes();
+		expect(device.getAttachmentPoints())
+				.andReturn(new SwitchPort[] {new SwitchPort(DPID, OFPort.of(port))}).anyTimes();
+		replay(device);
+		return device;
+	}
+
+	private static Ethernet tcp(int srcPort) {
+		return (Ethernet) new Ethernet()
+				.setSourceMACAddress(CLIENT_MAC)
+				.setDestinationMACAddress(LoadBalancer.anycastMacAddress[0])
+				.setEtherType(EthType.IPv4)
+				.setPayload(new IPv4()
+						.setSourceAddress(CLIENT)
+						.setDestinationAddress(ANYCAST)
+						.setTtl((byte) 64)
+						.setProtocol(IpProtocol.TCP)
+						.setPayload(new TCP()
+								.setSourcePort(TransportPort.of(srcPort))
+								.setDestinationPort(TransportPort.of(PORT))
+								.setFlags((short) 0x02)
+								.setPayload(new Data(new byte[0]))));
+	}
+
+	private static OFPacketIn packetIn(OFFactory factory, Ethernet eth) {
+		return factory.buildPacketIn()
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setReason(OFPacketInReason.NO_MATCH)
+				.setMatch(factory.buildMatch().setExact(MatchField.IN_PORT, OFPort.of(1)).build())
+				.setData(eth.serialize())
+				.build();
+	}
+
+	/**
+	 * A packet of a connection which already has its server
+	 */
+	@Benchmark
+	public boolean tcpKnownFlow() {
+		return TcpUdpHandler.handle(knownTcp, sw, knownTcpIn, cntx);
+	}
+
+	/**
+	 * The first packet of a connection: the strategy selects the server. The
+	 * connection is then forgotten, so that the next packet with the same
+	 * source port is again the first one of its connection
+	 */
+	@Benchmark
+	public boolean tcpNewFlow() {
+		int i = next++ & (FLOWS - 1);
+		boolean handled = TcpUdpHandler.handle(newTcp[i], sw, newTcpIn[i], cntx);
+		LoadBalancer.connTable.remove(FlowKey.of((IPv4) newTcp[i].getPayload()));
+		return handled;
+	}
+
+	@Benchmark
+	public boolean icmpEcho() {
+		return IcmpHandler.handle(echo, sw, cntx, echoIn, null);
+	}
+
+	@Benchmark
+	public Ethernet arpRequest() {
+		ArpHandler.handle(arp, sw, arpIn, cntx);
+		return arp;
+	}
+}
@@ -0,0 +1,55 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+/**
+ * The sort of the routes toward the servers of a group by number of hops,
+ * as done by RouteHandler.findAllRoutes for every ranking
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteInfoSortBenchmark {
+	@Param({"4", "64", "1024"})
+	public int routes;
+
+	private List<RouteInfo> unsorted;
+	private final RouteInfo.RouteInfoComparator comparator = new RouteInfo.RouteInfoComparator();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		unsorted = new ArrayList<>();
+		for (int i = 0; i < routes; i++) {
+			// The sort only reads the number of hops
+			unsorted.add(new RouteInfo(random.nextInt(16), IPv4Address.of(i + 1), null));
+		}
+	}
+
+	@Benchmark
+	public List<RouteInfo> sort() {
+		List<RouteInfo> list = new ArrayList<>(unsorted);
+		list.sort(comparator);
+		return list;
+	}
+}
@@ -0,0 +1,102 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+/**
+ * The admission of the requests by the service counter, from 1 to 32
+ * threads. With one server every thread contends on the same bucket; with
+ * more servers the threads spread over the buckets as the servers of
+ * different groups do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceCounterBenchmark {
+	@Param({"1", "64"})
+	public int servers;
+
+	private ServiceCounter counter;
+	private IPv4Address[] addrs;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		// Never full, so that every call takes a token
+		counter = new ServiceCounter(Integer.MAX_VALUE, ServiceCounter.DEFAULT_TIME_INTERVAL);
+		addrs = new IPv4Address[servers];
+		for (int i = 0; i < servers; i++) {
+			addrs[i] = IPv4Address.of(IPv4Address.of("10.0.0.1").getInt() + i);
+			counter.newService(addrs[i]);
+		}
+	}
+
+	private IPv4Address next() {
+		return addrs[ThreadLocalRandom.current().nextInt(servers)];
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean newService1() {
+		return counter.newService(next());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean newService4() {
+		return counter.newService(next());
+	}
+
+	@Benchmark
+	@Threads(16)
+	public boolean newService16() {
+		return counter.newService(next());
+	}
+
+	@Benchmark
+	@Threads(32)
+	public boolean newService32() {
+		return counter.newService(next());
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean isAvailable1() {
+		return counter.isAvailable(next());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean isAvailable4() {
+		return counter.isAvailable(next());
+	}
+
+	@Benchmark
+	@Threads(16)
+	public boolean isAvailable16() {
+		return counter.isAvailable(next());
+	}
+
+	@Benchmark
+	@Threads(32)
+	public boolean isAvailable32() {
+		return counter.isAvailable(next());
+	}
+}
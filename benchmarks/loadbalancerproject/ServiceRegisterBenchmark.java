@@ -0,0 +1,90 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+/**
+ * The lookups and the subscriptions of the service register, with 10, 1k
+ * and 100k anycast groups of SERVERS servers each.
+ *
+ * The benchmarks are compiled with the controller, JMH (jmh-core and
+ * jmh-generator-annprocess) and EasyMock on the classpath, and run with
+ * java -cp ... org.openjdk.jmh.Main [regexp]: nothing is downloaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceRegisterBenchmark {
+	private static final int SERVERS = 4;
+	private static final short PORT = 80;
+	// The anycast addresses start at 9.0.0.0, the servers at 10.0.0.0
+	private static final int ANYCAST_BASE = IPv4Address.of("9.0.0.0").getInt();
+	private static final int SERVER_BASE = IPv4Address.of("10.0.0.0").getInt();
+
+	@Param({"10", "1000", "100000"})
+	public int groups;
+
+	private ServiceRegister register;
+	private IPv4Address[] anycast;
+	private IPv4Address[] servers;
+	private List<ServerEntry> extra;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		register = new ServiceRegister();
+		anycast = new IPv4Address[groups];
+		servers = new IPv4Address[groups * SERVERS];
+		for (int i = 0; i < groups; i++) {
+			anycast[i] = IPv4Address.of(ANYCAST_BASE + i);
+			List<ServerEntry> members = new ArrayList<>();
+			for (int j = 0; j < SERVERS; j++) {
+				servers[i * SERVERS + j] = IPv4Address.of(SERVER_BASE + i * SERVERS + j);
+				members.add(new ServerEntry(servers[i * SERVERS + j], PORT));
+			}
+			register.subscribe(anycast[i], members);
+		}
+		List<ServerEntry> list = new ArrayList<>();
+		list.add(new ServerEntry(IPv4Address.of(SERVER_BASE - 1), PORT));
+		extra = list;
+	}
+
+	@Benchmark
+	public IPv4Address getAnyGroup() {
+		IPv4Address server = servers[ThreadLocalRandom.current().nextInt(servers.length)];
+		return register.getAnyGroup(server, PORT);
+	}
+
+	@Benchmark
+	public List<IPv4Address> getServersPhyAddr() {
+		return register.getServersPhyAddr(anycast[ThreadLocalRandom.current().nextInt(groups)]);
+	}
+
+	/**
+	 * A server joins a group and leaves it: every change publishes a new
+	 * snapshot of the whole register
+	 */
+	@Benchmark
+	public int subscribeUnsubscribe() {
+		IPv4Address group = anycast[ThreadLocalRandom.current().nextInt(groups)];
+		return register.subscribe(group, extra) + register.unsubscribe(group, extra);
+	}
+}
@@ -20,13 +20,16 @@ package net.floodlightcontroller.customforwarding;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -40,6 +43,7 @@ import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.types.NodePortTuple;
 import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
@@ -56,6 +60,7 @@ import net.floodlightcontroller.routing.IRoutingDecision;
 import net.floodlightcontroller.routing.IRoutingDecisionChangedListener;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.Path;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.util.FlowModUtils;
 import net.floodlightcontroller.util.OFDPAUtils;
@@ -66,11 +71,14 @@ import net.floodlightcontroller.util.ParseUtils;
 
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
 import org.projectfloodlight.openflow.protocol.OFFlowModCommand;
+import org.projectfloodlight.openflow.protocol.OFFlowModFlags;
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
 import org.projectfloodlight.openflow.protocol.OFGroupType;
 import org.projectfloodlight.openflow.protocol.OFMessage;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
 import org.projectfloodlight.openflow.protocol.OFPortDesc;
+import org.projectfloodlight.openflow.protocol.OFType;
 import org.projectfloodlight.openflow.protocol.OFVersion;
 import org.projectfloodlight.openflow.protocol.action.OFAction;
 import org.projectfloodlight.openflow.protocol.match.Match;
@@ -95,6 +103,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /************************/
+import net.floodlightcontroller.loadbalancerproject.AdmissionControl;
+import net.floodlightcontroller.loadbalancerproject.HealthChecker;
 import net.floodlightcontroller.loadbalancerproject.IcmpHandler;
 import net.floodlightcontroller.loadbalancerproject.TcpUdpHandler;
 /*************************/
@@ -132,19 +142,40 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
     protected static final short FLOWSET_SHIFT = DECISION_BITS;
     private static final long FLOWSET_MASK = ((1L << FLOWSET_BITS) - 1) << FLOWSET_SHIFT;
     private static final long FLOWSET_MAX = (long) (Math.pow(2, FLOWSET_BITS) - 1);
+    private static final int FLOWSET_MAX_SKIPS = 64;
     protected static FlowSetIdRegistry flowSetIdRegistry;
 
+    protected IThreadPoolService threadPoolService;
+    /* The ports which went down, until their flows are removed */
+    private final ConcurrentLinkedQueue<NodePortTuple> failedPorts = new ConcurrentLinkedQueue<NodePortTuple>();
+    private SingletonTask flowRemovalTask;
+
+    /**
+     * The flowsets and the switch ports their flows cross, indexed both
+     * ways so that a port down only touches the flowsets through that port.
+     * The flowsets are keyed by the raw value of their shifted ID. The NPTs
+     * of a flowset are registered at once as an immutable array, and the
+     * flowsets of an NPT are a concurrent set, so packet-in threads can
+     * register flowsets without taking a lock. The set of an NPT is never
+     * removed, only drained, so that a concurrent registration cannot add
+     * to a discarded set. The NPTs are bounded by the ports of the network.
+     * 
+     * The IDs are boxed in concurrent hash maps rather than kept in a
+     * LongKeyedTable: its insertions are serialized, and every new flow
+     * inserts a flowset, so it would bring back the global lock taken out
+     * of the ID allocation. A NodePortTuple does not fit in one long either.
+     */
     protected static class FlowSetIdRegistry {
-        private volatile Map<NodePortTuple, Set<U64>> nptToFlowSetIds;
-        private volatile Map<U64, Set<NodePortTuple>> flowSetIdToNpts;
+        private final ConcurrentHashMap<NodePortTuple, Set<Long>> nptToFlowSetIds;
+        private final ConcurrentHashMap<Long, NodePortTuple[]> flowSetIdToNpts;
         
-        private volatile long flowSetGenerator = -1;
+        private final AtomicLong flowSetGenerator = new AtomicLong(-1);
 
         private static volatile FlowSetIdRegistry instance;
 
         private FlowSetIdRegistry() {
-            nptToFlowSetIds = new ConcurrentHashMap<NodePortTuple, Set<U64>>();
-            flowSetIdToNpts = new ConcurrentHashMap<U64, Set<NodePortTuple>>();
+            nptToFlowSetIds = new ConcurrentHashMap<NodePortTuple, Set<Long>>();
+            flowSetIdToNpts = new ConcurrentHashMap<Long, NodePortTuple[]>();
         }
 
         protected static FlowSetIdRegistry getInstance() {
@@ -159,73 +190,86 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
          * @param seed
          */
         protected void seedFlowSetIdForUnitTest(int seed) {
-            flowSetGenerator = seed;
+            flowSetGenerator.set(seed);
         }
         
-        protected synchronized U64 generateFlowSetId() {
-            flowSetGenerator += 1;
-            if (flowSetGenerator == FLOWSET_MAX) {
-                flowSetGenerator = 0;
-                log.warn("Flowset IDs have exceeded capacity of {}. Flowset ID generator resetting back to 0", FLOWSET_MAX);
-            }
-            U64 id = U64.of(flowSetGenerator << FLOWSET_SHIFT);
-            log.debug("Generating flowset ID {}, shifted {}", flowSetGenerator, id);
-            return id;
+        /**
+         * Allocate a flowset ID without taking a lock. The IDs wrap within
+         * FLOWSET_BITS, and the IDs of the flowsets still registered are
+         * skipped, up to FLOWSET_MAX_SKIPS of them in a row.
+         * @return the shifted flowset ID
+         */
+        protected U64 generateFlowSetId() {
+            long shifted;
+            int skipped = 0;
+            do {
+                long count = flowSetGenerator.incrementAndGet();
+                long value = count % FLOWSET_MAX;
+                if (value == 0 && count != 0) {
+                    log.warn("Flowset IDs have exceeded capacity of {}. Flowset ID generator resetting back to 0", FLOWSET_MAX);
+                }
+                shifted = value << FLOWSET_SHIFT;
+            } while (flowSetIdToNpts.containsKey(shifted) && ++skipped < FLOWSET_MAX_SKIPS);
+            return U64.of(shifted);
         }
 
-        private void registerFlowSetId(NodePortTuple npt, U64 flowSetId) {
-            if (nptToFlowSetIds.containsKey(npt)) {
-                Set<U64> ids = nptToFlowSetIds.get(npt);
-                ids.add(flowSetId);
-            } else {
-                Set<U64> ids = new HashSet<U64>();
-                ids.add(flowSetId);
-                nptToFlowSetIds.put(npt, ids);
-            }  
-
-            if (flowSetIdToNpts.containsKey(flowSetId)) {
-                Set<NodePortTuple> npts = flowSetIdToNpts.get(flowSetId);
-                npts.add(npt);
-            } else {
-                Set<NodePortTuple> npts = new HashSet<NodePortTuple>();
-                npts.add(npt);
-                flowSetIdToNpts.put(flowSetId, npts);
+        /**
+         * Register the NPTs crossed by the flows of a flowset
+         * @param flowSetId the shifted flowset ID
+         * @param npts the switch ports of the flowset
+         */
+        private void registerFlowSetId(U64 flowSetId, Collection<NodePortTuple> npts) {
+            Long id = flowSetId.getValue();
+            flowSetIdToNpts.put(id, npts.toArray(new NodePortTuple[npts.size()]));
+            for (NodePortTuple npt : npts) {
+                Set<Long> ids = nptToFlowSetIds.get(npt);
+                if (ids == null) {
+                    Set<Long> created = ConcurrentHashMap.newKeySet();
+                    ids = nptToFlowSetIds.putIfAbsent(npt, created);
+                    if (ids == null) {
+                        ids = created;
+                    }
+                }
+                ids.add(id);
             }
         }
 
-        private Set<U64> getFlowSetIds(NodePortTuple npt) {
-            return nptToFlowSetIds.get(npt);
-        }
-
-        private Set<NodePortTuple> getNodePortTuples(U64 flowSetId) {
-            return flowSetIdToNpts.get(flowSetId);
-        }
-
-        private void removeNodePortTuple(NodePortTuple npt) {
-            nptToFlowSetIds.remove(npt);
-
-            Iterator<Set<NodePortTuple>> itr = flowSetIdToNpts.values().iterator();
-            while (itr.hasNext()) {
-                Set<NodePortTuple> npts = itr.next();
-                npts.remove(npt);
+        /**
+         * Drain the flowsets of a switch port, when it goes down
+         * @param npt the switch port
+         * @return the shifted IDs of the flowsets which crossed the port.
+         * A flowset registered meanwhile stays in the set of the port
+         */
+        private List<Long> removeNodePortTuple(NodePortTuple npt) {
+            List<Long> removed = new ArrayList<Long>();
+            Set<Long> ids = nptToFlowSetIds.get(npt);
+            if (ids != null) {
+                Iterator<Long> i = ids.iterator();
+                while (i.hasNext()) {
+                    removed.add(i.next());
+                    i.remove();
+                }
             }
+            return removed;
         }
 
-        private void removeExpiredFlowSetId(U64 flowSetId, NodePortTuple avoid, Iterator<U64> avoidItr) {
-            flowSetIdToNpts.remove(flowSetId);
-
-            Iterator<Entry<NodePortTuple, Set<U64>>> itr = nptToFlowSetIds.entrySet().iterator();
-            boolean removed = false;
-            while (itr.hasNext()) {
-                Entry<NodePortTuple, Set<U64>> e = itr.next();
-                if (e.getKey().equals(avoid) && ! removed) {
-                    avoidItr.remove();
-                    removed = true;
-                } else {
-                    Set<U64> ids = e.getValue();
-                    ids.remove(flowSetId);
+        /**
+         * Forget a flowset, when its flows are removed. Only the NPTs of the
+         * flowset are touched
+         * @param flowSetId the shifted flowset ID
+         * @return the switch ports of the flowset, or null if it is unknown
+         */
+        private NodePortTuple[] removeFlowSetId(long flowSetId) {
+            NodePortTuple[] npts = flowSetIdToNpts.remove(flowSetId);
+            if (npts != null) {
+                for (NodePortTuple npt : npts) {
+                    Set<Long> ids = nptToFlowSetIds.get(npt);
+                    if (ids != null) {
+                        ids.remove(flowSetId);
+                    }
                 }
             }
+            return npts;
         }
     }
 
@@ -234,6 +278,15 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
   
     	Ethernet eth = IFloodlightProviderService.bcStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
 
+        // Answers to the probes of the load balancer
+        if (HealthChecker.handle(eth, sw, pi)) {
+            return Command.STOP;
+        }
+        // Shed the packet-ins beyond the rate of their switch or source
+        if (!AdmissionControl.admit(eth, sw)) {
+            return Command.STOP;
+        }
+
         if (decision != null) {
             if (log.isTraceEnabled()) {
                 log.trace("Forwarding decision={} was made for PacketIn={}", decision.getRoutingAction().toString(), pi);
@@ -422,10 +475,14 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
 
         /* If link goes down, we'll remember to remove this flow */
         if (! m.isFullyWildcarded(MatchField.IN_PORT)) {
-            flowSetIdRegistry.registerFlowSetId(new NodePortTuple(sw.getId(), m.get(MatchField.IN_PORT)), flowSetId);
+            flowSetIdRegistry.registerFlowSetId(flowSetId,
+                    Collections.singletonList(new NodePortTuple(sw.getId(), m.get(MatchField.IN_PORT))));
         }
 
         log.info("Dropping");
+        if (FLOWMOD_DEFAULT_SET_SEND_FLOW_REM_FLAG) {
+            fmb.setFlags(Collections.singleton(OFFlowModFlags.SEND_FLOW_REM));
+        }
         fmb.setCookie(cookie)
         .setHardTimeout(FLOWMOD_DEFAULT_HARD_TIMEOUT)
         .setIdleTimeout(FLOWMOD_DEFAULT_IDLE_TIMEOUT)
@@ -549,9 +606,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
              * Register this flowset with ingress and egress ports for link down
              * flow removal. This is done after we push the path as it is blocking.
              */
-            for (NodePortTuple npt : path.getPath()) {
-                flowSetIdRegistry.registerFlowSetId(npt, flowSetId);
-            }
+            flowSetIdRegistry.registerFlowSetId(flowSetId, path.getPath());
         } /* else no path was found */
     }
 
@@ -761,6 +816,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         l.add(ITopologyService.class);
         l.add(IDebugCounterService.class);
         l.add(ILinkDiscoveryService.class);
+        l.add(IThreadPoolService.class);
         return l;
     }
 
@@ -774,6 +830,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         this.debugCounterService = context.getServiceImpl(IDebugCounterService.class);
         this.switchService = context.getServiceImpl(IOFSwitchService.class);
         this.linkService = context.getServiceImpl(ILinkDiscoveryService.class);
+        this.threadPoolService = context.getServiceImpl(IThreadPoolService.class);
 
         flowSetIdRegistry = FlowSetIdRegistry.getInstance();
 
@@ -875,6 +932,11 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         }
         if (REMOVE_FLOWS_ON_LINK_OR_PORT_DOWN) {
             log.info("Flows will be removed on link/port down events");
+            /* The flowsets are forgotten when their flows are removed */
+            if (configParameters.get("set-send-flow-rem-flag") == null) {
+                FLOWMOD_DEFAULT_SET_SEND_FLOW_REM_FLAG = true;
+                log.info("Default flags will be set to SEND_FLOW_REM {} to expire the flowsets.", FLOWMOD_DEFAULT_SET_SEND_FLOW_REM_FLAG);
+            }
         } else {
             log.info("Flows will not be removed on link/port down events");
         }
@@ -888,10 +950,38 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
 
         /* Register only if we want to remove stale flows */
         if (REMOVE_FLOWS_ON_LINK_OR_PORT_DOWN) {
+            flowRemovalTask = new SingletonTask(threadPoolService.getScheduledExecutor(), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        removeFlowsOnFailedPorts();
+                    } catch (Exception e) {
+                        log.error("Exception while removing the flows of the failed ports", e);
+                    }
+                }
+            });
             linkService.addListener(this);
+            floodlightProviderService.addOFMessageListener(OFType.FLOW_REMOVED, this);
         }
     }
 
+    @Override
+    public Command receive(IOFSwitch sw, OFMessage msg, FloodlightContext cntx) {
+        if (msg.getType() == OFType.FLOW_REMOVED) {
+            U64 cookie = ((OFFlowRemoved) msg).getCookie();
+            /* 
+             * All the flows of a flowset share its timeouts, so the flowset
+             * is forgotten with its first flow. Its remaining flows expire
+             * on their own.
+             */
+            if (AppCookie.extractApp(cookie) == FORWARDING_APP_ID) {
+                flowSetIdRegistry.removeFlowSetId(cookie.getValue() & FLOWSET_MASK);
+            }
+            return Command.CONTINUE;
+        }
+        return super.receive(sw, msg, cntx);
+    }
+
     @Override
     public void switchAdded(DatapathId switchId) {
     }
@@ -950,147 +1040,118 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
 
     @Override
     public void linkDiscoveryUpdate(List<LDUpdate> updateList) {
+        boolean failed = false;
         for (LDUpdate u : updateList) {
             /* Remove flows on either side if link/port went down */
             if (u.getOperation() == UpdateOperation.LINK_REMOVED ||
                     u.getOperation() == UpdateOperation.PORT_DOWN ||
                     u.getOperation() == UpdateOperation.TUNNEL_PORT_REMOVED) {
-                Set<OFMessage> msgs = new HashSet<OFMessage>();
-
+                /* src side of link */
                 if (u.getSrc() != null && !u.getSrc().equals(DatapathId.NONE)) {
-                    IOFSwitch srcSw = switchService.getSwitch(u.getSrc());
-                    /* src side of link */
-                    if (srcSw != null) {
-                        Set<U64> ids = flowSetIdRegistry.getFlowSetIds(
-                                new NodePortTuple(u.getSrc(), u.getSrcPort()));
-                        if (ids != null) {
-                            Iterator<U64> i = ids.iterator();
-                            while (i.hasNext()) {
-                                U64 id = i.next();
-                                U64 cookie = id.or(DEFAULT_FORWARDING_COOKIE);
-                                U64 cookieMask = U64.of(FLOWSET_MASK).or(AppCookie.getAppFieldMask());
-                                /* flows matching on src port */
-                                msgs.add(srcSw.getOFFactory().buildFlowDelete()
-                                        .setCookie(cookie)
-                                        .setCookieMask(cookieMask)
-                                        .setMatch(srcSw.getOFFactory().buildMatch()
-                                                .setExact(MatchField.IN_PORT, u.getSrcPort())
-                                                .build())
-                                        .build());
-                                /* flows outputting to src port */
-                                msgs.add(srcSw.getOFFactory().buildFlowDelete()
-                                        .setCookie(cookie)
-                                        .setCookieMask(cookieMask)
-                                        .setOutPort(u.getSrcPort())
-                                        .build());
-                                messageDamper.write(srcSw, msgs);
-                                log.debug("src: Removing flows to/from DPID={}, port={}", u.getSrc(), u.getSrcPort());
-                                log.debug("src: Cookie/mask {}/{}", cookie, cookieMask);
-                                
-                                /* 
-                                 * Now, for each ID on this particular failed link, remove
-                                 * all other flows in the network using this ID.
-                                 */
-                                Set<NodePortTuple> npts = flowSetIdRegistry.getNodePortTuples(id);
-                                if (npts != null) {
-                                    for (NodePortTuple npt : npts) {
-                                        msgs.clear();
-                                        IOFSwitch sw = switchService.getSwitch(npt.getNodeId());
-                                        if (sw != null) {
-                                            msgs.add(sw.getOFFactory().buildFlowDelete()
-                                                    .setCookie(cookie)
-                                                    .setCookieMask(cookieMask)
-                                                    .setMatch(sw.getOFFactory().buildMatch()
-                                                            .setExact(MatchField.IN_PORT, npt.getPortId())
-                                                            .build())
-                                                    .build());
-                                            /* flows outputting to port */
-                                            msgs.add(sw.getOFFactory().buildFlowDelete()
-                                                    .setCookie(cookie)
-                                                    .setCookieMask(cookieMask)
-                                                    .setOutPort(npt.getPortId())
-                                                    .build());
-                                            messageDamper.write(sw, msgs);
-                                            log.debug("src: Removing same-cookie flows to/from DPID={}, port={}", npt.getNodeId(), npt.getPortId());
-                                            log.debug("src: Cookie/mask {}/{}", cookie, cookieMask);
-                                        }
-                                    }
-                                }
-                                flowSetIdRegistry.removeExpiredFlowSetId(id, new NodePortTuple(u.getSrc(), u.getSrcPort()), i);
-                            }
-                        }
-                    }
-                    flowSetIdRegistry.removeNodePortTuple(new NodePortTuple(u.getSrc(), u.getSrcPort()));
+                    failedPorts.add(new NodePortTuple(u.getSrc(), u.getSrcPort()));
+                    failed = true;
                 }
-
                 /* must be a link, not just a port down, if we have a dst switch */
                 if (u.getDst() != null && !u.getDst().equals(DatapathId.NONE)) {
-                    /* dst side of link */
-                    IOFSwitch dstSw = switchService.getSwitch(u.getDst());
-                    if (dstSw != null) {
-                        Set<U64> ids = flowSetIdRegistry.getFlowSetIds(
-                                new NodePortTuple(u.getDst(), u.getDstPort()));
-                        if (ids != null) {
-                            Iterator<U64> i = ids.iterator();
-                            while (i.hasNext()) {
-                                U64 id = i.next();
-                                U64 cookie = id.or(DEFAULT_FORWARDING_COOKIE);
-                                U64 cookieMask = U64.of(FLOWSET_MASK).or(AppCookie.getAppFieldMask());
-                                /* flows matching on dst port */
-                                msgs.clear();
-                                msgs.add(dstSw.getOFFactory().buildFlowDelete()
-                                        .setCookie(cookie)
-                                        .setCookieMask(cookieMask)
-                                        .setMatch(dstSw.getOFFactory().buildMatch()
-                                                .setExact(MatchField.IN_PORT, u.getDstPort())
-                                                .build())
-                                        .build());
-                                /* flows outputting to dst port */
-                                msgs.add(dstSw.getOFFactory().buildFlowDelete()
-                                        .setCookie(cookie)
-                                        .setCookieMask(cookieMask)
-                                        .setOutPort(u.getDstPort())
-                                        .build());
-                                messageDamper.write(dstSw, msgs);
-                                log.debug("dst: Removing flows to/from DPID={}, port={}", u.getDst(), u.getDstPort());
-                                log.debug("dst: Cookie/mask {}/{}", cookie, cookieMask);
-
-                                /* 
-                                 * Now, for each ID on this particular failed link, remove
-                                 * all other flows in the network using this ID.
-                                 */
-                                Set<NodePortTuple> npts = flowSetIdRegistry.getNodePortTuples(id);
-                                if (npts != null) {
-                                    for (NodePortTuple npt : npts) {
-                                        msgs.clear();
-                                        IOFSwitch sw = switchService.getSwitch(npt.getNodeId());
-                                        if (sw != null) {
-                                            msgs.add(sw.getOFFactory().buildFlowDelete()
-                                                    .setCookie(cookie)
-                                                    .setCookieMask(cookieMask)
-                                                    .setMatch(sw.getOFFactory().buildMatch()
-                                                            .setExact(MatchField.IN_PORT, npt.getPortId())
-                                                            .build())
-                                                    .build());
-                                            /* flows outputting to port */
-                                            msgs.add(sw.getOFFactory().buildFlowDelete()
-                                                    .setCookie(cookie)
-                                                    .setCookieMask(cookieMask)
-                                                    .setOutPort(npt.getPortId())
-                                                    .build());
-                                            messageDamper.write(sw, msgs);
-                                            log.debug("dst: Removing same-cookie flows to/from DPID={}, port={}", npt.getNodeId(), npt.getPortId());
-                                            log.debug("dst: Cookie/mask {}/{}", cookie, cookieMask);
-                                        }
-                                    }
-                                }
-                                flowSetIdRegistry.removeExpiredFlowSetId(id, new NodePortTuple(u.getDst(), u.getDstPort()), i);
-                            }
-                        }
+                    failedPorts.add(new NodePortTuple(u.getDst(), u.getDstPort()));
+                    failed = true;
+                }
+            }
+        }
+        /* The flows are removed off the link discovery thread */
+        if (failed) {
+            flowRemovalTask.reschedule(0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Remove the flowsets crossing the ports which went down since the last
+     * run. The deletes are grouped per switch: the flows in or out of a
+     * failed port are deleted by port, and the flows of its flowsets on the
+     * other switches by cookie. Each switch gets its deletes in one write,
+     * followed by a barrier.
+     */
+    protected void removeFlowsOnFailedPorts() {
+        Map<DatapathId, Set<OFPort>> ports = new HashMap<DatapathId, Set<OFPort>>();
+        Map<DatapathId, Set<Long>> flowSets = new HashMap<DatapathId, Set<Long>>();
+        NodePortTuple failed;
+        while ((failed = failedPorts.poll()) != null) {
+            Set<OFPort> swPorts = ports.get(failed.getNodeId());
+            if (swPorts == null) {
+                swPorts = new HashSet<OFPort>();
+                ports.put(failed.getNodeId(), swPorts);
+            }
+            swPorts.add(failed.getPortId());
+
+            List<Long> ids = flowSetIdRegistry.removeNodePortTuple(failed);
+            /* 
+             * Now, for each ID on this particular failed port, remove
+             * all other flows in the network using this ID.
+             */
+            for (Long id : ids) {
+                NodePortTuple[] npts = flowSetIdRegistry.removeFlowSetId(id);
+                if (npts == null) {
+                    continue;
+                }
+                for (NodePortTuple npt : npts) {
+                    /* Already covered by the port deletes */
+                    if (npt.getNodeId().equals(failed.getNodeId())) {
+                        continue;
                     }
-                    flowSetIdRegistry.removeNodePortTuple(new NodePortTuple(u.getDst(), u.getDstPort()));
+                    Set<Long> swIds = flowSets.get(npt.getNodeId());
+                    if (swIds == null) {
+                        swIds = new HashSet<Long>();
+                        flowSets.put(npt.getNodeId(), swIds);
+                    }
+                    swIds.add(id);
+                }
+            }
+        }
+
+        Set<DatapathId> switches = new HashSet<DatapathId>(ports.keySet());
+        switches.addAll(flowSets.keySet());
+        U64 appCookie = DEFAULT_FORWARDING_COOKIE;
+        U64 appCookieMask = AppCookie.getAppFieldMask();
+        U64 cookieMask = U64.of(FLOWSET_MASK).or(appCookieMask);
+        for (DatapathId dpid : switches) {
+            IOFSwitch sw = switchService.getSwitch(dpid);
+            if (sw == null) {
+                log.debug("Switch {} is gone, not removing its flows", dpid);
+                continue;
+            }
+            List<OFMessage> msgs = new ArrayList<OFMessage>();
+            Set<OFPort> swPorts = ports.get(dpid);
+            if (swPorts != null) {
+                for (OFPort port : swPorts) {
+                    /* flows matching on the port */
+                    msgs.add(sw.getOFFactory().buildFlowDelete()
+                            .setCookie(appCookie)
+                            .setCookieMask(appCookieMask)
+                            .setMatch(sw.getOFFactory().buildMatch()
+                                    .setExact(MatchField.IN_PORT, port)
+                                    .build())
+                            .build());
+                    /* flows outputting to the port */
+                    msgs.add(sw.getOFFactory().buildFlowDelete()
+                            .setCookie(appCookie)
+                            .setCookieMask(appCookieMask)
+                            .setOutPort(port)
+                            .build());
+                }
+            }
+            Set<Long> swIds = flowSets.get(dpid);
+            if (swIds != null) {
+                for (Long id : swIds) {
+                    msgs.add(sw.getOFFactory().buildFlowDelete()
+                            .setCookie(U64.of(id).or(DEFAULT_FORWARDING_COOKIE))
+                            .setCookieMask(cookieMask)
+                            .build());
                 }
             }
+            msgs.add(sw.getOFFactory().buildBarrierRequest().build());
+            sw.write(msgs);
+            log.debug("Removing the flows of {} failed ports and {} flowsets on DPID={}",
+                    new Object[] { swPorts == null ? 0 : swPorts.size(), swIds == null ? 0 : swIds.size(), dpid });
         }
     }
 }
\ No newline at end of file
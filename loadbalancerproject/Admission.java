@@ -0,0 +1,25 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * It creates a response for the GET message that requires the counters of
+ * the admission control: the packet-ins admitted, the ones dropped because
+ * of the rate of their switch or of their source, and the sources blocked.
+ * If the packet-in pipeline is enabled, also the packet-ins handed to its
+ * workers, the ones dropped because of a full queue and the queued ones.
+ *
+ * http://localhost:8080/lb/controller/admission/json
+ * GET message
+ */
+public class Admission extends ServerResource {
+	@Get("json")
+	public Map<String, Long> retrieve() {
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.getAdmissionStats();
+	}
+}
@@ -0,0 +1,230 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.action.OFAction;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.OFBufferId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.FlowModUtils;
+
+/**
+ * The admission control of the packet-ins toward the anycast groups, run
+ * before any other handling. The other packet-ins (ARP, broadcasts, the
+ * traffic of the hosts between themselves) are not limited.
+ * Every switch, and every source (IPv4 address) on each switch, has a token
+ * bucket: a packet-in which finds its bucket empty is dropped. A source
+ * which exceeds its rate on a switch is also blocked there by a temporary
+ * drop rule of its packets toward the group, below the rules of the
+ * connections already established, so that its new connections stop
+ * reaching the controller. The buckets of the sources which have been idle
+ * for a while are dropped periodically.
+ */
+public class AdmissionControl {
+	protected static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+	public static final int DEFAULT_SWITCH_RATE = 5000; // packet-ins per second
+	public static final int DEFAULT_SOURCE_RATE = 500; // packet-ins per second
+	public static final short DEFAULT_BLOCK_TIME = 5; // in seconds
+	// Beyond this number of sources on a switch only its bucket applies
+	private static final int MAX_SOURCES = 1 << 16;
+	// Below the rules of the connections, above the rules of the groups
+	public static final int BLOCK_PRIORITY = FlowModUtils.PRIORITY_VERY_HIGH;
+
+	/**
+	 * The bucket of a source and the end of its block
+	 */
+	private static final class Source {
+		final TokenBucket bucket;
+		final AtomicLong blockedUntil = new AtomicLong();
+
+		Source(TokenBucket bucket, long now) {
+			this.bucket = bucket;
+			this.blockedUntil.set(now);
+		}
+	}
+
+	/**
+	 * The bucket of a switch and the buckets of its sources
+	 */
+	private static final class Switch {
+		final TokenBucket bucket;
+		// IPv4 address -> bucket
+		final LongKeyedTable<Source> sources = new LongKeyedTable<>();
+
+		Switch(TokenBucket bucket) {
+			this.bucket = bucket;
+		}
+	}
+
+	private final int switchRate;
+	private final int sourceRate;
+	private final short blockTime;
+	// DPID -> buckets
+	private final LongKeyedTable<Switch> switches = new LongKeyedTable<>();
+	private final LongKeyedTable.Factory<Switch> switchFactory;
+	private final LongKeyedTable.Factory<Source> sourceFactory;
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder shedBySwitch = new LongAdder();
+	private final LongAdder shedBySource = new LongAdder();
+	private final LongAdder blocks = new LongAdder();
+
+	/**
+	 * @param switchRate The packet-ins per second admitted from a switch, 0
+	 * for no limit
+	 * @param sourceRate The packet-ins per second admitted from a source, 0
+	 * for no limit
+	 * @param blockTime The time a source which exceeds its rate is blocked
+	 * on the switch, in seconds
+	 */
+	public AdmissionControl(final int switchRate, final int sourceRate, short blockTime) {
+		if (switchRate < 0 || sourceRate < 0 || blockTime < 1) {
+			throw new IllegalArgumentException("Invalid rate or block time");
+		}
+		this.switchRate = switchRate;
+		this.sourceRate = sourceRate;
+		this.blockTime = blockTime;
+		this.switchFactory = new LongKeyedTable.Factory<Switch>() {
+			@Override
+			public Switch create(long key) {
+				return new Switch(new TokenBucket(switchRate, 1, TimeUnit.SECONDS));
+			}
+		};
+		this.sourceFactory = new LongKeyedTable.Factory<Source>() {
+			@Override
+			public Source create(long key) {
+				return new Source(new TokenBucket(sourceRate, 1, TimeUnit.SECONDS), System.nanoTime());
+			}
+		};
+	}
+
+	/**
+	 * Decide whether a packet-in is handled
+	 * @param eth The packet
+	 * @param sw The switch which sent the packet-in
+	 * @return true: if the packet-in is admitted
+	 */
+	public static boolean admit(Ethernet eth, IOFSwitch sw) {
+		AdmissionControl ac = LoadBalancer.admissionControl;
+		if (ac == null || !(eth.getPayload() instanceof IPv4)) {
+			return true;
+		}
+		IPv4 ipv4 = (IPv4) eth.getPayload();
+		// Only the packets toward a group are limited
+		if (LoadBalancer.servReg.getSnapshot().getGroup(ipv4.getDestinationAddress()) == null) {
+			return true;
+		}
+		return ac.check(ipv4, sw);
+	}
+
+	private boolean check(IPv4 ipv4, IOFSwitch sw) {
+		long now = System.nanoTime();
+		Switch state = switches.getOrCreate(sw.getId().getLong(), switchFactory);
+		// The sources first, so that a flooding source does not consume the
+		// tokens of the switch
+		if (sourceRate > 0) {
+			long key = ipv4.getSourceAddress().getInt() & 0xFFFFFFFFL;
+			Source s = state.sources.get(key);
+			if (s == null && state.sources.size() < MAX_SOURCES) {
+				s = state.sources.getOrCreate(key, sourceFactory);
+			}
+			if (s != null && !s.bucket.tryAcquire(now)) {
+				shedBySource.increment();
+				long until = s.blockedUntil.get();
+				// Only the first packet-in after the end of the block pushes
+				// the drop rule
+				if (until - now <= 0 && s.blockedUntil.compareAndSet(until,
+						now + TimeUnit.SECONDS.toNanos(blockTime))) {
+					block(ipv4, sw);
+				}
+				return false;
+			}
+		}
+		if (switchRate > 0 && !state.bucket.tryAcquire(now)) {
+			shedBySwitch.increment();
+			return false;
+		}
+		admitted.increment();
+		return true;
+	}
+
+	/**
+	 * Push a temporary rule which drops the packets of the source of a packet
+	 * toward its group
+	 */
+	private void block(IPv4 ipv4, IOFSwitch sw) {
+		Match match = sw.getOFFactory().buildMatch()
+				.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+				.setExact(MatchField.IPV4_SRC, ipv4.getSourceAddress())
+				.setExact(MatchField.IPV4_DST, ipv4.getDestinationAddress())
+				.build();
+		OFFlowAdd.Builder fmb = sw.getOFFactory().buildFlowAdd()
+				.setHardTimeout(blockTime)
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_TRANSIT, 0, IPv4Address.NONE))
+				.setPriority(BLOCK_PRIORITY)
+				.setMatch(match);
+		// No action: the packets are dropped
+		FlowModUtils.setActions(fmb, Collections.<OFAction>emptyList(), sw);
+		sw.write(fmb.build());
+		blocks.increment();
+		log.warn("Too many packet-ins from {} toward {} on switch {}, blocked for {} s", new Object[] {
+				ipv4.getSourceAddress(), ipv4.getDestinationAddress(), sw.getId(), blockTime});
+	}
+
+	/**
+	 * Drop the buckets of the sources which have been idle for a whole
+	 * interval and are not blocked
+	 */
+	public void expire() {
+		final long now = System.nanoTime();
+		switches.forEach(new LongKeyedTable.Visitor<Switch>() {
+			@Override
+			public void visit(long dpid, final Switch state) {
+				state.sources.forEach(new LongKeyedTable.Visitor<Source>() {
+					@Override
+					public void visit(long key, Source s) {
+						if (s.bucket.getCount(now) == 0 && s.blockedUntil.get() - now <= 0) {
+							state.sources.remove(key);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return The counters of the admitted and dropped packet-ins
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		stats.put("admitted", admitted.sum());
+		stats.put("shed-by-switch", shedBySwitch.sum());
+		stats.put("shed-by-source", shedBySource.sum());
+		stats.put("blocks", blocks.sum());
+		final long[] sources = new long[1];
+		switches.forEach(new LongKeyedTable.Visitor<Switch>() {
+			@Override
+			public void visit(long dpid, Switch state) {
+				sources[0] += state.sources.size();
+			}
+		});
+		stats.put("sources", sources[0]);
+		return stats;
+	}
+}
@@ -1,7 +1,7 @@
 package net.floodlightcontroller.loadbalancerproject;
 
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
@@ -28,7 +28,7 @@ public class ArpHandler {
 		
  		ARP arpRequest = (ARP) eth.getPayload();
  		
- 		ArrayList<IPv4Address> physicalAddress = LoadBalancer.servReg.getServersPhyAddr(arpRequest.getTargetProtocolAddress());
+ 		List<IPv4Address> physicalAddress = LoadBalancer.servReg.getServersPhyAddr(arpRequest.getTargetProtocolAddress());
  		if (physicalAddress == null) { 			
  			return;
  		}
@@ -72,6 +72,7 @@ public class ArpHandler {
 			pob.setData(packetData);
 			
 			sw.write(pob.build());
+			LoadBalancer.metrics.arpReplies.increment();
  		}
  		return;
 	}
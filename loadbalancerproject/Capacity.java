@@ -0,0 +1,100 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.restlet.data.Form;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * It handles the capacity of the servers, i.e. the number of requests that
+ * a server can accept within the sliding interval of the ServiceCounter and
+ * the throughput it can sustain.
+ * 
+ * http://localhost:8080/lb/controller/capacity/json
+ * POST message
+ * Data: Custom
+ * MIME format: application/json
+ * Message format: {"physical":"10.0.0.1", "capacity":20, "byterate":1000000}
+ * "byterate" is the throughput (in bytes per second) above which the server
+ * is busy, 0 for none. Either "capacity" or "byterate" can be omitted.
+ * Without "physical" the default capacity of the servers is set.
+ * 
+ * http://localhost:8080/lb/controller/capacity/json?physical=10.0.0.1
+ * GET message
+ */
+public class Capacity extends ServerResource {
+	
+	@Get("json")
+	public Map<String, Object> retrieve() {
+		Form form = getQuery();
+		String phyAddr = form.getFirstValue("physical", true);
+		
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		
+		//Build a response
+		Map<String, Object> map = new HashMap<String, Object>();
+		if (phyAddr == null) {
+			map.put("default", lb.getCapacity(null));
+		} else {
+			IPv4Address addr = IPv4Address.of(phyAddr);
+			map.put("physical", phyAddr);
+			map.put("capacity", lb.getCapacity(addr));
+			map.put("requests", lb.getRequestCounter(addr));
+		}
+		return map;
+	}
+	
+	@Post("application/json")
+	public String store(String fmJson){
+		if (fmJson == null)
+			return new String("Error: no attributes");
+		ObjectMapper mapper = new ObjectMapper();
+		IPv4Address phyAddr = null;
+		int capacity = -1;
+		long byteRate = -1;
+		try {
+			JsonNode root = mapper.readTree(fmJson);
+			JsonNode phyNode = root.get("physical");
+			if (phyNode != null) {
+				phyAddr = IPv4Address.of(phyNode.asText());
+			}
+			JsonNode capNode = root.get("capacity");
+			if (capNode != null) {
+				if (!capNode.canConvertToInt() || capNode.asInt() < 1)
+					return new String("Error: invalid capacity");
+				capacity = capNode.asInt();
+			}
+			JsonNode rateNode = root.get("byterate");
+			if (rateNode != null) {
+				if (!rateNode.canConvertToLong() || rateNode.asLong() < 0)
+					return new String("Error: invalid throughput");
+				byteRate = rateNode.asLong();
+			}
+			if (capNode == null && rateNode == null)
+				return new String("Error: no capacity");
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new String("Error: invalid message");
+		}
+		
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		String message = "";
+		if (capacity > 0) {
+			message = lb.setCapacity(phyAddr, capacity);
+		}
+		if (byteRate >= 0) {
+			message += (message.isEmpty() ? "" : ", ") + lb.setMaxByteRate(phyAddr, byteRate);
+		}
+		return message;
+	}
+}
@@ -0,0 +1,362 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+/**
+ * The table of the connections toward the anycast groups, keyed by the
+ * 5-tuple of the client. It remembers the server chosen for every
+ * connection, so that the packets of a connection keep on reaching the same
+ * server after its rules expire.
+ * A connection which has sent a FIN is closing: it keeps its server only for
+ * a short linger time after it was last seen, long enough for the last
+ * packets of both sides, or until its forward rule is removed.
+ * The table also knows whether the forward rule of a connection is
+ * installed, so that a rule which expires while the connection is alive and
+ * is installed again counts as one flow of the server at a time.
+ * The entries are packed in primitive arrays (two longs for the key, three
+ * ints for the server, the last time the connection was seen and its
+ * state), split in segments with their own lock. A segment grows up to a fixed size: when it
+ * is full, the idle connections are dropped and, if none is idle, the new
+ * connection is not recorded.
+ */
+public class ConnectionTable {
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+	public static final int DEFAULT_IDLE_TIMEOUT = 60; // in seconds
+	// The hard timeout of the rules of the connections
+	public static final int DEFAULT_LINGER_TIMEOUT = 20; // in seconds
+
+	// States of an entry
+	private static final int CLOSING = 0x1;
+	private static final int INSTALLED = 0x2;
+
+	private static final int SEGMENTS = 64;
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * A linear-probing table. A slot is empty when its addresses are 0: a
+	 * flow toward an anycast address never has a null destination
+	 */
+	private static final class Segment {
+		// Addresses and ports of every slot
+		long[] keys;
+		// Server address, last time seen (in seconds) and state of every slot
+		int[] values;
+		int mask;
+		int size;
+		final int maxSize;
+
+		Segment(int maxSize) {
+			this.maxSize = maxSize;
+			allocate(INITIAL_CAPACITY);
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[2 * capacity];
+			values = new int[3 * capacity];
+			mask = capacity - 1;
+			size = 0;
+		}
+
+		private int find(long addrs, long ports, int slot) {
+			while (keys[2 * slot] != 0) {
+				if (keys[2 * slot] == addrs && keys[2 * slot + 1] == ports) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return ~slot;
+		}
+
+		synchronized int get(long addrs, long ports, int hash, int now) {
+			int slot = find(addrs, ports, hash & mask);
+			if (slot < 0) {
+				return 0;
+			}
+			values[3 * slot + 1] = now;
+			return values[3 * slot];
+		}
+
+		synchronized boolean put(long addrs, long ports, int hash, int server, int now, int idleTimeout,
+				int lingerTimeout) {
+			int slot = find(addrs, ports, hash & mask);
+			if (slot < 0) {
+				if (size >= maxSize) {
+					expire(now - idleTimeout, now - lingerTimeout);
+					if (size >= maxSize) {
+						return false;
+					}
+				}
+				// At most half full
+				if (2 * (size + 1) > mask + 1) {
+					rehash(2 * (mask + 1), Integer.MIN_VALUE, Integer.MIN_VALUE);
+				}
+				slot = ~find(addrs, ports, hash & mask);
+				keys[2 * slot] = addrs;
+				keys[2 * slot + 1] = ports;
+				size++;
+			}
+			values[3 * slot] = server;
+			values[3 * slot + 1] = now;
+			values[3 * slot + 2] = 0;
+			return true;
+		}
+
+		synchronized boolean setState(long addrs, long ports, int hash, int state) {
+			int slot = find(addrs, ports, hash & mask);
+			if (slot < 0) {
+				return false;
+			}
+			values[3 * slot + 2] |= state;
+			return true;
+		}
+
+		/**
+		 * @return The former state of the entry, -1 if there is no entry
+		 */
+		synchronized int install(long addrs, long ports, int hash) {
+			int slot = find(addrs, ports, hash & mask);
+			if (slot < 0) {
+				return -1;
+			}
+			int state = values[3 * slot + 2];
+			values[3 * slot + 2] = state | INSTALLED;
+			return state;
+		}
+
+		/**
+		 * Clear the installed state, and drop the entry if it is closing
+		 * @return The former state of the entry, -1 if there is no entry
+		 */
+		synchronized int uninstall(long addrs, long ports, int hash) {
+			int slot = find(addrs, ports, hash & mask);
+			if (slot < 0) {
+				return -1;
+			}
+			int state = values[3 * slot + 2];
+			if ((state & CLOSING) != 0) {
+				remove(addrs, ports, hash);
+			} else {
+				values[3 * slot + 2] = state & ~INSTALLED;
+			}
+			return state;
+		}
+
+		synchronized boolean remove(long addrs, long ports, int hash) {
+			int slot = find(addrs, ports, hash & mask);
+			if (slot < 0) {
+				return false;
+			}
+			// Backward shift: move back the entries of the probe sequence,
+			// so that no tombstone is needed
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (keys[2 * next] != 0) {
+				int home = hash(keys[2 * next], keys[2 * next + 1]) & mask;
+				boolean movable = hole <= next
+						? (home <= hole || home > next)
+						: (home <= hole && home > next);
+				if (movable) {
+					keys[2 * hole] = keys[2 * next];
+					keys[2 * hole + 1] = keys[2 * next + 1];
+					values[3 * hole] = values[3 * next];
+					values[3 * hole + 1] = values[3 * next + 1];
+					values[3 * hole + 2] = values[3 * next + 2];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			keys[2 * hole] = 0;
+			keys[2 * hole + 1] = 0;
+			size--;
+			return true;
+		}
+
+		synchronized int expire(int deadline, int closingDeadline) {
+			int before = size;
+			rehash(mask + 1, deadline, closingDeadline);
+			return before - size;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Move the entries seen after their deadline into new arrays
+		 */
+		private void rehash(int capacity, int deadline, int closingDeadline) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			allocate(capacity);
+			for (int i = 0, j = 0; i < oldKeys.length; i += 2, j += 3) {
+				if (oldKeys[i] == 0) {
+					continue;
+				}
+				boolean closing = (oldValues[j + 2] & CLOSING) != 0;
+				if (oldValues[j + 1] >= (closing ? closingDeadline : deadline)) {
+					int slot = ~find(oldKeys[i], oldKeys[i + 1], hash(oldKeys[i], oldKeys[i + 1]) & mask);
+					keys[2 * slot] = oldKeys[i];
+					keys[2 * slot + 1] = oldKeys[i + 1];
+					values[3 * slot] = oldValues[j];
+					values[3 * slot + 1] = oldValues[j + 1];
+					values[3 * slot + 2] = oldValues[j + 2];
+					size++;
+				}
+			}
+		}
+	}
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final int idleTimeout; // in seconds
+	private final int lingerTimeout; // in seconds
+	private final long start = System.nanoTime();
+
+	public ConnectionTable() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * @param maxEntries The maximum number of connections in the table
+	 * @param idleTimeout The time after which a connection which has not been
+	 * seen is dropped, in seconds
+	 */
+	public ConnectionTable(int maxEntries, int idleTimeout) {
+		if (maxEntries < SEGMENTS) {
+			throw new IllegalArgumentException("The table must hold at least " + SEGMENTS + " entries");
+		}
+		this.idleTimeout = idleTimeout;
+		this.lingerTimeout = Math.min(idleTimeout, DEFAULT_LINGER_TIMEOUT);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(maxEntries / SEGMENTS);
+		}
+	}
+
+	private static int hash(long addrs, long ports) {
+		long h = FlowKey.mix(addrs * 0x9E3779B97F4A7C15L + ports);
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private Segment segmentFor(int hash) {
+		// The low bits index the slots
+		return segments[(hash >>> 26) & (SEGMENTS - 1)];
+	}
+
+	private int now() {
+		return (int) TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+	}
+
+	/**
+	 * Get the server of a connection, and mark the connection as seen
+	 * @param flow The 5-tuple of the client
+	 * @return The physical IP address of the server, or null if the
+	 * connection is not in the table
+	 */
+	public IPv4Address get(FlowKey flow) {
+		long addrs = flow.getAddrs();
+		long ports = flow.getPorts();
+		int hash = hash(addrs, ports);
+		int server = segmentFor(hash).get(addrs, ports, hash, now());
+		return server == 0 ? null : IPv4Address.of(server);
+	}
+
+	/**
+	 * Record the server of a connection
+	 * @param flow The 5-tuple of the client
+	 * @param server The physical IP address of the server
+	 * @return false: if the table is full
+	 */
+	public boolean put(FlowKey flow, IPv4Address server) {
+		long addrs = flow.getAddrs();
+		long ports = flow.getPorts();
+		int hash = hash(addrs, ports);
+		return segmentFor(hash).put(addrs, ports, hash, server.getInt(), now(), idleTimeout, lingerTimeout);
+	}
+
+	/**
+	 * Mark a connection as closing, when one of its sides sends a FIN: it
+	 * keeps its server for the linger time only
+	 * @param flow The 5-tuple of the client
+	 * @return true: if the connection is in the table
+	 */
+	public boolean close(FlowKey flow) {
+		long addrs = flow.getAddrs();
+		long ports = flow.getPorts();
+		int hash = hash(addrs, ports);
+		return segmentFor(hash).setState(addrs, ports, hash, CLOSING);
+	}
+
+	/**
+	 * Register the installation of the forward rule of a connection
+	 * @param flow The 5-tuple of the client
+	 * @return true: if the rule starts a flow of the server, because the
+	 * connection had no installed rule or is not in the table
+	 */
+	public boolean ruleInstalled(FlowKey flow) {
+		long addrs = flow.getAddrs();
+		long ports = flow.getPorts();
+		int hash = hash(addrs, ports);
+		int state = segmentFor(hash).install(addrs, ports, hash);
+		return state < 0 || (state & INSTALLED) == 0;
+	}
+
+	/**
+	 * Register the removal of the forward rule of a connection. A closing
+	 * connection is forgotten
+	 * @param flow The 5-tuple of the client
+	 * @return true: if the removal ends a flow of the server, because the
+	 * connection had an installed rule or is not in the table
+	 */
+	public boolean ruleRemoved(FlowKey flow) {
+		long addrs = flow.getAddrs();
+		long ports = flow.getPorts();
+		int hash = hash(addrs, ports);
+		int state = segmentFor(hash).uninstall(addrs, ports, hash);
+		return state < 0 || (state & INSTALLED) != 0;
+	}
+
+	/**
+	 * Forget a connection, when it is reset
+	 * @param flow The 5-tuple of the client
+	 * @return true: if the connection was in the table
+	 */
+	public boolean remove(FlowKey flow) {
+		long addrs = flow.getAddrs();
+		long ports = flow.getPorts();
+		int hash = hash(addrs, ports);
+		return segmentFor(hash).remove(addrs, ports, hash);
+	}
+
+	/**
+	 * Drop the connections which have been idle for longer than the idle
+	 * timeout, and the closing ones idle for longer than the linger time
+	 * @return The number of dropped connections
+	 */
+	public int expire() {
+		int now = now();
+		int removed = 0;
+		for (Segment s : segments) {
+			removed += s.expire(now - idleTimeout, now - lingerTimeout);
+		}
+		return removed;
+	}
+
+	/**
+	 * @return The number of connections in the table
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment s : segments) {
+			size += s.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The idle timeout of the connections, in seconds
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+}
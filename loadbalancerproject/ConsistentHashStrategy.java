@@ -0,0 +1,127 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Consistent hashing on the 5-tuple of the client: the flows of a client
+ * keep going to the same server as long as it is available, and a change of
+ * membership moves only the flows of the servers that joined or left
+ */
+public class ConsistentHashStrategy implements ServerSelectionStrategy {
+	public static final String NAME = "consistent-hash";
+	// Number of points of every server on the ring
+	private static final int VIRTUAL_NODES = 64;
+	// Sorts the {point, server} pairs by point
+	private static final Comparator<long[]> POINT_ORDER = new Comparator<long[]>() {
+		@Override
+		public int compare(long[] a, long[] b) {
+			return Long.compare(a[0], b[0]);
+		}
+	};
+
+	/**
+	 * The ring of a given set of servers
+	 */
+	private static final class Ring {
+		// Sorted physical IP addresses (as int) of the servers
+		final int[] servers;
+		// Sorted points of the ring and the server owning each point
+		final long[] points;
+		final int[] owners;
+
+		Ring(int[] servers) {
+			this.servers = servers;
+			int n = servers.length * VIRTUAL_NODES;
+			long[][] pairs = new long[n][];
+			for (int s = 0; s < servers.length; s++) {
+				for (int v = 0; v < VIRTUAL_NODES; v++) {
+					long point = FlowKey.mix(((long) servers[s] << 32) | v);
+					pairs[s * VIRTUAL_NODES + v] = new long[] { point, servers[s] };
+				}
+			}
+			Arrays.sort(pairs, POINT_ORDER);
+			points = new long[n];
+			owners = new int[n];
+			for (int i = 0; i < n; i++) {
+				points[i] = pairs[i][0];
+				owners[i] = (int) pairs[i][1];
+			}
+		}
+	}
+
+	private volatile Ring ring = new Ring(new int[0]);
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public RouteInfo select(List<RouteInfo> routes, FlowKey flow, ServiceCounter counter) {
+		Ring r = getRing(routes);
+		int n = r.points.length;
+		if (n == 0) {
+			return null;
+		}
+		int i = Arrays.binarySearch(r.points, flow.hash64());
+		if (i < 0) {
+			i = -i - 1;
+		}
+		// Walk the ring clockwise until an available server is found
+		int[] tried = new int[r.servers.length];
+		int triedCount = 0;
+		for (int k = 0; k < n && triedCount < tried.length; k++) {
+			int owner = r.owners[(i + k) % n];
+			boolean seen = false;
+			for (int t = 0; t < triedCount; t++) {
+				if (tried[t] == owner) {
+					seen = true;
+					break;
+				}
+			}
+			if (seen) {
+				continue;
+			}
+			tried[triedCount++] = owner;
+			// The routes are sorted by number of hops: take the nearest
+			// attachment point of the server
+			for (RouteInfo route : routes) {
+				if (route.destination.getInt() == owner) {
+					if (counter.newService(route.destination)) {
+						return route;
+					}
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param routes The routes toward the servers of the group
+	 * @return The ring of the servers in routes, rebuilt only when the set of
+	 * servers changes
+	 */
+	private Ring getRing(List<RouteInfo> routes) {
+		int[] servers = new int[routes.size()];
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = routes.get(i).destination.getInt();
+		}
+		Arrays.sort(servers);
+		int distinct = 0;
+		for (int i = 0; i < servers.length; i++) {
+			if (i == 0 || servers[i] != servers[i - 1]) {
+				servers[distinct++] = servers[i];
+			}
+		}
+		servers = Arrays.copyOf(servers, distinct);
+		Ring r = ring;
+		if (!Arrays.equals(r.servers, servers)) {
+			r = new Ring(servers);
+			ring = r;
+		}
+		return r;
+	}
+}
@@ -0,0 +1,219 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The log of the decisions of the load balancer. The packet path only
+ * stores a record in a ring buffer, without locks and without I/O; a
+ * background task copies the new warnings to the controller log, and the
+ * other records only when its debug level is enabled. The last records of
+ * every level can be read through the REST API. A record is kept if its
+ * level is enabled and, except for the warnings, with a probability of one
+ * out of the sampling rate.
+ */
+public class DecisionLog {
+	protected static final Logger log = LoggerFactory.getLogger(DecisionLog.class);
+
+	public static final int DEFAULT_SIZE = 4096;
+	public static final int DEFAULT_SAMPLING = 1;
+	private static final long FLUSH_PERIOD = 1; // in seconds
+
+	/**
+	 * The level of a record. A level is enabled if it is not above the level
+	 * of the log
+	 */
+	public enum Level {
+		OFF, WARN, INFO, DEBUG
+	}
+
+	/**
+	 * A decision
+	 */
+	public static final class Record {
+		final long seq;
+		final long time; // in milliseconds since the epoch
+		final Level level;
+		final String kind;
+		final FlowKey flow;
+		final IPv4Address server;
+		final int hops;
+		final long latency; // in nanoseconds
+
+		Record(long seq, Level level, String kind, FlowKey flow, IPv4Address server, int hops, long latency) {
+			this.seq = seq;
+			this.time = System.currentTimeMillis();
+			this.level = level;
+			this.kind = kind;
+			this.flow = flow;
+			this.server = server;
+			this.hops = hops;
+			this.latency = latency;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + flow + " -> " + (server == null ? "none" : server.toString())
+					+ " hops " + hops + " in " + TimeUnit.NANOSECONDS.toMicros(latency) + " us";
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("time", time);
+			map.put("level", level.toString());
+			map.put("kind", kind);
+			map.put("flow", String.valueOf(flow));
+			map.put("server", server == null ? null : server.toString());
+			map.put("hops", hops);
+			map.put("latency-us", TimeUnit.NANOSECONDS.toMicros(latency));
+			return map;
+		}
+	}
+
+	private final AtomicReferenceArray<Record> ring;
+	private final int mask;
+	// The sequence number of the next record
+	private final AtomicLong next = new AtomicLong();
+	private volatile Level level;
+	private volatile int sampling;
+	// Only accessed by the flushing task
+	private long flushed;
+
+	/**
+	 * @param size The number of records kept, rounded up to a power of 2
+	 * @param level The most detailed level recorded
+	 * @param sampling One record out of sampling is kept
+	 */
+	public DecisionLog(int size, Level level, int sampling) {
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.ring = new AtomicReferenceArray<>(capacity);
+		this.mask = capacity - 1;
+		setLevel(level, sampling);
+	}
+
+	public void start(ScheduledExecutorService ses) {
+		ses.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					log.error("Exception while writing the decisions", e);
+				}
+			}
+		}, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Change what is recorded
+	 * @param level The most detailed level recorded
+	 * @param sampling One record out of sampling is kept
+	 */
+	public void setLevel(Level level, int sampling) {
+		if (sampling < 1) {
+			throw new IllegalArgumentException("The sampling rate must be at least 1");
+		}
+		this.level = level;
+		this.sampling = sampling;
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	public int getSampling() {
+		return sampling;
+	}
+
+	/**
+	 * @param l A level
+	 * @return true: if a record of level l may be recorded. Use it to skip
+	 * the preparation of a record which would be discarded
+	 */
+	public boolean isEnabled(Level l) {
+		return l != Level.OFF && l.compareTo(level) <= 0;
+	}
+
+	/**
+	 * Record a decision in the log of the load balancer, if any
+	 * @see #record(Level, String, FlowKey, IPv4Address, int, long)
+	 */
+	public static void decision(Level l, String kind, FlowKey flow, IPv4Address server, int hops, long latency) {
+		DecisionLog dl = LoadBalancer.decisionLog;
+		if (dl != null) {
+			dl.record(l, kind, flow, server, hops, latency);
+		}
+	}
+
+	/**
+	 * Record a decision, if its level is enabled and it is sampled
+	 * @param l The level of the record
+	 * @param kind The kind of decision
+	 * @param flow The flow key of the packet
+	 * @param server The chosen server, or null if none is available
+	 * @param hops The number of hops toward the server
+	 * @param latency The time taken by the decision, in nanoseconds
+	 */
+	public void record(Level l, String kind, FlowKey flow, IPv4Address server, int hops, long latency) {
+		if (!isEnabled(l)) {
+			return;
+		}
+		int s = sampling;
+		if (l != Level.WARN && s > 1 && ThreadLocalRandom.current().nextInt(s) != 0) {
+			return;
+		}
+		long seq = next.getAndIncrement();
+		ring.set((int) (seq & mask), new Record(seq, l, kind, flow, server, hops, latency));
+	}
+
+	/**
+	 * Write the new warnings in the controller log, and the other new
+	 * records at its debug level
+	 */
+	private void flush() {
+		boolean debug = log.isDebugEnabled();
+		long end = next.get();
+		// The records overwritten before being written are lost
+		long start = Math.max(flushed, end - mask - 1);
+		for (long seq = start; seq < end; seq++) {
+			Record r = ring.get((int) (seq & mask));
+			if (r == null || r.seq != seq) {
+				// Not stored yet, or already overwritten
+				continue;
+			}
+			if (r.level == Level.WARN) {
+				log.warn("{}", r);
+			} else if (debug) {
+				log.debug("{}", r);
+			}
+		}
+		flushed = end;
+	}
+
+	/**
+	 * @param n The maximum number of records
+	 * @return The last n records, from the most recent
+	 */
+	public List<Map<String, Object>> getLast(int n) {
+		long end = next.get();
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (long seq = end - 1; seq >= 0 && seq >= end - mask - 1 && list.size() < n; seq--) {
+			Record r = ring.get((int) (seq & mask));
+			if (r != null && r.seq == seq) {
+				list.add(r.toMap());
+			}
+		}
+		return list;
+	}
+}
@@ -0,0 +1,83 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.restlet.data.Form;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * It shows the last decisions of the load balancer, from the most recent:
+ * the flow, the chosen server, the number of hops toward the server and the
+ * time taken by the decision. Without "last" the last 100 are shown.
+ *
+ * http://localhost:8080/lb/controller/decisions/json?last=20
+ * GET message
+ *
+ * It sets what is recorded: the level is one of "off", "warn" (only the
+ * flows without a server), "info" (the choices of a server) and "debug"
+ * (also the unicast flows), and one decision out of "sampling" is kept.
+ * The warnings are never sampled.
+ *
+ * http://localhost:8080/lb/controller/decisions/json
+ * POST message
+ * Data: Custom
+ * MIME format: application/json
+ * Message format: {"level":"info", "sampling":10}
+ */
+public class Decisions extends ServerResource {
+	private static final int DEFAULT_LAST = 100;
+
+	@Get("json")
+	public List<Map<String, Object>> retrieve() {
+		Form form = getQuery();
+		String last = form.getFirstValue("last", true);
+		int n = DEFAULT_LAST;
+		if (last != null) {
+			try {
+				n = Math.max(0, Integer.parseInt(last));
+			} catch (NumberFormatException e) {
+				n = DEFAULT_LAST;
+			}
+		}
+
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.getDecisions(n);
+	}
+
+	@Post("application/json")
+	public String store(String fmJson){
+		if (fmJson == null)
+			return new String("Error: no attributes");
+		ObjectMapper mapper = new ObjectMapper();
+		DecisionLog.Level level = null;
+		int sampling = DecisionLog.DEFAULT_SAMPLING;
+		try {
+			JsonNode root = mapper.readTree(fmJson);
+			if (root.get("level") == null)
+				return new String("Error: invalid message");
+			level = DecisionLog.Level.valueOf(root.get("level").asText().toUpperCase());
+			JsonNode samplingNode = root.get("sampling");
+			if (samplingNode != null) {
+				if (!samplingNode.canConvertToInt())
+					return new String("Error: invalid sampling rate");
+				sampling = samplingNode.asInt();
+			}
+		} catch (IllegalArgumentException e) {
+			return new String("Error: invalid level");
+		} catch (IOException e) {
+			return new String("Error: invalid message");
+		}
+
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.setDecisionLog(level, sampling);
+	}
+}
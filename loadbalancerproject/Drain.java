@@ -0,0 +1,88 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * It handles the draining of the servers: a draining server takes no new
+ * connection and is unsubscribed when its flows end or when the timeout
+ * (in seconds) expires. Without "timeout" the default one is used.
+ * In the proactive and group modes the flows are not counted: the servers
+ * keep their buckets and are unsubscribed when the timeout expires.
+ * "undrain" puts the servers back in the selection.
+ *
+ * http://localhost:8080/lb/controller/drain/json
+ * POST message
+ * Data: Custom
+ * MIME format: application/json
+ * Message format: {"type":"drain", "anycast":"9.9.9.9", "physical":["10.0.0.1:1080"], "timeout":60}
+ * or {"type":"undrain", "anycast":"9.9.9.9", "physical":["10.0.0.1:1080"]}
+ *
+ * http://localhost:8080/lb/controller/drain/json
+ * GET message, the remaining flows of the draining servers
+ */
+public class Drain extends ServerResource {
+
+	@Get("json")
+	public List<Map<String, Object>> retrieve() {
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.getDrainStatus();
+	}
+
+	@Post("application/json")
+	public String store(String fmJson){
+		if (fmJson == null)
+			return new String("Error: no attributes");
+		ObjectMapper mapper = new ObjectMapper();
+		IPv4Address anyAddr = null;
+		ArrayList<ServerEntry> servers = new ArrayList<>();
+		String type = null;
+		int timeout = -1;
+		try {
+			JsonNode root = mapper.readTree(fmJson);
+			if (root.get("type") == null || root.get("anycast") == null || root.get("physical") == null)
+				return new String("Error: invalid message");
+			type = root.get("type").asText();
+			if (!type.equals("drain") && !type.equals("undrain"))
+				return new String("Error: invalid operation");
+			anyAddr = IPv4Address.of(root.get("anycast").asText());
+			JsonNode phyNode = root.get("physical");
+			if (phyNode.isArray()) {
+				for (JsonNode n : phyNode) {
+					String[] tmp = n.asText().split(":");
+					servers.add(new ServerEntry(IPv4Address.of(tmp[0]), Short.parseShort(tmp[1])));
+				}
+			} else { //only one element
+				String[] tmp = phyNode.asText().split(":");
+				servers.add(new ServerEntry(IPv4Address.of(tmp[0]), Short.parseShort(tmp[1])));
+			}
+			JsonNode timeoutNode = root.get("timeout");
+			if (timeoutNode != null) {
+				if (!timeoutNode.canConvertToInt() || timeoutNode.asInt() < 0)
+					return new String("Error: invalid timeout");
+				timeout = timeoutNode.asInt();
+			}
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return new String("Error: invalid message");
+		}
+
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		if (type.equals("undrain")) {
+			return lb.undrain(anyAddr, servers);
+		}
+		return lb.drain(anyAddr, servers, timeout);
+	}
+}
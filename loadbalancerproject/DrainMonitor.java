@@ -0,0 +1,157 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.util.SingletonTask;
+
+/**
+ * It follows the servers which are draining. A draining server takes no
+ * new connection, while the rules of its connections are left in place.
+ * When its last flow is removed, or when the drain deadline passes, the
+ * server is unsubscribed and the rules still pointing at it are deleted.
+ * The remaining flows are the active flows of the physical server, so a
+ * server which offers more than one service drains all of them.
+ * The flows are only counted by the packet-in path: with the rules
+ * installed in advance, the connections have no rule of their own and a
+ * draining server keeps its buckets until its deadline.
+ */
+public class DrainMonitor {
+	protected static final Logger log = LoggerFactory.getLogger(DrainMonitor.class);
+
+	public static final int DEFAULT_TIMEOUT = 300; // in seconds
+	private static final int CHECK_INTERVAL = 1; // in seconds
+
+	/**
+	 * The draining of a server of an anycast group
+	 */
+	private static final class Entry {
+		final IPv4Address anyAddr;
+		final ServerEntry server;
+		final long start; // in nanoseconds
+		final long deadline; // in nanoseconds
+
+		Entry(IPv4Address anyAddr, ServerEntry server, long start, long deadline) {
+			this.anyAddr = anyAddr;
+			this.server = server;
+			this.start = start;
+			this.deadline = deadline;
+		}
+	}
+
+	private final ILoadBalancerREST lb;
+	// Whether the flows of the servers are counted
+	private final boolean countsFlows;
+	private final SingletonTask task;
+	// <physical IP address, port> -> draining
+	private final ConcurrentHashMap<ServerEntry, Entry> drains = new ConcurrentHashMap<>();
+
+	/**
+	 * @param lb The load balancer, which unsubscribes the drained servers
+	 * @param ses The executor which runs the checks
+	 * @param countsFlows false: if the connections are balanced by rules
+	 * installed in advance, so that the servers are only unsubscribed at
+	 * their deadline
+	 */
+	public DrainMonitor(ILoadBalancerREST lb, ScheduledExecutorService ses, boolean countsFlows) {
+		this.lb = lb;
+		this.countsFlows = countsFlows;
+		this.task = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					check();
+				} catch (Exception e) {
+					log.error("Exception while checking the draining servers", e);
+				} finally {
+					if (!drains.isEmpty()) {
+						DrainMonitor.this.task.reschedule(CHECK_INTERVAL, TimeUnit.SECONDS);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start following the draining of some servers
+	 * @param anyAddr The anycast IP address of the group
+	 * @param servers The servers, already draining in the register
+	 * @param timeout The time after which the servers are unsubscribed even
+	 * if they still have flows, in seconds
+	 */
+	public void add(IPv4Address anyAddr, List<ServerEntry> servers, int timeout) {
+		long now = System.nanoTime();
+		for (ServerEntry server : servers) {
+			drains.put(server, new Entry(anyAddr, server, now, now + TimeUnit.SECONDS.toNanos(timeout)));
+		}
+		task.reschedule(CHECK_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stop following the draining of some servers
+	 * @param servers The servers
+	 */
+	public void remove(List<ServerEntry> servers) {
+		for (ServerEntry server : servers) {
+			drains.remove(server);
+		}
+	}
+
+	/**
+	 * Unsubscribe the servers which have no flow left, if the flows are
+	 * counted, or whose deadline has passed
+	 */
+	private void check() {
+		long now = System.nanoTime();
+		ServiceRegister.Snapshot snapshot = LoadBalancer.servReg.getSnapshot();
+		for (Entry d : drains.values()) {
+			ServiceRegister.Group g = snapshot.getGroup(d.anyAddr);
+			if (g == null || !g.getDraining().contains(d.server)) {
+				// Unsubscribed or no longer draining
+				drains.remove(d.server, d);
+				continue;
+			}
+			int remaining = remainingFlows(d.server.getPhyAddr());
+			if ((countsFlows && remaining == 0) || d.deadline - now <= 0) {
+				drains.remove(d.server, d);
+				log.info("Server {} of {} drained, {} flows left", new Object[] {d.server, d.anyAddr, remaining});
+				lb.unsubscribe(d.anyAddr, new ArrayList<ServerEntry>(Collections.singletonList(d.server)));
+			}
+		}
+	}
+
+	private static int remainingFlows(IPv4Address phyAddr) {
+		FlowStats f = LoadBalancer.servCounter.getFlowStats(phyAddr);
+		return f == null ? 0 : f.getActiveFlows();
+	}
+
+	/**
+	 * @return The progress of every draining server
+	 */
+	public List<Map<String, Object>> getStatus() {
+		long now = System.nanoTime();
+		List<Map<String, Object>> list = new ArrayList<>();
+		for (Entry d : drains.values()) {
+			Map<String, Object> status = new HashMap<String, Object>();
+			status.put("anycast", d.anyAddr.toString());
+			status.put("physical", d.server.toString());
+			if (countsFlows) {
+				status.put("remaining-flows", remainingFlows(d.server.getPhyAddr()));
+			}
+			status.put("elapsed", TimeUnit.NANOSECONDS.toSeconds(now - d.start));
+			status.put("time-left", Math.max(0, TimeUnit.NANOSECONDS.toSeconds(d.deadline - now)));
+			list.add(status);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,129 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.projectfloodlight.openflow.protocol.OFBarrierReply;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.types.DatapathId;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * The FlowMods pushed while handling one packet-in. They are accumulated per
+ * switch and written with a single write per switch. If barriers are enabled,
+ * the PacketOut is released only when every other switch of the batch has
+ * acknowledged its rules, so that the packet never overtakes them and causes
+ * a packet-in on a downstream switch. The wait never blocks the caller.
+ */
+public class FlowBatch {
+	/**
+	 * The messages of a switch
+	 */
+	private static final class Pending {
+		final IOFSwitch sw;
+		final List<OFMessage> msgs = new ArrayList<>();
+
+		Pending(IOFSwitch sw) {
+			this.sw = sw;
+		}
+	}
+
+	// DPID -> messages, in the order the switches were added
+	private final Map<DatapathId, Pending> pending = new LinkedHashMap<>();
+	private int size;
+
+	/**
+	 * Add a message to the batch of a switch
+	 * @param sw The switch
+	 * @param msg The message
+	 */
+	public void add(IOFSwitch sw, OFMessage msg) {
+		Pending p = pending.get(sw.getId());
+		if (p == null) {
+			p = new Pending(sw);
+			pending.put(sw.getId(), p);
+		}
+		p.msgs.add(msg);
+		size++;
+	}
+
+	/**
+	 * @return The number of messages in the batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Write the messages of every switch
+	 */
+	public void flush() {
+		for (Pending p : pending.values()) {
+			p.sw.write(p.msgs);
+		}
+		pending.clear();
+		size = 0;
+	}
+
+	/**
+	 * Write the messages of every switch, then the PacketOut
+	 * @param sw The switch which sends the packet
+	 * @param packetOut The PacketOut
+	 */
+	public void flush(final IOFSwitch sw, final OFMessage packetOut) {
+		if (!LoadBalancer.useBarrier) {
+			// The PacketOut follows the rules of its own switch
+			add(sw, packetOut);
+			flush();
+			return;
+		}
+		List<ListenableFuture<OFBarrierReply>> barriers = new ArrayList<>();
+		for (Pending p : pending.values()) {
+			p.sw.write(p.msgs);
+			if (!p.sw.getId().equals(sw.getId())) {
+				barriers.add(p.sw.writeRequest(p.sw.getOFFactory().buildBarrierRequest().build()));
+			}
+		}
+		pending.clear();
+		size = 0;
+		if (barriers.isEmpty()) {
+			sw.write(packetOut);
+			return;
+		}
+
+		// The PacketOut is sent once, either when all the barriers are
+		// acknowledged or when the wait times out
+		final AtomicBoolean released = new AtomicBoolean();
+		final Runnable release = new Runnable() {
+			@Override
+			public void run() {
+				if (released.compareAndSet(false, true)) {
+					sw.write(packetOut);
+				}
+			}
+		};
+		Futures.addCallback(Futures.successfulAsList(barriers), new FutureCallback<List<OFBarrierReply>>() {
+			@Override
+			public void onSuccess(List<OFBarrierReply> replies) {
+				release.run();
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				release.run();
+			}
+		});
+		if (!released.get()) {
+			LoadBalancer.scheduledExecutor.schedule(release, LoadBalancer.barrierTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * The 5-tuple <source IP, destination IP, protocol, source port,
+ * destination port> of a flow, kept as primitive values
+ */
+public final class FlowKey {
+	private final int srcIp;
+	private final int dstIp;
+	private final short proto;
+	private final int srcPort;
+	private final int dstPort;
+
+	public FlowKey(int srcIp, int dstIp, short proto, int srcPort, int dstPort) {
+		this.srcIp = srcIp;
+		this.dstIp = dstIp;
+		this.proto = proto;
+		this.srcPort = srcPort & 0xFFFF;
+		this.dstPort = dstPort & 0xFFFF;
+	}
+
+	/**
+	 * Build the key of a TCP or UDP packet. For other protocols the ports
+	 * are 0
+	 * @param ipv4 The IPv4 packet
+	 * @return The 5-tuple of the packet
+	 */
+	public static FlowKey of(IPv4 ipv4) {
+		int srcPort = 0;
+		int dstPort = 0;
+		if (ipv4.getProtocol() == IpProtocol.TCP) {
+			TCP tcp = (TCP) ipv4.getPayload();
+			srcPort = tcp.getSourcePort().getPort();
+			dstPort = tcp.getDestinationPort().getPort();
+		} else if (ipv4.getProtocol() == IpProtocol.UDP) {
+			UDP udp = (UDP) ipv4.getPayload();
+			srcPort = udp.getSourcePort().getPort();
+			dstPort = udp.getDestinationPort().getPort();
+		}
+		return new FlowKey(ipv4.getSourceAddress().getInt(), ipv4.getDestinationAddress().getInt(),
+				ipv4.getProtocol().getIpProtocolNumber(), srcPort, dstPort);
+	}
+
+	/**
+	 * Build the key of the exact TCP or UDP match of a rule
+	 * @param match The match of the rule
+	 * @return The 5-tuple of the match, or null if the match is not exact
+	 * on the addresses and the protocol
+	 */
+	public static FlowKey of(Match match) {
+		IPv4Address src = match.get(MatchField.IPV4_SRC);
+		IPv4Address dst = match.get(MatchField.IPV4_DST);
+		IpProtocol proto = match.get(MatchField.IP_PROTO);
+		if (src == null || dst == null || proto == null) {
+			return null;
+		}
+		TransportPort srcPort = null;
+		TransportPort dstPort = null;
+		if (proto == IpProtocol.TCP) {
+			srcPort = match.get(MatchField.TCP_SRC);
+			dstPort = match.get(MatchField.TCP_DST);
+		} else if (proto == IpProtocol.UDP) {
+			srcPort = match.get(MatchField.UDP_SRC);
+			dstPort = match.get(MatchField.UDP_DST);
+		}
+		return new FlowKey(src.getInt(), dst.getInt(), proto.getIpProtocolNumber(),
+				srcPort == null ? 0 : srcPort.getPort(), dstPort == null ? 0 : dstPort.getPort());
+	}
+
+	public int getSrcIp() {
+		return srcIp;
+	}
+
+	public int getDstIp() {
+		return dstIp;
+	}
+
+	public short getProto() {
+		return proto;
+	}
+
+	public int getSrcPort() {
+		return srcPort;
+	}
+
+	public int getDstPort() {
+		return dstPort;
+	}
+
+	/**
+	 * @return The source and destination addresses packed in a long
+	 */
+	public long getAddrs() {
+		return ((long) srcIp << 32) | (dstIp & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return The protocol and the ports packed in a long
+	 */
+	public long getPorts() {
+		return ((long) (proto & 0xFF) << 32) | ((long) srcPort << 16) | dstPort;
+	}
+
+	/**
+	 * @return A well mixed 64 bit hash of the 5-tuple, stable across
+	 * restarts of the controller
+	 */
+	public long hash64() {
+		return mix(getAddrs() * 0x9E3779B97F4A7C15L + getPorts());
+	}
+
+	/**
+	 * Finalizer of SplitMix64
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	@Override
+	public int hashCode() {
+		long h = hash64();
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof FlowKey)) {
+			return false;
+		}
+		FlowKey k = (FlowKey) o;
+		return srcIp == k.srcIp && dstIp == k.dstIp && proto == k.proto
+				&& srcPort == k.srcPort && dstPort == k.dstPort;
+	}
+
+	@Override
+	public String toString() {
+		return IPv4Address.of(srcIp) + ":" + srcPort + " -> " + IPv4Address.of(dstIp) + ":" + dstPort
+				+ " (" + proto + ")";
+	}
+}
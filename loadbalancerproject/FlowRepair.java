@@ -0,0 +1,463 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.projectfloodlight.openflow.protocol.OFFlowDeleteStrict;
+import org.projectfloodlight.openflow.protocol.OFFlowModifyStrict;
+import org.projectfloodlight.openflow.protocol.action.OFAction;
+import org.projectfloodlight.openflow.protocol.action.OFActions;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.protocol.oxm.OFOxms;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.UpdateOperation;
+import net.floodlightcontroller.routing.Path;
+import net.floodlightcontroller.topology.ITopologyListener;
+import net.floodlightcontroller.util.FlowModUtils;
+
+/**
+ * The repair of the connections toward the anycast groups after a link or
+ * a port fails. Every connection installed by the handlers is indexed by
+ * the ports its rules cross in both directions; when some ports fail, only
+ * the connections through them are routed again toward the same server,
+ * by rewriting their rules in place, before their packets reach the failed
+ * ports again. A connection whose server cannot be reached anymore loses
+ * its rules and its server, so that its next packet selects a new one.
+ * The packet-in threads track the connections without a common lock. The
+ * connections over the same paths share one set of ports, and the ports
+ * only index these sets: a failure looks up the sets through the failed
+ * ports, then collects their connections in a single pass.
+ */
+public class FlowRepair implements ITopologyListener {
+	protected static final Logger log = LoggerFactory.getLogger(FlowRepair.class);
+
+	/**
+	 * The ports crossed by the rules of the connections over the same paths
+	 */
+	private static final class Ports {
+		final NodePortTuple[] ports;
+		final int hash;
+		// The last time a connection was tracked over the paths
+		volatile long usedAt;
+
+		Ports(NodePortTuple[] ports) {
+			this.ports = ports;
+			this.hash = Arrays.hashCode(ports);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Ports && Arrays.equals(ports, ((Ports) obj).ports);
+		}
+	}
+
+	/**
+	 * A connection and the ports crossed by its rules
+	 */
+	private static final class Tracked {
+		final FlowKey flow;
+		final int groupIndex;
+		final IPv4Address server;
+		final DatapathId ingress;
+		// The routes of the handler, to recognize the same paths
+		final Path route;
+		final Path reverseRoute;
+		final Ports ports;
+		// Refreshed when the rules are installed again on the same paths
+		volatile long installedAt;
+
+		Tracked(FlowKey flow, int groupIndex, IPv4Address server, DatapathId ingress,
+				Path route, Path reverseRoute, Ports ports, long installedAt) {
+			this.flow = flow;
+			this.groupIndex = groupIndex;
+			this.server = server;
+			this.ingress = ingress;
+			this.route = route;
+			this.reverseRoute = reverseRoute;
+			this.ports = ports;
+			this.installedAt = installedAt;
+		}
+	}
+
+	private final int maxFlows;
+	private final ConcurrentHashMap<FlowKey, Tracked> flows = new ConcurrentHashMap<>();
+	// The shared sets of ports
+	private final ConcurrentHashMap<Ports, Ports> paths = new ConcurrentHashMap<>();
+	// Port -> sets of ports which contain it. The ports stay, they are
+	// bounded by the topology
+	private final ConcurrentHashMap<NodePortTuple, Set<Ports>> byPort = new ConcurrentHashMap<>();
+	// The failed ports not repaired yet
+	private final ConcurrentLinkedQueue<NodePortTuple> failed = new ConcurrentLinkedQueue<>();
+	private final SingletonTask task;
+
+	private final LongAdder repaired = new LongAdder();
+	private final LongAdder abandoned = new LongAdder();
+
+	/**
+	 * @param maxFlows The maximum number of connections tracked
+	 * @param ses The executor which runs the repairs
+	 */
+	public FlowRepair(int maxFlows, ScheduledExecutorService ses) {
+		this.maxFlows = maxFlows;
+		this.task = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					repair();
+				} catch (Exception e) {
+					log.error("Exception while repairing the connections", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Track the connection just installed by a handler, if the repair is
+	 * enabled
+	 * @param flow The 5-tuple of the client
+	 * @param groupIndex The index of the anycast group
+	 * @param server The physical IP address of the server
+	 * @param ingress The switch which received the first packet
+	 * @param route The route from the ingress switch to the server
+	 * @param reverseRoute The route from the server to the ingress switch,
+	 * or null
+	 */
+	public static void track(FlowKey flow, int groupIndex, IPv4Address server, DatapathId ingress,
+			Path route, Path reverseRoute) {
+		FlowRepair fr = LoadBalancer.flowRepair;
+		if (fr != null) {
+			fr.add(flow, groupIndex, server, ingress, route, reverseRoute, System.nanoTime());
+		}
+	}
+
+	/**
+	 * @return The ports crossed by the rules of a connection, including the
+	 * port of the server
+	 */
+	private static NodePortTuple[] ports(IPv4Address server, Path route, Path reverseRoute) {
+		List<NodePortTuple> ports = new ArrayList<>(route.getPath());
+		if (reverseRoute != null) {
+			for (NodePortTuple npt : reverseRoute.getPath()) {
+				if (!ports.contains(npt)) {
+					ports.add(npt);
+				}
+			}
+		}
+		IDevice dev = LoadBalancer.routeCache.getDevice(server);
+		if (dev != null) {
+			for (SwitchPort ap : dev.getAttachmentPoints()) {
+				NodePortTuple npt = new NodePortTuple(ap.getNodeId(), ap.getPortId());
+				if (ap.getNodeId().equals(route.getId().getDst()) && !ports.contains(npt)) {
+					ports.add(npt);
+				}
+			}
+		}
+		return ports.toArray(new NodePortTuple[ports.size()]);
+	}
+
+	private void add(FlowKey flow, int groupIndex, IPv4Address server, DatapathId ingress,
+			Path route, Path reverseRoute, long installedAt) {
+		Tracked old = flows.get(flow);
+		if (old != null && old.route == route && old.reverseRoute == reverseRoute
+				&& old.server.equals(server) && old.ingress.equals(ingress)) {
+			// Installed again on the same paths
+			old.installedAt = installedAt;
+			return;
+		}
+		if (old == null && flows.size() >= maxFlows) {
+			return;
+		}
+		Ports ports = intern(ports(server, route, reverseRoute), installedAt);
+		flows.put(flow, new Tracked(flow, groupIndex, server, ingress, route, reverseRoute,
+				ports, installedAt));
+	}
+
+	/**
+	 * @return The shared set of some ports, indexed by every port
+	 */
+	private Ports intern(NodePortTuple[] crossed, long now) {
+		Ports ports = new Ports(crossed);
+		Ports known = paths.putIfAbsent(ports, ports);
+		if (known == null) {
+			for (NodePortTuple npt : crossed) {
+				Set<Ports> s = byPort.get(npt);
+				if (s == null) {
+					Set<Ports> created = ConcurrentHashMap.newKeySet();
+					s = byPort.putIfAbsent(npt, created);
+					if (s == null) {
+						s = created;
+					}
+				}
+				s.add(ports);
+			}
+			known = ports;
+		}
+		known.usedAt = now;
+		return known;
+	}
+
+	/**
+	 * Stop tracking a connection, when its rules are removed
+	 * @param flow The 5-tuple of the client
+	 */
+	public void remove(FlowKey flow) {
+		flows.remove(flow);
+	}
+
+	/**
+	 * Stop tracking the connections whose rules reached their hard timeout,
+	 * and forget the paths which no connection crosses anymore
+	 */
+	public void expire() {
+		long now = System.nanoTime();
+		long age = TimeUnit.SECONDS.toNanos(LoadBalancer.HARD_TIMEOUT);
+		Set<Ports> live = new HashSet<>();
+		for (Tracked t : flows.values()) {
+			if (now - t.installedAt > age) {
+				flows.remove(t.flow, t);
+			} else {
+				live.add(t.ports);
+			}
+		}
+		Iterator<Ports> i = paths.keySet().iterator();
+		while (i.hasNext()) {
+			Ports p = i.next();
+			// A path just interned may not have its connection yet
+			if (!live.contains(p) && now - p.usedAt > age) {
+				i.remove();
+				for (NodePortTuple npt : p.ports) {
+					Set<Ports> s = byPort.get(npt);
+					if (s != null) {
+						s.remove(p);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The connections through some ports, which are not tracked
+	 * anymore
+	 */
+	private List<Tracked> take(Set<NodePortTuple> ports) {
+		Set<Ports> affected = new HashSet<>();
+		for (NodePortTuple p : ports) {
+			Set<Ports> s = byPort.get(p);
+			if (s != null) {
+				affected.addAll(s);
+			}
+		}
+		List<Tracked> list = new ArrayList<>();
+		if (affected.isEmpty()) {
+			return list;
+		}
+		for (Tracked t : flows.values()) {
+			if (affected.contains(t.ports) && flows.remove(t.flow, t)) {
+				list.add(t);
+			}
+		}
+		return list;
+	}
+
+	private void repair() {
+		Set<NodePortTuple> ports = new HashSet<>();
+		NodePortTuple p;
+		while ((p = failed.poll()) != null) {
+			ports.add(p);
+		}
+		List<Tracked> affected = take(ports);
+		if (affected.isEmpty()) {
+			return;
+		}
+		FlowBatch batch = new FlowBatch();
+		// The transit rules toward a server are shared by the connections of
+		// an ingress switch: ingress and server of the rules already pushed
+		Set<List<Object>> pushed = new HashSet<>();
+		int fixed = 0;
+		int moved = 0;
+		for (Tracked t : affected) {
+			IOFSwitch sw = LoadBalancer.switchService.getActiveSwitch(t.ingress);
+			if (sw == null) {
+				// The rules went with the switch
+				continue;
+			}
+			IDevice dev = LoadBalancer.routeCache.getDevice(t.server);
+			SwitchPort ap = attachmentPoint(dev, ports);
+			Path route = ap == null ? null : LoadBalancer.routeCache.getPath(t.ingress, ap.getNodeId());
+			if (route == null || !isUp(route, ports)) {
+				abandon(sw, t, batch);
+				moved++;
+				continue;
+			}
+			Path reverseRoute = LoadBalancer.routeCache.getPath(ap.getNodeId(), t.ingress);
+			if (reverseRoute != null && !isUp(reverseRoute, ports)) {
+				reverseRoute = null;
+			}
+
+			// The forward rule of the ingress switch sends the packets through
+			// the first port of the new route
+			IPv4Address client = IPv4Address.of(t.flow.getSrcIp());
+			IPv4Address anycast = IPv4Address.of(t.flow.getDstIp());
+			OFActions actions = sw.getOFFactory().actions();
+			OFOxms oxms = sw.getOFFactory().oxms();
+			List<OFAction> actionList = new ArrayList<OFAction>();
+			actionList.add(actions.buildSetField()
+					.setField(oxms.buildIpv4Dst().setValue(t.server).build())
+					.build());
+			actionList.add(actions.buildSetField()
+					.setField(oxms.buildEthDst().setValue(dev.getMACAddress()).build())
+					.build());
+			actionList.add(actions.buildOutput()
+					.setMaxLen(0xFFffFFff)
+					.setPort(RouteHandler.getOutPort(t.server, route, t.ingress))
+					.build());
+			OFFlowModifyStrict.Builder forward = sw.getOFFactory().buildFlowModifyStrict()
+					.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_FORWARD, t.groupIndex, t.server))
+					.setPriority(FlowModUtils.PRIORITY_MAX)
+					.setMatch(TcpUdpHandler.match(sw, t.flow.getProto(), client, anycast,
+							t.flow.getSrcPort(), t.flow.getDstPort()));
+			FlowModUtils.setActions(forward, actionList, sw);
+			batch.add(sw, forward.build());
+
+			// The following switches toward the server
+			Path next = RouteHandler.cutRouteHead(route);
+			if (next != null && pushed.add(Arrays.<Object>asList(t.ingress, t.server))) {
+				Match match = sw.getOFFactory().buildMatch()
+						.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+						.setExact(MatchField.IPV4_DST, t.server)
+						.build();
+				RouteHandler.pushRoute(t.server, next, match,
+						TcpUdpHandler.flowMod(sw, t.groupIndex, t.server), batch);
+			}
+
+			// The answers toward the ingress switch
+			if (reverseRoute != null) {
+				RouteHandler.pushPath(reverseRoute,
+						TcpUdpHandler.match(sw, t.flow.getProto(), t.server, client,
+								t.flow.getDstPort(), t.flow.getSrcPort()),
+						TcpUdpHandler.flowMod(sw, t.groupIndex, t.server), batch);
+			}
+			add(t.flow, t.groupIndex, t.server, t.ingress, route, reverseRoute, t.installedAt);
+			fixed++;
+		}
+		batch.flush();
+		repaired.add(fixed);
+		log.info("Repaired {} connections through {}, {} moved to a new server",
+				new Object[] {fixed, ports, moved});
+	}
+
+	/**
+	 * @return An attachment point of a device which did not fail, or null
+	 */
+	private static SwitchPort attachmentPoint(IDevice dev, Set<NodePortTuple> failedPorts) {
+		if (dev == null) {
+			return null;
+		}
+		for (SwitchPort ap : dev.getAttachmentPoints()) {
+			if (!failedPorts.contains(new NodePortTuple(ap.getNodeId(), ap.getPortId()))) {
+				return ap;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true: if the route crosses none of the failed ports
+	 */
+	private static boolean isUp(Path route, Set<NodePortTuple> failedPorts) {
+		for (NodePortTuple npt : route.getPath()) {
+			if (failedPorts.contains(npt)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delete the rules of a connection in its ingress switch and forget its
+	 * server, so that its next packet selects a reachable one
+	 */
+	private void abandon(IOFSwitch sw, Tracked t, FlowBatch batch) {
+		IPv4Address client = IPv4Address.of(t.flow.getSrcIp());
+		IPv4Address anycast = IPv4Address.of(t.flow.getDstIp());
+		OFFlowDeleteStrict forward = sw.getOFFactory().buildFlowDeleteStrict()
+				.setPriority(FlowModUtils.PRIORITY_MAX)
+				.setMatch(TcpUdpHandler.match(sw, t.flow.getProto(), client, anycast,
+						t.flow.getSrcPort(), t.flow.getDstPort()))
+				.build();
+		OFFlowDeleteStrict reverse = sw.getOFFactory().buildFlowDeleteStrict()
+				.setPriority(FlowModUtils.PRIORITY_MAX)
+				.setMatch(TcpUdpHandler.match(sw, t.flow.getProto(), t.server, client,
+						t.flow.getDstPort(), t.flow.getSrcPort()))
+				.build();
+		batch.add(sw, forward);
+		batch.add(sw, reverse);
+		LoadBalancer.connTable.remove(t.flow);
+		abandoned.increment();
+	}
+
+	/**
+	 * @return The number of connections tracked, repaired and moved to a new
+	 * server
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		stats.put("repair-tracked", (long) flows.size());
+		stats.put("repair-repaired", repaired.sum());
+		stats.put("repair-abandoned", abandoned.sum());
+		return stats;
+	}
+
+	// ITopologyListener
+
+	@Override
+	public void topologyChanged(List<LDUpdate> linkUpdates) {
+		boolean any = false;
+		for (LDUpdate u : linkUpdates) {
+			if (u.getOperation() == UpdateOperation.LINK_REMOVED
+					|| u.getOperation() == UpdateOperation.PORT_DOWN
+					|| u.getOperation() == UpdateOperation.TUNNEL_PORT_REMOVED) {
+				if (u.getSrc() != null && !u.getSrc().equals(DatapathId.NONE)) {
+					failed.add(new NodePortTuple(u.getSrc(), u.getSrcPort()));
+					any = true;
+				}
+				if (u.getDst() != null && !u.getDst().equals(DatapathId.NONE)) {
+					failed.add(new NodePortTuple(u.getDst(), u.getDstPort()));
+					any = true;
+				}
+			}
+		}
+		if (any) {
+			// Off the thread of the topology, but right away
+			task.reschedule(0, TimeUnit.MILLISECONDS);
+		}
+	}
+}
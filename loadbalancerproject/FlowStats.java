@@ -0,0 +1,120 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The flows of a server, as seen from the rules installed by the load
+ * balancer: a flow is active from the installation of its rule to the
+ * FLOW_REMOVED message of the switch, which also reports the packets and
+ * the bytes it moved. The throughput of the server is the moving average of
+ * the rates measured by the FlowStatsPoller
+ */
+public class FlowStats {
+	private final AtomicInteger activeFlows = new AtomicInteger();
+	private final LongAdder flows = new LongAdder();
+	private final LongAdder packets = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	// Only written by the poller
+	private volatile double byteRate; // in bytes per second
+	private volatile double packetRate; // in packets per second
+	// The throughput above which the server is busy, 0 if not set
+	private volatile long maxByteRate; // in bytes per second
+
+	/**
+	 * Register the installation of the rule of a new flow
+	 */
+	public void flowInstalled() {
+		activeFlows.incrementAndGet();
+		flows.increment();
+	}
+
+	/**
+	 * Register the removal of the rule of a flow
+	 * @param packetCount The number of packets matched by the rule
+	 * @param byteCount The number of bytes matched by the rule
+	 */
+	public void flowRemoved(long packetCount, long byteCount) {
+		// A rule replaced by an identical one is removed only once
+		int active;
+		do {
+			active = activeFlows.get();
+		} while (active > 0 && !activeFlows.compareAndSet(active, active - 1));
+		addTraffic(packetCount, byteCount);
+	}
+
+	/**
+	 * Register the traffic of a rule which does not count as a flow
+	 * @param packetCount The number of packets matched by the rule
+	 * @param byteCount The number of bytes matched by the rule
+	 */
+	public void addTraffic(long packetCount, long byteCount) {
+		packets.add(packetCount);
+		bytes.add(byteCount);
+	}
+
+	/**
+	 * @return The number of flows whose rule is installed
+	 */
+	public int getActiveFlows() {
+		return activeFlows.get();
+	}
+
+	/**
+	 * @return The number of flows installed since the start
+	 */
+	public long getFlows() {
+		return flows.sum();
+	}
+
+	/**
+	 * @return The number of packets of the removed rules
+	 */
+	public long getPackets() {
+		return packets.sum();
+	}
+
+	/**
+	 * @return The number of bytes of the removed rules
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * Add a sample of the throughput to the moving averages
+	 * @param bytesPerSec The bytes per second measured in the last period
+	 * @param packetsPerSec The packets per second measured in the last period
+	 * @param alpha The weight of the sample, between 0 and 1
+	 */
+	public void updateRates(double bytesPerSec, double packetsPerSec, double alpha) {
+		byteRate = alpha * bytesPerSec + (1 - alpha) * byteRate;
+		packetRate = alpha * packetsPerSec + (1 - alpha) * packetRate;
+	}
+
+	/**
+	 * @return The moving average of the bytes per second
+	 */
+	public double getByteRate() {
+		return byteRate;
+	}
+
+	/**
+	 * @return The moving average of the packets per second
+	 */
+	public double getPacketRate() {
+		return packetRate;
+	}
+
+	/**
+	 * @return The throughput above which the server is busy, in bytes per
+	 * second, 0 if not set
+	 */
+	public long getMaxByteRate() {
+		return maxByteRate;
+	}
+
+	public void setMaxByteRate(long maxByteRate) {
+		this.maxByteRate = maxByteRate;
+	}
+}
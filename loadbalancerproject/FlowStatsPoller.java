@@ -0,0 +1,247 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFFlowStatsEntry;
+import org.projectfloodlight.openflow.protocol.OFFlowStatsReply;
+import org.projectfloodlight.openflow.protocol.OFFlowStatsRequest;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFGroup;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TableId;
+import org.projectfloodlight.openflow.types.U64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.core.util.SingletonTask;
+
+/**
+ * It periodically polls the statistics of the rules of the connections
+ * (the rules with the cookie of the load balancer) from the switches which
+ * carry them, and feeds the throughput of every server into its moving
+ * averages. The requests are sent to all the switches at once and the
+ * replies are aggregated when the last one arrives, so no thread waits for
+ * the switches.
+ */
+public class FlowStatsPoller {
+	protected static final Logger log = LoggerFactory.getLogger(FlowStatsPoller.class);
+
+	public static final int DEFAULT_INTERVAL = 5; // in seconds
+	public static final double DEFAULT_ALPHA = 0.3;
+
+	/**
+	 * A rule of a switch, to compute the traffic since the previous poll
+	 */
+	private static final class RuleKey {
+		final long dpid;
+		final long cookie;
+		final Match match;
+
+		RuleKey(long dpid, long cookie, Match match) {
+			this.dpid = dpid;
+			this.cookie = cookie;
+			this.match = match;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (31 * (31 * dpid + cookie)) + match.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RuleKey)) {
+				return false;
+			}
+			RuleKey k = (RuleKey) o;
+			return dpid == k.dpid && cookie == k.cookie && match.equals(k.match);
+		}
+	}
+
+	private final SingletonTask task;
+	private final int interval; // in seconds
+	private final double alpha;
+	// The switches which carry rules of connections -> last time (in
+	// nanoseconds) a rule was installed there
+	private final ConcurrentHashMap<DatapathId, Long> switches = new ConcurrentHashMap<>();
+
+	// Only accessed by the aggregation of the replies
+	private Map<RuleKey, long[]> lastCounters = new HashMap<>();
+	private long lastPoll;
+	private volatile ListenableFuture<List<List<OFFlowStatsReply>>> pending;
+
+	/**
+	 * @param ses The executor which runs the polls and the aggregation
+	 * @param interval The interval between two polls, in seconds
+	 * @param alpha The weight of the last sample in the moving averages
+	 */
+	public FlowStatsPoller(final ScheduledExecutorService ses, int interval, double alpha) {
+		if (interval < 1 || alpha <= 0 || alpha > 1) {
+			throw new IllegalArgumentException("Invalid interval or weight");
+		}
+		this.interval = interval;
+		this.alpha = alpha;
+		this.task = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					poll(ses);
+				} catch (Exception e) {
+					log.error("Exception while polling the flow statistics", e);
+				} finally {
+					FlowStatsPoller.this.task.reschedule(FlowStatsPoller.this.interval, TimeUnit.SECONDS);
+				}
+			}
+		});
+	}
+
+	public void start() {
+		task.reschedule(interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Register a switch where the rules of a connection have been installed
+	 * @param dpid The switch
+	 */
+	public void addSwitch(DatapathId dpid) {
+		switches.put(dpid, System.nanoTime());
+	}
+
+	private void poll(ScheduledExecutorService ses) {
+		ListenableFuture<List<List<OFFlowStatsReply>>> previous = pending;
+		if (previous != null && !previous.isDone()) {
+			// A switch did not answer within the interval
+			previous.cancel(true);
+		}
+		final List<DatapathId> polled = new ArrayList<>();
+		List<ListenableFuture<List<OFFlowStatsReply>>> replies = new ArrayList<>();
+		for (DatapathId dpid : switches.keySet()) {
+			IOFSwitch sw = LoadBalancer.switchService.getActiveSwitch(dpid);
+			if (sw == null) {
+				switches.remove(dpid);
+				continue;
+			}
+			polled.add(dpid);
+			replies.add(sw.writeStatsRequest(buildRequest(sw.getOFFactory())));
+		}
+		final long now = System.nanoTime();
+		final ListenableFuture<List<List<OFFlowStatsReply>>> all = Futures.successfulAsList(replies);
+		pending = all;
+		Futures.addCallback(all, new FutureCallback<List<List<OFFlowStatsReply>>>() {
+			@Override
+			public void onSuccess(List<List<OFFlowStatsReply>> result) {
+				aggregate(polled, result, now);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				log.debug("Flow statistics not received: {}", t.toString());
+			}
+		}, ses);
+	}
+
+	/**
+	 * @return The request of the rules with the cookie of the load balancer
+	 */
+	private static OFFlowStatsRequest buildRequest(OFFactory factory) {
+		OFFlowStatsRequest.Builder b = factory.buildFlowStatsRequest()
+				.setMatch(factory.buildMatch().build())
+				.setOutPort(OFPort.ANY)
+				.setTableId(TableId.ALL);
+		if (factory.getVersion().compareTo(OFVersion.OF_10) > 0) {
+			// OpenFlow 1.0 cannot filter by cookie: the replies are filtered
+			// when aggregated
+			b.setOutGroup(OFGroup.ANY)
+				.setCookie(AppCookie.makeCookie(LoadBalancer.LB_APP_ID, 0))
+				.setCookieMask(AppCookie.getAppFieldMask());
+		}
+		return b.build();
+	}
+
+	/**
+	 * Compute the traffic of every server since the previous poll and add it
+	 * to the moving averages
+	 * @param polled The switches, in the order of the replies
+	 * @param result The replies of every switch, null for the switches which
+	 * did not answer
+	 * @param now The time of the poll, in nanoseconds
+	 */
+	private synchronized void aggregate(List<DatapathId> polled, List<List<OFFlowStatsReply>> result, long now) {
+		Map<RuleKey, long[]> counters = new HashMap<>();
+		// Physical IP address (as int) -> {bytes, packets}
+		LongKeyedTable<long[]> samples = new LongKeyedTable<>();
+		for (int i = 0; i < polled.size(); i++) {
+			List<OFFlowStatsReply> replies = result.get(i);
+			if (replies == null) {
+				// Keep the counters of the switch for the next poll
+				for (Map.Entry<RuleKey, long[]> e : lastCounters.entrySet()) {
+					if (e.getKey().dpid == polled.get(i).getLong()) {
+						counters.put(e.getKey(), e.getValue());
+					}
+				}
+				continue;
+			}
+			boolean carriesRules = false;
+			long dpid = polled.get(i).getLong();
+			for (OFFlowStatsReply reply : replies) {
+				for (OFFlowStatsEntry e : reply.getEntries()) {
+					U64 cookie = e.getCookie();
+					if (AppCookie.extractApp(cookie) != LoadBalancer.LB_APP_ID) {
+						continue;
+					}
+					carriesRules = true;
+					// The traffic of a connection is counted once, at the
+					// ingress switch
+					long kind = LoadBalancer.getCookieKind(cookie);
+					if (kind != LoadBalancer.COOKIE_FORWARD && kind != LoadBalancer.COOKIE_REVERSE) {
+						continue;
+					}
+					long bytes = e.getByteCount().getValue();
+					long packets = e.getPacketCount().getValue();
+					RuleKey key = new RuleKey(dpid, cookie.getValue(), e.getMatch());
+					counters.put(key, new long[] {bytes, packets});
+					// A rule which was not there at the previous poll, or
+					// which has been replaced, counts from 0
+					long[] last = lastCounters.get(key);
+					if (last != null && last[0] <= bytes && last[1] <= packets) {
+						bytes -= last[0];
+						packets -= last[1];
+					}
+					long server = LoadBalancer.getCookieServer(cookie).getInt();
+					long[] sample = samples.get(server);
+					if (sample == null) {
+						sample = new long[2];
+						samples.put(server, sample);
+					}
+					sample[0] += bytes;
+					sample[1] += packets;
+				}
+			}
+			Long installed = switches.get(polled.get(i));
+			if (!carriesRules && installed != null && installed - now < 0) {
+				// All the rules of the switch expired, and no rule has been
+				// installed since the poll
+				switches.remove(polled.get(i), installed);
+			}
+		}
+		double seconds = lastPoll == 0 ? interval : (now - lastPoll) / 1e9;
+		lastPoll = now;
+		lastCounters = counters;
+		LoadBalancer.servCounter.updateRates(samples, seconds, alpha);
+	}
+}
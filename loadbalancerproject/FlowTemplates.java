@@ -0,0 +1,239 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.action.OFAction;
+import org.projectfloodlight.openflow.protocol.action.OFActions;
+import org.projectfloodlight.openflow.protocol.instruction.OFInstruction;
+import org.projectfloodlight.openflow.protocol.oxm.OFOxms;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+
+/**
+ * Prebuilt actions and instructions of the rules of the load balancer.
+ * The OpenFlow objects are immutable and only depend on the version of the
+ * switch and on the addresses and the port they carry, so they are built
+ * once and shared by the handlers, which only build the matches.
+ * The rewrites of the servers are kept per anycast group and dropped when
+ * the members of the group change. The outputs are kept per port.
+ */
+public class FlowTemplates {
+	/**
+	 * The server of a group, as seen by the switches of a version
+	 */
+	private static class ServerKey {
+		private final OFVersion version;
+		private final IPv4Address server;
+		private final MacAddress serverMac;
+
+		private ServerKey(OFVersion version, IPv4Address server, MacAddress serverMac) {
+			this.version = version;
+			this.server = server;
+			this.serverMac = serverMac;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = version.hashCode();
+			result = 31 * result + server.hashCode();
+			result = 31 * result + (serverMac == null ? 0 : serverMac.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof ServerKey)) {
+				return false;
+			}
+			ServerKey other = (ServerKey) obj;
+			return version == other.version && server.equals(other.server)
+					&& (serverMac == null ? other.serverMac == null : serverMac.equals(other.serverMac));
+		}
+	}
+
+	/**
+	 * The rewrites between an anycast group and one of its servers
+	 */
+	private static class Rewrites {
+		// Toward the server: its IP address and, if known, its MAC address
+		private final List<OFAction> toServer;
+		// From the server: the anycast address and the anycast MAC address
+		private final List<OFAction> fromServer;
+
+		private Rewrites(OFFactory factory, IPv4Address anycast, IPv4Address server, MacAddress serverMac) {
+			OFActions actions = factory.actions();
+			OFOxms oxms = factory.oxms();
+			List<OFAction> to = new ArrayList<OFAction>(2);
+			to.add(actions.buildSetField()
+					.setField(oxms.buildIpv4Dst().setValue(server).build())
+					.build());
+			List<OFAction> from = new ArrayList<OFAction>(2);
+			from.add(actions.buildSetField()
+					.setField(oxms.buildIpv4Src().setValue(anycast).build())
+					.build());
+			if (serverMac != null) {
+				to.add(actions.buildSetField()
+						.setField(oxms.buildEthDst().setValue(serverMac).build())
+						.build());
+				from.add(actions.buildSetField()
+						.setField(oxms.buildEthSrc().setValue(anycastMacFor(serverMac)).build())
+						.build());
+			}
+			this.toServer = Collections.unmodifiableList(to);
+			this.fromServer = Collections.unmodifiableList(from);
+		}
+	}
+
+	/**
+	 * The outputs of the switches of a version
+	 */
+	private static class Outputs {
+		private final ConcurrentMap<OFPort, List<OFAction>> actions =
+				new ConcurrentHashMap<OFPort, List<OFAction>>();
+		private final ConcurrentMap<OFPort, List<OFInstruction>> instructions =
+				new ConcurrentHashMap<OFPort, List<OFInstruction>>();
+	}
+
+	private final ConcurrentMap<IPv4Address, ConcurrentMap<ServerKey, Rewrites>> groups =
+			new ConcurrentHashMap<IPv4Address, ConcurrentMap<ServerKey, Rewrites>>();
+	// Indexed by the ordinal of the version
+	private final Outputs[] outputs;
+
+	public FlowTemplates() {
+		outputs = new Outputs[OFVersion.values().length];
+		for (int i = 0; i < outputs.length; i++) {
+			outputs[i] = new Outputs();
+		}
+	}
+
+	/**
+	 * @param factory The factory of the switch
+	 * @param anycast The anycast address of the group
+	 * @param server The physical IP address of the server
+	 * @param serverMac The MAC address of the server, or null if unknown
+	 * @return The actions which rewrite the destination of a packet toward
+	 * the group with the server
+	 */
+	public List<OFAction> toServer(OFFactory factory, IPv4Address anycast, IPv4Address server,
+			MacAddress serverMac) {
+		return getRewrites(factory, anycast, server, serverMac).toServer;
+	}
+
+	/**
+	 * @param factory The factory of the switch
+	 * @param anycast The anycast address of the group
+	 * @param server The physical IP address of the server
+	 * @param serverMac The MAC address of the server
+	 * @return The actions which rewrite the source of an answer of the
+	 * server with the group
+	 */
+	public List<OFAction> fromServer(OFFactory factory, IPv4Address anycast, IPv4Address server,
+			MacAddress serverMac) {
+		return getRewrites(factory, anycast, server, serverMac).fromServer;
+	}
+
+	private Rewrites getRewrites(OFFactory factory, IPv4Address anycast, IPv4Address server,
+			MacAddress serverMac) {
+		ConcurrentMap<ServerKey, Rewrites> group = groups.get(anycast);
+		if (group == null) {
+			ConcurrentMap<ServerKey, Rewrites> created = new ConcurrentHashMap<ServerKey, Rewrites>();
+			group = groups.putIfAbsent(anycast, created);
+			if (group == null) {
+				group = created;
+			}
+		}
+		ServerKey key = new ServerKey(factory.getVersion(), server, serverMac);
+		Rewrites rewrites = group.get(key);
+		if (rewrites == null) {
+			// Built twice at worst, the copies are equal
+			rewrites = new Rewrites(factory, anycast, server, serverMac);
+			group.put(key, rewrites);
+		}
+		return rewrites;
+	}
+
+	/**
+	 * @param factory The factory of the switch
+	 * @param port The output port
+	 * @return The list of the output action to the port
+	 */
+	public List<OFAction> outputActions(OFFactory factory, OFPort port) {
+		Outputs out = outputs[factory.getVersion().ordinal()];
+		List<OFAction> actions = out.actions.get(port);
+		if (actions == null) {
+			actions = Collections.singletonList((OFAction) factory.actions().buildOutput()
+					.setMaxLen(0xFFffFFff)
+					.setPort(port)
+					.build());
+			out.actions.put(port, actions);
+		}
+		return actions;
+	}
+
+	/**
+	 * @param factory The factory of the switch
+	 * @param port The output port
+	 * @return The output action to the port
+	 */
+	public OFAction output(OFFactory factory, OFPort port) {
+		return outputActions(factory, port).get(0);
+	}
+
+	/**
+	 * @param factory The factory of the switch, OpenFlow 1.1 or later
+	 * @param port The output port
+	 * @return The list of the instruction which applies the output action
+	 * to the port
+	 */
+	public List<OFInstruction> outputInstructions(OFFactory factory, OFPort port) {
+		Outputs out = outputs[factory.getVersion().ordinal()];
+		List<OFInstruction> instructions = out.instructions.get(port);
+		if (instructions == null) {
+			instructions = Collections.singletonList((OFInstruction) factory.instructions().buildApplyActions()
+					.setActions(outputActions(factory, port))
+					.build());
+			out.instructions.put(port, instructions);
+		}
+		return instructions;
+	}
+
+	/**
+	 * Drop the rewrites of a group, when its members change
+	 * @param anycast The anycast address of the group
+	 */
+	public void invalidateGroup(IPv4Address anycast) {
+		groups.remove(anycast);
+	}
+
+	/**
+	 * @param rewrites The prebuilt rewrites
+	 * @param output The output action
+	 * @return A new list of the rewrites followed by the output
+	 */
+	public static List<OFAction> append(List<OFAction> rewrites, OFAction output) {
+		List<OFAction> list = new ArrayList<OFAction>(rewrites.size() + 1);
+		list.addAll(rewrites);
+		list.add(output);
+		return list;
+	}
+
+	/**
+	 * @param serverMac The MAC address of a server
+	 * @return The MAC address used as source of the answers of the server
+	 */
+	static MacAddress anycastMacFor(MacAddress serverMac) {
+		return serverMac.equals(LoadBalancer.anycastMacAddress[0]) ?
+				LoadBalancer.anycastMacAddress[1] :
+				LoadBalancer.anycastMacAddress[0];
+	}
+}
@@ -0,0 +1,496 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.protocol.OFBucket;
+import org.projectfloodlight.openflow.protocol.OFBucketCounter;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFGroupStatsEntry;
+import org.projectfloodlight.openflow.protocol.OFGroupStatsReply;
+import org.projectfloodlight.openflow.protocol.OFGroupType;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.action.OFAction;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.OFBufferId;
+import org.projectfloodlight.openflow.types.OFGroup;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.topology.ITopologyListener;
+import net.floodlightcontroller.util.FlowModUtils;
+
+/**
+ * Group mode of the load balancer. On every switch which supports groups
+ * (OpenFlow 1.3 and later), every anycast address has a SELECT group whose
+ * buckets rewrite the destination with one server and send the packet toward
+ * it, and a permanent rule sends the traffic toward the anycast address to
+ * the group. The switch hashes the flows over the buckets, weighted by the
+ * capacity and the load of the servers. No packet-in reaches the controller,
+ * so the load of a server is measured by the byte counters of its buckets,
+ * polled on every switch at every refresh of the weights: a server which
+ * receives more than the share of the traffic of its group given by its
+ * capacity has a lower weight.
+ * The switches which do not support groups have no rule toward the anycast
+ * addresses, so their requests keep on being balanced by the packet-in path.
+ * The rules carry the transit cookie of their group, and of their server for
+ * the downstream rules, so that they are deleted with the rules of a server
+ * which leaves the group, or of a removed group.
+ */
+public class GroupBalancer implements ITopologyListener {
+	protected static final Logger log = LoggerFactory.getLogger(GroupBalancer.class);
+
+	public static final int PRIORITY = FlowModUtils.PRIORITY_HIGH;
+	// The weight of an idle server with the highest capacity
+	private static final int MAX_WEIGHT = 10;
+	// Group IDs used by the load balancer
+	private static final int GROUP_ID_BASE = 0x4C420000;
+	// Topology changes come in bursts
+	private static final long TOPOLOGY_DELAY = 200; // in milliseconds
+	// The weight of the last sample in the moving averages of the traffic
+	private static final double ALPHA = 0.5;
+
+	/**
+	 * The group of an anycast address installed on a switch
+	 */
+	private static final class Installed {
+		final List<RouteInfo> routes;
+		final int[] weights;
+		// The server of every bucket, in the order of the buckets
+		final IPv4Address[] bucketServers;
+		// The byte counters of the buckets at the last poll, null before the
+		// first one
+		long[] lastBytes;
+
+		Installed(List<RouteInfo> routes, int[] weights, IPv4Address[] bucketServers) {
+			this.routes = routes;
+			this.weights = weights;
+			this.bucketServers = bucketServers;
+		}
+
+		boolean sameAs(List<RouteInfo> routes, int[] weights) {
+			if (this.routes.size() != routes.size() || !Arrays.equals(this.weights, weights)) {
+				return false;
+			}
+			// The rankings are rebuilt by every topology or device event
+			for (int i = 0; i < routes.size(); i++) {
+				if (!this.routes.get(i).sameRoute(routes.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean contains(RouteInfo route) {
+			for (RouteInfo r : routes) {
+				if (r.sameRoute(route)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The groups installed on a switch. A switch which reconnects has a new
+	 * IOFSwitch, and its tables have been cleared
+	 */
+	private static final class SwitchState {
+		final IOFSwitch sw;
+		// Anycast IP address (as int) -> installed group
+		final Map<Integer, Installed> groups = new HashMap<>();
+		// The time of the last reply to the group statistics, in nanoseconds
+		long lastStats;
+
+		SwitchState(IOFSwitch sw) {
+			this.sw = sw;
+		}
+	}
+
+	/**
+	 * The reply of a switch to the group statistics
+	 */
+	private static final class StatsReply {
+		final List<OFGroupStatsReply> replies;
+		final long time; // in nanoseconds
+
+		StatsReply(List<OFGroupStatsReply> replies, long time) {
+			this.replies = replies;
+			this.time = time;
+		}
+	}
+
+	private final SingletonTask task;
+	private final ScheduledExecutorService ses;
+	private final long refreshInterval; // in milliseconds
+	// Only accessed by the task
+	private final Map<DatapathId, SwitchState> installed = new HashMap<>();
+	// Physical IP address (as int) -> moving average of the bytes per second
+	// toward the server, only accessed by the task
+	private final Map<Integer, Double> byteRates = new HashMap<>();
+	// Set by the replies of the switches, taken by the task
+	private final ConcurrentHashMap<DatapathId, StatsReply> statsReplies = new ConcurrentHashMap<>();
+	// Anycast IP address (as int) -> group ID, the same on every switch
+	private final Map<Integer, Integer> groupIds = new HashMap<>();
+	private int nextGroupId = GROUP_ID_BASE;
+
+	/**
+	 * @param ses The executor which runs the installation task
+	 * @param refreshInterval The interval between two updates of the weights,
+	 * in milliseconds
+	 */
+	public GroupBalancer(ScheduledExecutorService ses, long refreshInterval) {
+		this.ses = ses;
+		this.refreshInterval = refreshInterval;
+		this.task = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					install();
+				} finally {
+					// The load of the servers changes over time
+					GroupBalancer.this.task.reschedule(GroupBalancer.this.refreshInterval, TimeUnit.MILLISECONDS);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param sw A switch
+	 * @return true: if the switch is balanced by the SELECT groups
+	 */
+	public static boolean supportsGroups(IOFSwitch sw) {
+		return sw.getOFFactory().getVersion().compareTo(OFVersion.OF_13) >= 0;
+	}
+
+	/**
+	 * Bring the groups of all the switches in line with the register
+	 */
+	public void update() {
+		task.reschedule(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void topologyChanged(List<LDUpdate> linkUpdates) {
+		task.reschedule(TOPOLOGY_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	private void install() {
+		ServiceRegister.Snapshot snapshot = LoadBalancer.servReg.getSnapshot();
+		updateRates();
+		Set<DatapathId> active = new HashSet<>();
+		for (DatapathId dpid : LoadBalancer.switchService.getAllSwitchDpids()) {
+			IOFSwitch sw = LoadBalancer.switchService.getActiveSwitch(dpid);
+			if (sw == null || !supportsGroups(sw)) {
+				continue;
+			}
+			active.add(dpid);
+			SwitchState state = installed.get(dpid);
+			if (state == null || state.sw != sw) {
+				state = new SwitchState(sw);
+				installed.put(dpid, state);
+			}
+			List<OFMessage> msgs = new ArrayList<>();
+			for (ServiceRegister.Group g : snapshot.getGroups()) {
+				installGroup(state, g, msgs);
+			}
+			// Remove the groups which are not registered anymore
+			Iterator<Integer> i = state.groups.keySet().iterator();
+			while (i.hasNext()) {
+				IPv4Address anyAddr = IPv4Address.of(i.next());
+				if (snapshot.getGroup(anyAddr) == null) {
+					removeGroup(sw, anyAddr, msgs);
+					i.remove();
+				}
+			}
+			if (!msgs.isEmpty()) {
+				sw.write(msgs);
+			}
+			if (!state.groups.isEmpty()) {
+				requestStats(sw);
+			}
+		}
+		installed.keySet().retainAll(active);
+		statsReplies.keySet().retainAll(active);
+		// Release the IDs of the groups which are not registered anymore
+		Iterator<Integer> i = groupIds.keySet().iterator();
+		while (i.hasNext()) {
+			if (snapshot.getGroup(IPv4Address.of(i.next())) == null) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Add or modify the SELECT group of an anycast address on a switch
+	 * @param state The groups installed on the switch
+	 * @param group The anycast group
+	 * @param msgs The messages to send to the switch
+	 */
+	private void installGroup(SwitchState state, ServiceRegister.Group group, List<OFMessage> msgs) {
+		IOFSwitch sw = state.sw;
+		int anyAddr = group.getAnyAddr().getInt();
+		List<RouteInfo> servers = ProactiveBalancer.nearestServers(sw, group);
+		int[] weights = weights(servers);
+		Installed previous = state.groups.get(anyAddr);
+		if (previous != null && previous.sameAs(servers, weights)) {
+			return;
+		}
+
+		OFFactory factory = sw.getOFFactory();
+		List<OFBucket> buckets = new ArrayList<>();
+		List<IPv4Address> bucketServers = new ArrayList<>();
+		for (int s = 0; s < servers.size(); s++) {
+			RouteInfo r = servers.get(s);
+			List<OFAction> actionList = ProactiveBalancer.buildRewrite(sw, r);
+			if (actionList == null) {
+				continue;
+			}
+			bucketServers.add(r.destination);
+			buckets.add(factory.buildBucket()
+					.setWeight(weights[s])
+					.setWatchPort(OFPort.ANY)
+					.setWatchGroup(OFGroup.ANY)
+					.setActions(actionList)
+					.build());
+			// Only the rules of new servers and paths are pushed
+			if (previous == null || !previous.contains(r)) {
+				ProactiveBalancer.pushDownstream(sw, group.getIndex(), r);
+			}
+		}
+		if (buckets.isEmpty()) {
+			if (previous != null) {
+				removeGroup(sw, group.getAnyAddr(), msgs);
+				state.groups.remove(anyAddr);
+			}
+			return;
+		}
+
+		OFGroup groupId = OFGroup.of(getGroupId(anyAddr));
+		if (previous == null) {
+			msgs.add(factory.buildGroupAdd()
+					.setGroup(groupId)
+					.setGroupType(OFGroupType.SELECT)
+					.setBuckets(buckets)
+					.build());
+			// The rule which sends the traffic toward the anycast address to
+			// the group, after the group itself
+			List<OFAction> actionList = new ArrayList<OFAction>();
+			actionList.add(factory.actions().buildGroup().setGroup(groupId).build());
+			Match match = factory.buildMatch()
+					.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+					.setExact(MatchField.IPV4_DST, group.getAnyAddr())
+					.build();
+			OFFlowAdd.Builder fmb = factory.buildFlowAdd()
+					.setIdleTimeout(0)
+					.setHardTimeout(0)
+					.setBufferId(OFBufferId.NO_BUFFER)
+					.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_TRANSIT, group.getIndex(),
+							IPv4Address.NONE))
+					.setPriority(PRIORITY)
+					.setMatch(match);
+			FlowModUtils.setActions(fmb, actionList, sw);
+			msgs.add(fmb.build());
+		} else {
+			msgs.add(factory.buildGroupModify()
+					.setGroup(groupId)
+					.setGroupType(OFGroupType.SELECT)
+					.setBuckets(buckets)
+					.build());
+		}
+		Installed current = new Installed(servers, weights,
+				bucketServers.toArray(new IPv4Address[bucketServers.size()]));
+		// A change of the weights only keeps the counters of the buckets
+		if (previous != null && Arrays.equals(previous.bucketServers, current.bucketServers)) {
+			current.lastBytes = previous.lastBytes;
+		}
+		state.groups.put(anyAddr, current);
+	}
+
+	/**
+	 * Remove the SELECT group of an anycast address, and the rule which uses
+	 * it, from a switch
+	 * @param sw The switch
+	 * @param anyAddr The anycast IP address
+	 * @param msgs The messages to send to the switch
+	 */
+	private void removeGroup(IOFSwitch sw, IPv4Address anyAddr, List<OFMessage> msgs) {
+		Integer id = groupIds.get(anyAddr.getInt());
+		if (id == null) {
+			return;
+		}
+		OFFactory factory = sw.getOFFactory();
+		msgs.add(factory.buildFlowDelete()
+				.setMatch(factory.buildMatch()
+						.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+						.setExact(MatchField.IPV4_DST, anyAddr)
+						.build())
+				.build());
+		msgs.add(factory.buildGroupDelete()
+				.setGroup(OFGroup.of(id))
+				.setGroupType(OFGroupType.SELECT)
+				.build());
+	}
+
+	/**
+	 * @param anyAddr The anycast IP address (as int)
+	 * @return The ID of the group of the anycast address
+	 */
+	private int getGroupId(int anyAddr) {
+		Integer id = groupIds.get(anyAddr);
+		if (id == null) {
+			id = nextGroupId++;
+			groupIds.put(anyAddr, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Ask a switch for the counters of its groups. The reply is taken by the
+	 * next run of the task
+	 * @param sw The switch
+	 */
+	private void requestStats(final IOFSwitch sw) {
+		Futures.addCallback(sw.writeStatsRequest(sw.getOFFactory().buildGroupStatsRequest()
+				.setGroup(OFGroup.ALL)
+				.build()), new FutureCallback<List<OFGroupStatsReply>>() {
+			@Override
+			public void onSuccess(List<OFGroupStatsReply> result) {
+				statsReplies.put(sw.getId(), new StatsReply(result, System.nanoTime()));
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				log.debug("Group statistics of {} not received: {}", sw.getId(), t.toString());
+			}
+		}, ses);
+	}
+
+	/**
+	 * Compute the traffic sent to every server by the buckets since the
+	 * previous replies of the switches, and add it to the moving averages
+	 */
+	private void updateRates() {
+		// Physical IP address (as int) -> bytes per second
+		Map<Integer, Double> samples = new HashMap<>();
+		// Group ID -> anycast IP address (as int)
+		Map<Integer, Integer> anyAddrs = new HashMap<>();
+		for (Map.Entry<Integer, Integer> e : groupIds.entrySet()) {
+			anyAddrs.put(e.getValue(), e.getKey());
+		}
+		boolean sampled = false;
+		for (Map.Entry<DatapathId, SwitchState> e : installed.entrySet()) {
+			StatsReply reply = statsReplies.remove(e.getKey());
+			if (reply == null) {
+				continue;
+			}
+			SwitchState state = e.getValue();
+			double seconds = state.lastStats == 0 ? 0 : (reply.time - state.lastStats) / 1e9;
+			state.lastStats = reply.time;
+			for (OFGroupStatsReply r : reply.replies) {
+				for (OFGroupStatsEntry entry : r.getEntries()) {
+					Integer anyAddr = anyAddrs.get(entry.getGroup().getGroupNumber());
+					Installed group = anyAddr == null ? null : state.groups.get(anyAddr);
+					if (group == null || entry.getBucketStats().size() != group.bucketServers.length) {
+						continue;
+					}
+					long[] bytes = new long[group.bucketServers.length];
+					for (int b = 0; b < bytes.length; b++) {
+						OFBucketCounter counter = entry.getBucketStats().get(b);
+						bytes[b] = counter.getByteCount().getValue();
+						// The first poll of a group only sets the counters
+						if (group.lastBytes == null || seconds <= 0) {
+							continue;
+						}
+						// The buckets of a modified group count from 0
+						long delta = bytes[b] >= group.lastBytes[b] ? bytes[b] - group.lastBytes[b] : bytes[b];
+						int server = group.bucketServers[b].getInt();
+						Double sample = samples.get(server);
+						samples.put(server, (sample == null ? 0 : sample) + delta / seconds);
+						sampled = true;
+					}
+					group.lastBytes = bytes;
+				}
+			}
+		}
+		if (!sampled) {
+			return;
+		}
+		for (Map.Entry<Integer, Double> e : samples.entrySet()) {
+			if (!byteRates.containsKey(e.getKey())) {
+				byteRates.put(e.getKey(), 0.0);
+			}
+		}
+		Iterator<Map.Entry<Integer, Double>> i = byteRates.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Integer, Double> e = i.next();
+			Double sample = samples.get(e.getKey());
+			double rate = ALPHA * (sample == null ? 0 : sample) + (1 - ALPHA) * e.getValue();
+			if (rate < 1) {
+				i.remove();
+			} else {
+				e.setValue(rate);
+			}
+		}
+	}
+
+	/**
+	 * The weight of a server is proportional to its spare capacity, and
+	 * lowered when the server receives more than the share of the traffic of
+	 * the group given by its capacity. The weights are quantized, so that a
+	 * group is not rewritten at every small change of the load
+	 * @param servers The routes toward the servers
+	 * @return The weight of every server, at least 1
+	 */
+	private int[] weights(List<RouteInfo> servers) {
+		int[] capacity = new int[servers.size()];
+		double[] rates = new double[servers.size()];
+		int maxCapacity = 1;
+		long totalCapacity = 0;
+		double totalRate = 0;
+		for (int s = 0; s < capacity.length; s++) {
+			IPv4Address server = servers.get(s).destination;
+			capacity[s] = LoadBalancer.servCounter.getCapacity(server);
+			maxCapacity = Math.max(maxCapacity, capacity[s]);
+			totalCapacity += capacity[s];
+			Double rate = byteRates.get(server.getInt());
+			rates[s] = rate == null ? 0 : rate;
+			totalRate += rates[s];
+		}
+		int[] weights = new int[capacity.length];
+		for (int s = 0; s < capacity.length; s++) {
+			double spare = 1 - Math.min(1, LoadBalancer.servCounter.getLoad(servers.get(s).destination));
+			if (totalRate > 0 && capacity[s] > 0) {
+				// The traffic of the server over its share of the traffic
+				double excess = rates[s] * totalCapacity / (totalRate * capacity[s]);
+				if (excess > 1) {
+					spare /= excess;
+				}
+			}
+			weights[s] = Math.max(1, (int) Math.round(MAX_WEIGHT * spare * capacity[s] / maxCapacity));
+		}
+		return weights;
+	}
+}
@@ -0,0 +1,23 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * It creates a response for the GET message that requires the state (up or
+ * down) of the servers probed by the health checker. The list is empty if
+ * the health checking is disabled.
+ *
+ * http://localhost:8080/lb/controller/health/json
+ * GET message
+ */
+public class Health extends ServerResource {
+	@Get("json")
+	public Map<String, String> retrieve() {
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.getHealth();
+	}
+}
@@ -0,0 +1,470 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
+import org.projectfloodlight.openflow.protocol.OFPacketOut;
+import org.projectfloodlight.openflow.protocol.action.OFAction;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.ArpOpcode;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFBufferId;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TransportPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.util.FlowModUtils;
+
+/**
+ * It probes the servers of the anycast groups and marks them down or up in
+ * the register. The probes are ARP requests or ICMP echo requests to the
+ * physical server, or TCP SYNs to the port of the service, sent by the
+ * controller as PacketOuts from the attachment point of the server, with a
+ * source address of its own. The answers come back as packet-ins: the
+ * answers to the TCP probes are sent to the controller by a rule of the
+ * attachment switch of the server, above the rule which rewrites the
+ * replies of the service toward its clients.
+ * A server goes down after "fall" probes in a row without answer, and up
+ * again after "rise" answered probes in a row. When a server goes down the
+ * rules pointing at it are deleted, so that its connections move at their
+ * next packet.
+ * The servers are spread over the slots of a timer wheel which turns once
+ * per interval: every tick only probes the servers of one slot, and checks
+ * whether they answered the probe of the previous turn.
+ */
+public class HealthChecker {
+	protected static final Logger log = LoggerFactory.getLogger(HealthChecker.class);
+
+	public static final int DEFAULT_INTERVAL = 2; // in seconds
+	public static final int DEFAULT_RISE = 2;
+	public static final int DEFAULT_FALL = 3;
+	public static final IPv4Address DEFAULT_SOURCE = IPv4Address.of("10.255.255.254");
+	public static final MacAddress SOURCE_MAC = MacAddress.of("00:00:00:00:00:03");
+
+	private static final int TICK = 100; // in milliseconds
+	private static final TransportPort SOURCE_PORT = TransportPort.of(61000);
+	private static final short TCP_SYN = 0x02;
+	private static final short TCP_RST = 0x04;
+	private static final short TCP_ACK = 0x10;
+	private static final byte ICMP_ECHO_REQUEST = 8;
+	private static final byte ICMP_ECHO_REPLY = 0;
+
+	/**
+	 * The kind of probe
+	 */
+	public enum Probe {
+		ARP, ICMP, TCP
+	}
+
+	/**
+	 * A probed server: a physical IP address for the ARP and ICMP probes,
+	 * a <physical IP address, port> for the TCP probes
+	 */
+	private static final class Target {
+		final IPv4Address phyAddr;
+		final short port;
+		final int slot;
+		// Set by the packet-in threads, read by the wheel
+		volatile boolean answered;
+		// Only accessed by the wheel
+		boolean probed;
+		int successes;
+		int failures;
+		volatile boolean up = true;
+
+		Target(IPv4Address phyAddr, short port, int slot) {
+			this.phyAddr = phyAddr;
+			this.port = port;
+			this.slot = slot;
+		}
+	}
+
+	private final Probe probe;
+	private final IPv4Address source;
+	private final int rise;
+	private final int fall;
+	// The idle timeout of the rules of the answers to the TCP probes
+	private final short probeRuleTimeout; // in seconds
+	private final ScheduledExecutorService ses;
+	// The targets of every slot, only accessed by the wheel
+	private final List<List<Target>> wheel;
+	private int cursor;
+	// ServerEntry key of the target -> target
+	private final ConcurrentHashMap<Long, Target> targets = new ConcurrentHashMap<>();
+	private long registerVersion = -1;
+
+	/**
+	 * @param probe The kind of probe
+	 * @param source The IP address used as source of the probes, which must
+	 * not be used by any host
+	 * @param interval The interval between two probes of a server, in seconds
+	 * @param rise The answered probes in a row which bring a server up
+	 * @param fall The unanswered probes in a row which bring a server down
+	 * @param ses The executor which turns the wheel
+	 */
+	public HealthChecker(Probe probe, IPv4Address source, int interval, int rise, int fall,
+			ScheduledExecutorService ses) {
+		if (interval < 1 || rise < 1 || fall < 1) {
+			throw new IllegalArgumentException("Invalid interval or thresholds");
+		}
+		this.probe = probe;
+		this.source = source;
+		this.rise = rise;
+		this.fall = fall;
+		this.probeRuleTimeout = (short) Math.min(Short.MAX_VALUE, 2 * interval);
+		this.ses = ses;
+		int slots = (int) (TimeUnit.SECONDS.toMillis(interval) / TICK);
+		wheel = new ArrayList<>(slots);
+		for (int i = 0; i < slots; i++) {
+			wheel.add(new ArrayList<Target>());
+		}
+	}
+
+	public void start() {
+		ses.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tick();
+				} catch (Exception e) {
+					log.error("Exception while probing the servers", e);
+				}
+			}
+		}, TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Handle a packet-in sent to the source of the probes
+	 * @param eth The packet
+	 * @param sw The switch which received the packet
+	 * @param pi The OpenFlow packet
+	 * @return true: if the packet was addressed to the health checker
+	 */
+	public static boolean handle(Ethernet eth, IOFSwitch sw, OFPacketIn pi) {
+		HealthChecker hc = LoadBalancer.healthChecker;
+		if (hc == null) {
+			return false;
+		}
+		if (eth.getDestinationMACAddress().equals(SOURCE_MAC)) {
+			hc.receive(eth, sw, pi);
+			return true;
+		}
+		// The servers resolve the source of the ICMP and TCP probes
+		if (eth.isBroadcast() && eth.getPayload() instanceof ARP) {
+			ARP arp = (ARP) eth.getPayload();
+			if (arp.getOpCode().equals(ArpOpcode.REQUEST)
+					&& arp.getTargetProtocolAddress().equals(hc.source)) {
+				hc.answerArp(arp, sw, pi.getMatch().get(MatchField.IN_PORT));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void receive(Ethernet eth, IOFSwitch sw, OFPacketIn pi) {
+		IPacket payload = eth.getPayload();
+		if (payload instanceof ARP) {
+			ARP arp = (ARP) payload;
+			if (arp.getOpCode().equals(ArpOpcode.REPLY)) {
+				answered(arp.getSenderProtocolAddress(), (short) 0);
+			} else if (arp.getTargetProtocolAddress().equals(source)) {
+				answerArp(arp, sw, pi.getMatch().get(MatchField.IN_PORT));
+			}
+			return;
+		}
+		if (!(payload instanceof IPv4)) {
+			return;
+		}
+		IPv4 ipv4 = (IPv4) payload;
+		if (ipv4.getPayload() instanceof ICMP) {
+			if (((ICMP) ipv4.getPayload()).getIcmpType() == ICMP_ECHO_REPLY) {
+				answered(ipv4.getSourceAddress(), (short) 0);
+			}
+		} else if (ipv4.getPayload() instanceof TCP) {
+			TCP tcp = (TCP) ipv4.getPayload();
+			// A RST means that nobody listens on the port
+			if ((tcp.getFlags() & (TCP_SYN | TCP_ACK)) == (TCP_SYN | TCP_ACK)) {
+				answered(ipv4.getSourceAddress(), (short) tcp.getSourcePort().getPort());
+				// Close the half-open connection
+				TCP rst = new TCP()
+						.setSourcePort(tcp.getDestinationPort())
+						.setDestinationPort(tcp.getSourcePort())
+						.setSequence(tcp.getAcknowledge())
+						.setFlags(TCP_RST);
+				send(sw, pi.getMatch().get(MatchField.IN_PORT), eth.getSourceMACAddress(),
+						ip(ipv4.getSourceAddress(), IpProtocol.TCP, rst));
+			}
+		}
+	}
+
+	private void answered(IPv4Address phyAddr, short port) {
+		Target t = targets.get(ServerEntry.key(phyAddr.getInt(), port));
+		if (t != null) {
+			t.answered = true;
+		}
+	}
+
+	/**
+	 * Turn the wheel by one slot
+	 */
+	private void tick() {
+		ServiceRegister.Snapshot snapshot = LoadBalancer.servReg.getSnapshot();
+		if (snapshot.getVersion() != registerVersion) {
+			registerVersion = snapshot.getVersion();
+			sync(snapshot);
+		}
+		List<Target> slot = wheel.get(cursor);
+		cursor = (cursor + 1) % wheel.size();
+		List<Target> wentDown = null;
+		List<Target> wentUp = null;
+		for (Target t : slot) {
+			if (t.probed) {
+				if (t.answered) {
+					t.failures = 0;
+					if (!t.up && ++t.successes >= rise) {
+						t.up = true;
+						wentUp = add(wentUp, t);
+					}
+				} else {
+					t.successes = 0;
+					if (t.up && ++t.failures >= fall) {
+						t.up = false;
+						wentDown = add(wentDown, t);
+					}
+				}
+			}
+			t.answered = false;
+			t.probed = sendProbe(t);
+		}
+		if (wentDown != null) {
+			setDown(snapshot, wentDown, true);
+		}
+		if (wentUp != null) {
+			setDown(snapshot, wentUp, false);
+		}
+	}
+
+	private static List<Target> add(List<Target> list, Target t) {
+		if (list == null) {
+			list = new ArrayList<>();
+		}
+		list.add(t);
+		return list;
+	}
+
+	/**
+	 * Bring the targets in line with the servers of the register
+	 */
+	private void sync(ServiceRegister.Snapshot snapshot) {
+		Set<Long> keys = new HashSet<>();
+		for (ServiceRegister.Group g : snapshot.getGroups()) {
+			for (ServerEntry server : g.getServers()) {
+				short port = probe == Probe.TCP ? server.getPort() : 0;
+				long key = ServerEntry.key(server.getPhyAddr().getInt(), port);
+				if (keys.add(key) && !targets.containsKey(key)) {
+					int slot = (int) ((FlowKey.mix(key) & Long.MAX_VALUE) % wheel.size());
+					Target t = new Target(server.getPhyAddr(), port, slot);
+					targets.put(key, t);
+					wheel.get(slot).add(t);
+				}
+			}
+		}
+		for (Target t : new ArrayList<>(targets.values())) {
+			if (!keys.contains(ServerEntry.key(t.phyAddr.getInt(), t.port))) {
+				targets.remove(ServerEntry.key(t.phyAddr.getInt(), t.port));
+				wheel.get(t.slot).remove(t);
+			}
+		}
+	}
+
+	/**
+	 * Mark the servers of some targets down or up in the register. The rules
+	 * of the servers which went down are deleted
+	 */
+	private void setDown(ServiceRegister.Snapshot snapshot, List<Target> changed, boolean down) {
+		List<ServerEntry> servers = new ArrayList<>();
+		// Index of the group -> physical IP addresses of its servers
+		Map<Integer, Set<IPv4Address>> rules = new HashMap<>();
+		for (Target t : changed) {
+			log.info("Server {}{} is {}", new Object[] {t.phyAddr,
+					probe == Probe.TCP ? ":" + t.port : "", down ? "down" : "up"});
+			for (ServiceRegister.Group g : snapshot.getGroups()) {
+				for (ServerEntry server : g.getServers()) {
+					if (server.getPhyAddr().equals(t.phyAddr)
+							&& (probe != Probe.TCP || server.getPort() == t.port)) {
+						servers.add(server);
+						Set<IPv4Address> phys = rules.get(g.getIndex());
+						if (phys == null) {
+							phys = new HashSet<>();
+							rules.put(g.getIndex(), phys);
+						}
+						phys.add(t.phyAddr);
+					}
+				}
+			}
+		}
+		if (LoadBalancer.servReg.setDown(servers, down) == 0) {
+			return;
+		}
+		LoadBalancer.updateRules();
+		if (down) {
+			for (Map.Entry<Integer, Set<IPv4Address>> e : rules.entrySet()) {
+				LoadBalancer.deleteRules(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Send a probe from the attachment point of a server
+	 * @return false: if the server cannot be reached
+	 */
+	private boolean sendProbe(Target t) {
+		IDevice device = LoadBalancer.routeCache.getDevice(t.phyAddr);
+		if (device == null || device.getAttachmentPoints().length == 0) {
+			// Not probed: the state of the server does not change
+			return false;
+		}
+		SwitchPort ap = device.getAttachmentPoints()[0];
+		IOFSwitch sw = LoadBalancer.switchService.getActiveSwitch(ap.getNodeId());
+		if (sw == null) {
+			return false;
+		}
+		IPacket packet;
+		switch (probe) {
+		case ARP:
+			packet = new ARP()
+					.setHardwareType(ARP.HW_TYPE_ETHERNET)
+					.setProtocolType(ARP.PROTO_TYPE_IP)
+					.setHardwareAddressLength((byte) 6)
+					.setProtocolAddressLength((byte) 4)
+					.setOpCode(ArpOpcode.REQUEST)
+					.setSenderHardwareAddress(SOURCE_MAC)
+					.setSenderProtocolAddress(source)
+					.setTargetHardwareAddress(MacAddress.NONE)
+					.setTargetProtocolAddress(t.phyAddr);
+			break;
+		case ICMP:
+			packet = ip(t.phyAddr, IpProtocol.ICMP, new ICMP()
+					.setIcmpType(ICMP_ECHO_REQUEST)
+					.setIcmpCode((byte) 0)
+					// Identifier and sequence number
+					.setPayload(new Data(new byte[] {0x4C, 0x42, 0, 0})));
+			break;
+		default:
+			sw.write(probeReplyRule(sw, t));
+			packet = ip(t.phyAddr, IpProtocol.TCP, new TCP()
+					.setSourcePort(SOURCE_PORT)
+					.setDestinationPort(TransportPort.of(t.port & 0xFFFF))
+					.setSequence((int) System.nanoTime())
+					.setWindowSize((short) 1024)
+					.setFlags(TCP_SYN));
+			break;
+		}
+		send(sw, ap.getPortId(), device.getMACAddress(), packet);
+		return true;
+	}
+
+	/**
+	 * @return The rule which sends the answers of a server to the TCP probes
+	 * to the controller. It is refreshed by every probe
+	 */
+	private OFFlowAdd probeReplyRule(IOFSwitch sw, Target t) {
+		Match match = sw.getOFFactory().buildMatch()
+				.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+				.setExact(MatchField.IPV4_SRC, t.phyAddr)
+				.setExact(MatchField.IPV4_DST, source)
+				.setExact(MatchField.IP_PROTO, IpProtocol.TCP)
+				.setExact(MatchField.TCP_SRC, TransportPort.of(t.port & 0xFFFF))
+				.build();
+		OFFlowAdd.Builder fmb = sw.getOFFactory().buildFlowAdd()
+				.setIdleTimeout(probeRuleTimeout)
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_TRANSIT, 0, t.phyAddr))
+				.setPriority(FlowModUtils.PRIORITY_MAX)
+				.setMatch(match);
+		FlowModUtils.setActions(fmb, Collections.singletonList((OFAction) sw.getOFFactory().actions().buildOutput()
+				.setPort(OFPort.CONTROLLER)
+				.setMaxLen(0xffFFffFF)
+				.build()), sw);
+		return fmb.build();
+	}
+
+	private IPacket ip(IPv4Address dst, IpProtocol proto, IPacket payload) {
+		return new IPv4()
+				.setSourceAddress(source)
+				.setDestinationAddress(dst)
+				.setTtl((byte) 64)
+				.setProtocol(proto)
+				.setPayload(payload);
+	}
+
+	private void answerArp(ARP request, IOFSwitch sw, OFPort inPort) {
+		send(sw, inPort, request.getSenderHardwareAddress(), new ARP()
+				.setHardwareType(ARP.HW_TYPE_ETHERNET)
+				.setProtocolType(ARP.PROTO_TYPE_IP)
+				.setHardwareAddressLength((byte) 6)
+				.setProtocolAddressLength((byte) 4)
+				.setOpCode(ArpOpcode.REPLY)
+				.setSenderHardwareAddress(SOURCE_MAC)
+				.setSenderProtocolAddress(source)
+				.setTargetHardwareAddress(request.getSenderHardwareAddress())
+				.setTargetProtocolAddress(request.getSenderProtocolAddress()));
+	}
+
+	/**
+	 * Send a packet of the health checker through a port of a switch
+	 */
+	private static void send(IOFSwitch sw, OFPort port, MacAddress dst, IPacket payload) {
+		Ethernet eth = (Ethernet) new Ethernet()
+				.setSourceMACAddress(SOURCE_MAC)
+				.setDestinationMACAddress(dst)
+				.setEtherType(payload instanceof ARP ? EthType.ARP : EthType.IPv4)
+				.setPayload(payload);
+		OFPacketOut po = sw.getOFFactory().buildPacketOut()
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setInPort(OFPort.ANY)
+				.setActions(Collections.singletonList((OFAction) sw.getOFFactory().actions().buildOutput()
+						.setPort(port)
+						.setMaxLen(0xffFFffFF)
+						.build()))
+				.setData(eth.serialize())
+				.build();
+		sw.write(po);
+	}
+
+	/**
+	 * @return The state of every probed server
+	 */
+	public Map<String, String> getStatus() {
+		Map<String, String> status = new HashMap<>();
+		for (Target t : targets.values()) {
+			status.put(t.phyAddr + (probe == Probe.TCP ? ":" + t.port : ""), t.up ? "up" : "down");
+		}
+		return status;
+	}
+}
@@ -1,6 +1,8 @@
 package net.floodlightcontroller.loadbalancerproject;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.projectfloodlight.openflow.types.IPv4Address;
 
@@ -16,5 +18,21 @@ public interface ILoadBalancerREST extends IFloodlightService {
 	public String subscribe(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr);
 	public String unsubscribe(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr);
 	public ArrayList<IPv4Address> showList(IPv4Address anyAddr);
+	public String setCapacity(IPv4Address phyAddr, int maxCount);
+	public int getCapacity(IPv4Address phyAddr);
+	public int getRequestCounter(IPv4Address phyAddr);
+	public String setStrategy(IPv4Address anyAddr, String strategy);
+	public String getStrategy(IPv4Address anyAddr);
+	public Map<String, Long> getRouteCacheStats();
+	public Map<String, Object> getServerStats(IPv4Address phyAddr);
+	public String setMaxByteRate(IPv4Address phyAddr, long maxByteRate);
+	public String drain(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr, int timeout);
+	public String undrain(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr);
+	public List<Map<String, Object>> getDrainStatus();
+	public Map<String, String> getHealth();
+	public Map<String, Long> getAdmissionStats();
+	public List<Map<String, Object>> getDecisions(int last);
+	public String setDecisionLog(DecisionLog.Level level, int sampling);
+	public Map<String, Object> getMetrics();
 	
 }
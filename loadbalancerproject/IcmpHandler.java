@@ -1,12 +1,12 @@
 package net.floodlightcontroller.loadbalancerproject;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.projectfloodlight.openflow.protocol.OFFlowAdd;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
 import org.projectfloodlight.openflow.protocol.action.OFAction;
-import org.projectfloodlight.openflow.protocol.action.OFActionOutput;
 import org.projectfloodlight.openflow.protocol.match.Match;
 import org.projectfloodlight.openflow.protocol.match.MatchField;
 import org.projectfloodlight.openflow.types.EthType;
@@ -15,7 +15,6 @@ import org.projectfloodlight.openflow.types.IpProtocol;
 import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFBufferId;
 import org.projectfloodlight.openflow.types.OFPort;
-import org.projectfloodlight.openflow.types.U64;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IOFSwitch;
@@ -30,32 +29,50 @@ import net.floodlightcontroller.util.FlowModUtils;
 
 public class IcmpHandler {
 	
-	public static boolean handle(Ethernet eth, IOFSwitch sw,
-			FloodlightContext cntx, OFPacketIn packetIn, Forwarding forwarding) {
+	public static boolean handle(final Ethernet eth, final IOFSwitch sw,
+			final FloodlightContext cntx, final OFPacketIn packetIn, Forwarding forwarding) {
 		
-		ArrayList<IPv4Address> candidateDests =
-				LoadBalancer.servReg.getServersPhyAddr(
-						((IPv4)eth.getPayload()).getDestinationAddress());
-		if(candidateDests == null) {	//The destination is an unicast address
+		final ServiceRegister.Group group = LoadBalancer.servReg.getSnapshot().getGroup(
+				((IPv4)eth.getPayload()).getDestinationAddress());
+		if(group == null) {	//The destination is an unicast address
 			return toUnicast(eth, sw, cntx, packetIn, forwarding);
 		}
 		else {
-			//The destination is a registered anycast address
-			return toAnycast(cntx, eth, candidateDests, sw, packetIn);
+			//The destination is a registered anycast address, the answer
+			//may be sent by the packet-in pipeline
+			PacketInPipeline.dispatch(sw, (IPv4)eth.getPayload(), new Runnable() {
+				@Override
+				public void run() {
+					toAnycast(eth, group, sw, packetIn);
+				}
+			});
+			return true;
 		}
 	}
 	
-	private static boolean toAnycast(FloodlightContext cntx, Ethernet eth,
-			ArrayList<IPv4Address> phys, IOFSwitch sw, OFPacketIn packetIn) {
-
+	private static boolean toAnycast(Ethernet eth, ServiceRegister.Group group,
+			IOFSwitch sw, OFPacketIn packetIn) {
+		long start = System.nanoTime();
 		IPv4 ipv4 = (IPv4)eth.getPayload();
 		ICMP icmp = (ICMP)ipv4.getPayload();
 		//Check if the ICMP message is a Echo request
 		if (icmp.getIcmpType() == (byte)7 || icmp.getIcmpType() == (byte)8) {
-			IPv4Address dest = RouteHandler.getNearestNotBusyServer(phys,
-					IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE),
-					sw.getId()
-			);
+			// The nearest server which takes new connections and is not busy
+			RouteInfo nearest = null;
+			for (RouteInfo r : LoadBalancer.serverRanking.getSelectableRoutes(sw.getId(), group)) {
+				if (LoadBalancer.servCounter.isAvailable(r.destination)) {
+					nearest = r;
+					break;
+				}
+			}
+			IPv4Address dest = nearest == null ? null : nearest.destination;
+			LoadBalancer.metrics.serverSelection.record(System.nanoTime() - start);
+			if (dest == null) {
+				LoadBalancer.metrics.noServer.increment();
+			}
+			DecisionLog.decision(dest == null ? DecisionLog.Level.WARN : DecisionLog.Level.INFO,
+					"icmp-anycast", FlowKey.of(ipv4), dest, nearest == null ? 0 : nearest.hopNumber,
+					System.nanoTime() - start);
 			//Respond with an echo reply
 			//Get Identifier and Sequence Number of the Echo request 
 			//L4 packet
@@ -115,21 +132,21 @@ public class IcmpHandler {
 			pob.setData(l2.serialize());
 			
 			sw.write(pob.build());
+			LoadBalancer.metrics.icmpReplies.increment();
 		}
 		return true;
 	}
 	
 	private static boolean toUnicast(Ethernet eth, IOFSwitch sw, FloodlightContext cntx, 
 			OFPacketIn packetIn, Forwarding forwarding) {
-		System.out.println("ICMP handler " +
-				((IPv4)eth.getPayload()).getSourceAddress() + " -> " +
-				((IPv4)eth.getPayload()).getDestinationAddress() + " on switch " + sw.getId());
+		long start = System.nanoTime();
 		IPv4Address srcAddr = ((IPv4)eth.getPayload()).getSourceAddress();
 		IPv4Address dstAddr = ((IPv4)eth.getPayload()).getDestinationAddress();
 		
 		Path route = RouteHandler.getFastestRoute(dstAddr,
 				IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE),
 				sw.getId());
+		LoadBalancer.metrics.routeLookup.record(System.nanoTime() - start);
 		if (route == null) {
 			return false;
 		}
@@ -139,7 +156,7 @@ public class IcmpHandler {
 		fmb.setIdleTimeout(LoadBalancer.IDLE_TIMEOUT)
 			.setHardTimeout(LoadBalancer.HARD_TIMEOUT)
 			.setBufferId(OFBufferId.NO_BUFFER)
-			.setCookie(U64.of(0))
+			.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_TRANSIT, 0, IPv4Address.NONE))
 			.setPriority(FlowModUtils.PRIORITY_MAX);
 		// Create the match
 		Match.Builder mb = sw.getOFFactory().buildMatch()
@@ -148,14 +165,10 @@ public class IcmpHandler {
 				.setExact(MatchField.IPV4_DST, dstAddr)
 				.setExact(MatchField.IPV4_SRC, srcAddr);
 		// Create the action associated with the match
-		ArrayList<OFAction> actionList = new ArrayList<OFAction>();
-		OFActionOutput setDstPort = sw.getOFFactory().actions().buildOutput()
-			    .setMaxLen(0xFFffFFff)
-			    .setPort(outPort)
-			    .build();
-		actionList.add(setDstPort);
+		List<OFAction> actionList = LoadBalancer.templates.outputActions(sw.getOFFactory(), outPort);
 		
-		RouteHandler.pushRoute(dstAddr, route, mb.build(), fmb);
+		FlowBatch batch = new FlowBatch();
+		RouteHandler.pushRoute(dstAddr, route, mb.build(), fmb, batch);
 		
 		// Forward the packet containing the ICMP message
 		OFPacketOut.Builder pob = sw.getOFFactory().buildPacketOut();
@@ -164,7 +177,11 @@ public class IcmpHandler {
 		pob.setData(packetIn.getData());
 		// Assign the actions to the packet
 		pob.setActions(actionList);
-		sw.write(pob.build());
+		long push = System.nanoTime();
+		batch.flush(sw, pob.build());
+		LoadBalancer.metrics.flowModPush.record(System.nanoTime() - push);
+		DecisionLog.decision(DecisionLog.Level.DEBUG, "icmp-unicast", FlowKey.of((IPv4)eth.getPayload()),
+				dstAddr, route.getHopCount(), System.nanoTime() - start);
 		return true;
 	}
 }
@@ -0,0 +1,96 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with log-linear buckets as in
+ * HdrHistogram: every power of 2 is split in SUB_BUCKETS linear buckets, so
+ * the error of a percentile is below 1/SUB_BUCKETS of the value whatever
+ * its magnitude. Recording a value takes no lock and allocates nothing.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// The longest latency counted exactly, about 18 minutes
+	private static final int MAX_EXP = 40;
+	private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param value A latency in nanoseconds
+	 * @return The bucket of the latency
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @param index A bucket
+	 * @return The highest latency of the bucket
+	 */
+	private static long highest(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		return ((long) (index % SUB_BUCKETS + SUB_BUCKETS + 1) << shift) - 1;
+	}
+
+	/**
+	 * Count a latency
+	 * @param nanos The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(index(value));
+		total.increment();
+		sum.add(value);
+		long m = max.get();
+		while (value > m && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * @return The number of latencies, their mean, percentiles and maximum in
+	 * nanoseconds. The buckets are read one by one while being updated, so
+	 * the summary is approximate under load
+	 */
+	public Map<String, Long> getSummary() {
+		Map<String, Long> summary = new LinkedHashMap<>();
+		long[] snapshot = new long[counts.length()];
+		long count = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		summary.put("count", count);
+		summary.put("mean-ns", count == 0 ? 0 : sum.sum() / Math.max(1, total.sum()));
+		int i = 0;
+		long seen = 0;
+		for (double p : PERCENTILES) {
+			long rank = (long) Math.ceil(count * p / 100);
+			while (i < snapshot.length - 1 && seen + snapshot[i] < rank) {
+				seen += snapshot[i];
+				i++;
+			}
+			summary.put("p" + (p == Math.rint(p) ? String.valueOf((int) p) : String.valueOf(p)) + "-ns",
+					count == 0 ? 0 : highest(i));
+		}
+		summary.put("max-ns", max.get());
+		return summary;
+	}
+}
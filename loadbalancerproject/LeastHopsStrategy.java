@@ -0,0 +1,20 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.List;
+
+/**
+ * Choose the nearest server (in number of hops) which is not busy
+ */
+public class LeastHopsStrategy implements ServerSelectionStrategy {
+	public static final String NAME = "least-hops";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public RouteInfo select(List<RouteInfo> routes, FlowKey flow, ServiceCounter counter) {
+		return SelectionStrategies.firstAvailable(routes, counter, null);
+	}
+}
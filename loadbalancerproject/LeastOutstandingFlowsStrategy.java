@@ -0,0 +1,38 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.List;
+
+/**
+ * Choose the server with the lowest load with respect to its capacity. Ties
+ * are broken in favour of the nearest server
+ */
+public class LeastOutstandingFlowsStrategy implements ServerSelectionStrategy {
+	public static final String NAME = "least-outstanding-flows";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public RouteInfo select(List<RouteInfo> routes, FlowKey flow, ServiceCounter counter) {
+		RouteInfo best = null;
+		double bestLoad = Double.MAX_VALUE;
+		// The routes are sorted by number of hops, so the strict comparison
+		// prefers the nearest server among the least loaded ones
+		for (RouteInfo r : routes) {
+			if (!counter.isAvailable(r.destination)) {
+				continue;
+			}
+			double load = counter.getLoad(r.destination);
+			if (load < bestLoad) {
+				best = r;
+				bestLoad = load;
+			}
+		}
+		if (best != null && counter.newService(best.destination)) {
+			return best;
+		}
+		return SelectionStrategies.firstAvailable(routes, counter, best);
+	}
+}
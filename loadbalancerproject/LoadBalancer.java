@@ -2,14 +2,26 @@ package net.floodlightcontroller.loadbalancerproject;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.projectfloodlight.openflow.protocol.OFFlowRemoved;
 import org.projectfloodlight.openflow.protocol.OFMessage;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFType;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.types.DatapathId;
 import org.projectfloodlight.openflow.types.IPv4Address;
 import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.U64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -20,14 +32,31 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.topology.ITopologyService;
 
 public class LoadBalancer implements IOFMessageListener, IFloodlightModule, ILoadBalancerREST {
+	protected static final Logger log = LoggerFactory.getLogger(LoadBalancer.class);
+	
+	/**
+	 * How the requests addressed to an anycast group are balanced
+	 */
+	public enum Mode {
+		// A server is selected at the first packet of every connection
+		REACTIVE,
+		// The traffic is split in buckets by rules installed in advance
+		PROACTIVE,
+		// The switches hash the flows over the buckets of a SELECT group
+		GROUP
+	}
 	
 	//Services
 	protected IFloodlightProviderService floodlightProvider; //Reference to the provider
@@ -35,14 +64,77 @@ public class LoadBalancer implements IOFMessageListener, IFloodlightModule, ILoa
 	protected static IRoutingService routingEngineService; //Reference to the routing manager
 	protected static IDeviceService deviceManagerService; //Reference to the device manager
 	protected static IOFSwitchService switchService;	//Reference to the stich manager
+	protected static ITopologyService topologyService; //Reference to the topology manager
+	protected IThreadPoolService threadPoolService; //Reference to the thread pool
+	protected IDebugCounterService debugCounterService; //Reference to the debug counters
 	
 	//Tables for registering addresses and counting requests
 	public static ServiceRegister servReg;
 	protected static ServiceCounter servCounter;
+	//Cache of the paths and of the attachment points of the devices
+	protected static RouteCache routeCache;
+	//Servers of every anycast group sorted by distance from every switch
+	protected static ServerRanking serverRanking;
+	//Server of every connection toward an anycast group
+	protected static ConnectionTable connTable;
+	//Throughput of the servers, measured on the rules of the connections
+	protected static FlowStatsPoller statsPoller;
+	//Servers which take no new connection until their flows end
+	protected static DrainMonitor drainMonitor;
+	protected static int drainTimeout = DrainMonitor.DEFAULT_TIMEOUT; // in seconds
+	//Probes of the servers, null if disabled
+	protected static HealthChecker healthChecker;
+	//Rate limits of the packet-ins, null if disabled
+	protected static AdmissionControl admissionControl;
+	//Workers which handle the packet-ins of the anycast groups, null if
+	//they are handled by the I/O threads
+	protected static PacketInPipeline pipeline;
+	//Last decisions of the handlers of the packet-ins
+	protected static DecisionLog decisionLog;
+	//Counters and latencies of the handlers of the packet-ins
+	protected static LoadBalancerMetrics metrics;
+	//Reroutes the connections through the failed links, null if disabled
+	protected static FlowRepair flowRepair;
+	//Prebuilt actions and instructions of the rules
+	protected static FlowTemplates templates;
+	//Rules installed in advance, only in proactive mode
+	protected static Mode mode = Mode.REACTIVE;
+	protected static ProactiveBalancer proactiveBalancer;
+	//SELECT groups, only in group mode
+	protected static GroupBalancer groupBalancer;
+	//Release the PacketOut only when the downstream switches acknowledged
+	//their rules
+	protected static boolean useBarrier = false;
+	protected static long barrierTimeout = 100; // in milliseconds
+	protected static ScheduledExecutorService scheduledExecutor;
 	
 	//Timeouts of the rules
 	public final static short IDLE_TIMEOUT = 10; // in seconds
 	public final static short HARD_TIMEOUT = 20; // in seconds
+	private final static long ADMISSION_EXPIRE_PERIOD = 10; // in seconds
+	
+	/*
+	 * Cookies of the rules installed by the load balancer:
+	 * App ID:  0xFFF0000000000000
+	 * Group:   0x0003FFFC00000000 (index of the anycast group)
+	 * Kind:    0x0000000300000000 (forward, reverse or transit rule)
+	 * Server:  0x00000000FFFFFFFF (physical IP address of the server)
+	 * The FLOW_REMOVED messages of the forward and reverse rules are
+	 * accounted to the server. The rules of a server, or of a whole group,
+	 * are deleted at once by masking the cookie
+	 */
+	public static final int LB_APP_ID = 101;
+	public static final long COOKIE_FORWARD = 1;
+	public static final long COOKIE_REVERSE = 2;
+	public static final long COOKIE_TRANSIT = 3;
+	private static final int COOKIE_KIND_SHIFT = 32;
+	private static final int COOKIE_GROUP_SHIFT = 34;
+	private static final long COOKIE_KIND_MASK = 0x3L << COOKIE_KIND_SHIFT;
+	private static final long COOKIE_GROUP_MASK = (long) ServiceRegister.MAX_INDEX << COOKIE_GROUP_SHIFT;
+	private static final long COOKIE_SERVER_MASK = 0xFFFFFFFFL;
+	static {
+		AppCookie.registerApp(LB_APP_ID, "loadbalancerproject");
+	}
 	
 	public static MacAddress[] anycastMacAddress = {MacAddress.of("00:00:00:00:00:01"),
 												MacAddress.of("00:00:00:00:00:02")};
@@ -80,6 +172,12 @@ public class LoadBalancer implements IOFMessageListener, IFloodlightModule, ILoa
 		Collection<Class<? extends IFloodlightService>> l = new ArrayList<Class<? extends IFloodlightService>>();
 	    l.add(IFloodlightProviderService.class);
 	    l.add(IRestApiService.class);
+	    l.add(IRoutingService.class);
+	    l.add(IDeviceService.class);
+	    l.add(IOFSwitchService.class);
+	    l.add(ITopologyService.class);
+	    l.add(IThreadPoolService.class);
+	    l.add(IDebugCounterService.class);
 	    return l;
 	}
 
@@ -90,21 +188,299 @@ public class LoadBalancer implements IOFMessageListener, IFloodlightModule, ILoa
 		routingEngineService = context.getServiceImpl(IRoutingService.class);
 		deviceManagerService = context.getServiceImpl(IDeviceService.class);
 		switchService = context.getServiceImpl(IOFSwitchService.class);
+		topologyService = context.getServiceImpl(ITopologyService.class);
+		threadPoolService = context.getServiceImpl(IThreadPoolService.class);
+		debugCounterService = context.getServiceImpl(IDebugCounterService.class);
 		
+		Map<String, String> config = context.getConfigParams(this);
+		String tmp = config.get("mode");
+		if (tmp != null) {
+			try {
+				mode = Mode.valueOf(tmp.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				log.error("Invalid mode {}, using {}", tmp, mode);
+			}
+		}
+		int buckets = ProactiveBalancer.DEFAULT_BUCKETS;
+		tmp = config.get("proactive-buckets");
+		if (tmp != null) {
+			try {
+				buckets = Integer.parseInt(tmp.trim());
+				if (buckets < 1 || Integer.bitCount(buckets) != 1) {
+					log.error("The number of buckets must be a power of 2, using {}", ProactiveBalancer.DEFAULT_BUCKETS);
+					buckets = ProactiveBalancer.DEFAULT_BUCKETS;
+				}
+			} catch (NumberFormatException e) {
+				log.error("Invalid number of buckets {}, using {}", tmp, ProactiveBalancer.DEFAULT_BUCKETS);
+			}
+		}
+		tmp = config.get("flowmod-barrier");
+		if (tmp != null) {
+			useBarrier = Boolean.parseBoolean(tmp.trim());
+		}
+		tmp = config.get("barrier-timeout");
+		if (tmp != null) {
+			try {
+				barrierTimeout = Long.parseLong(tmp.trim());
+			} catch (NumberFormatException e) {
+				log.error("Invalid barrier timeout {}, using {}", tmp, barrierTimeout);
+			}
+		}
+		boolean repair = true;
+		tmp = config.get("flow-repair");
+		if (tmp != null) {
+			repair = Boolean.parseBoolean(tmp.trim());
+		}
+		int connections = ConnectionTable.DEFAULT_MAX_ENTRIES;
+		int connIdleTimeout = ConnectionTable.DEFAULT_IDLE_TIMEOUT;
+		tmp = config.get("connection-table-size");
+		if (tmp != null) {
+			try {
+				connections = Integer.parseInt(tmp.trim());
+			} catch (NumberFormatException e) {
+				log.error("Invalid connection table size {}, using {}", tmp, connections);
+			}
+		}
+		tmp = config.get("connection-idle-timeout");
+		if (tmp != null) {
+			try {
+				connIdleTimeout = Integer.parseInt(tmp.trim());
+			} catch (NumberFormatException e) {
+				log.error("Invalid connection idle timeout {}, using {}", tmp, connIdleTimeout);
+			}
+		}
+		int statsInterval = FlowStatsPoller.DEFAULT_INTERVAL;
+		double statsAlpha = FlowStatsPoller.DEFAULT_ALPHA;
+		long maxByteRate = 0;
+		tmp = config.get("stats-interval");
+		if (tmp != null) {
+			try {
+				statsInterval = Integer.parseInt(tmp.trim());
+			} catch (NumberFormatException e) {
+				log.error("Invalid statistics interval {}, using {}", tmp, statsInterval);
+			}
+		}
+		tmp = config.get("stats-alpha");
+		if (tmp != null) {
+			try {
+				statsAlpha = Double.parseDouble(tmp.trim());
+			} catch (NumberFormatException e) {
+				log.error("Invalid statistics weight {}, using {}", tmp, statsAlpha);
+			}
+		}
+		tmp = config.get("server-max-byterate");
+		if (tmp != null) {
+			try {
+				maxByteRate = Long.parseLong(tmp.trim());
+			} catch (NumberFormatException e) {
+				log.error("Invalid maximum throughput {}, using none", tmp);
+			}
+		}
+		tmp = config.get("drain-timeout");
+		if (tmp != null) {
+			try {
+				drainTimeout = Integer.parseInt(tmp.trim());
+			} catch (NumberFormatException e) {
+				log.error("Invalid drain timeout {}, using {}", tmp, drainTimeout);
+			}
+		}
+		HealthChecker.Probe probe = null;
+		int healthInterval = HealthChecker.DEFAULT_INTERVAL;
+		int healthRise = HealthChecker.DEFAULT_RISE;
+		int healthFall = HealthChecker.DEFAULT_FALL;
+		IPv4Address healthSource = HealthChecker.DEFAULT_SOURCE;
+		tmp = config.get("health-probe");
+		if (tmp != null && !tmp.trim().equalsIgnoreCase("none")) {
+			try {
+				probe = HealthChecker.Probe.valueOf(tmp.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				log.error("Invalid health probe {}, health checking disabled", tmp);
+			}
+		}
+		try {
+			tmp = config.get("health-interval");
+			if (tmp != null) {
+				healthInterval = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("health-rise");
+			if (tmp != null) {
+				healthRise = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("health-fall");
+			if (tmp != null) {
+				healthFall = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("health-source");
+			if (tmp != null) {
+				healthSource = IPv4Address.of(tmp.trim());
+			}
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid health checking parameter {}, health checking disabled", tmp);
+			probe = null;
+		}
+		int switchRate = AdmissionControl.DEFAULT_SWITCH_RATE;
+		int sourceRate = AdmissionControl.DEFAULT_SOURCE_RATE;
+		short blockTime = AdmissionControl.DEFAULT_BLOCK_TIME;
+		try {
+			tmp = config.get("admission-switch-rate");
+			if (tmp != null) {
+				switchRate = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("admission-source-rate");
+			if (tmp != null) {
+				sourceRate = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("admission-block-time");
+			if (tmp != null) {
+				blockTime = Short.parseShort(tmp.trim());
+			}
+			if (switchRate < 0 || sourceRate < 0 || blockTime < 1) {
+				throw new IllegalArgumentException();
+			}
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid admission control parameter {}, using the defaults", tmp);
+			switchRate = AdmissionControl.DEFAULT_SWITCH_RATE;
+			sourceRate = AdmissionControl.DEFAULT_SOURCE_RATE;
+			blockTime = AdmissionControl.DEFAULT_BLOCK_TIME;
+		}
+		int pipelineThreads = 0;
+		int pipelineQueue = PacketInPipeline.DEFAULT_QUEUE_SIZE;
+		PacketInPipeline.Ordering ordering = PacketInPipeline.Ordering.FLOW;
+		try {
+			tmp = config.get("pipeline-threads");
+			if (tmp != null) {
+				pipelineThreads = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("pipeline-queue-size");
+			if (tmp != null) {
+				pipelineQueue = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("pipeline-ordering");
+			if (tmp != null) {
+				ordering = PacketInPipeline.Ordering.valueOf(tmp.trim().toUpperCase());
+			}
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid pipeline parameter {}, packet-ins handled inline", tmp);
+			pipelineThreads = 0;
+		}
+		DecisionLog.Level decisionLevel = DecisionLog.Level.INFO;
+		int decisionSampling = DecisionLog.DEFAULT_SAMPLING;
+		int decisionSize = DecisionLog.DEFAULT_SIZE;
+		try {
+			tmp = config.get("decision-log-level");
+			if (tmp != null) {
+				decisionLevel = DecisionLog.Level.valueOf(tmp.trim().toUpperCase());
+			}
+			tmp = config.get("decision-log-sampling");
+			if (tmp != null) {
+				decisionSampling = Integer.parseInt(tmp.trim());
+			}
+			tmp = config.get("decision-log-size");
+			if (tmp != null) {
+				decisionSize = Integer.parseInt(tmp.trim());
+			}
+			if (decisionSampling < 1 || decisionSize < 1) {
+				throw new IllegalArgumentException();
+			}
+		} catch (IllegalArgumentException e) {
+			log.error("Invalid decision log parameter {}, using the defaults", tmp);
+			decisionLevel = DecisionLog.Level.INFO;
+			decisionSampling = DecisionLog.DEFAULT_SAMPLING;
+			decisionSize = DecisionLog.DEFAULT_SIZE;
+		}
+		log.info("Load balancing mode: {}", mode);
+		
+		scheduledExecutor = threadPoolService.getScheduledExecutor();
 		servReg = new ServiceRegister();
-		servCounter = new ServiceCounter();						
+		servCounter = new ServiceCounter();
+		routeCache = new RouteCache(routingEngineService, deviceManagerService);
+		serverRanking = new ServerRanking(servReg, routeCache);
+		connTable = new ConnectionTable(connections, connIdleTimeout);
+		templates = new FlowTemplates();
+		servCounter.setMaxByteRate(null, maxByteRate);
+		statsPoller = new FlowStatsPoller(scheduledExecutor, statsInterval, statsAlpha);
+		drainMonitor = new DrainMonitor(this, scheduledExecutor, mode == Mode.REACTIVE);
+		decisionLog = new DecisionLog(decisionSize, decisionLevel, decisionSampling);
+		if (repair) {
+			flowRepair = new FlowRepair(connections, scheduledExecutor);
+		}
+		if (pipelineThreads > 0) {
+			pipeline = new PacketInPipeline(pipelineThreads, pipelineQueue, ordering);
+		}
+		if (switchRate > 0 || sourceRate > 0) {
+			admissionControl = new AdmissionControl(switchRate, sourceRate, blockTime);
+		}
+		if (probe != null) {
+			healthChecker = new HealthChecker(probe, healthSource, healthInterval,
+					healthRise, healthFall, scheduledExecutor);
+		}
+		if (mode == Mode.PROACTIVE) {
+			proactiveBalancer = new ProactiveBalancer(buckets, scheduledExecutor);
+		} else if (mode == Mode.GROUP) {
+			groupBalancer = new GroupBalancer(scheduledExecutor,
+					servCounter.getTimeInterval());
+		}
 	}
 
 	@Override
 	public void startUp(FloodlightModuleContext context) throws FloodlightModuleException {
+		// Before the listeners, which update the counters
+		metrics = new LoadBalancerMetrics(debugCounterService);
 		floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
+		floodlightProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
 		restApiService.addRestletRoutable(new LoadBalancerWebRoutable());
+		// The ranking forwards the events to the route cache
+		topologyService.addListener(serverRanking);
+		deviceManagerService.addListener(serverRanking);
+		if (proactiveBalancer != null) {
+			// After the ranking, so that it sees the new paths
+			topologyService.addListener(proactiveBalancer);
+		}
+		if (groupBalancer != null) {
+			topologyService.addListener(groupBalancer);
+			groupBalancer.update();
+		}
+		if (flowRepair != null) {
+			// After the ranking, so that the route cache has no stale path
+			topologyService.addListener(flowRepair);
+			scheduledExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					flowRepair.expire();
+				}
+			}, HARD_TIMEOUT, HARD_TIMEOUT, TimeUnit.SECONDS);
+		}
+		statsPoller.start();
+		decisionLog.start(scheduledExecutor);
+		if (healthChecker != null) {
+			healthChecker.start();
+		}
+		// Drop the idle connections
+		long period = Math.max(1, connTable.getIdleTimeout() / 2);
+		scheduledExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				connTable.expire();
+			}
+		}, period, period, TimeUnit.SECONDS);
+		if (admissionControl != null) {
+			// Drop the buckets of the idle sources
+			scheduledExecutor.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					admissionControl.expire();
+				}
+			}, ADMISSION_EXPIRE_PERIOD, ADMISSION_EXPIRE_PERIOD, TimeUnit.SECONDS);
+		}
 	}
 
 	@Override
 	public net.floodlightcontroller.core.IListener.Command receive(IOFSwitch sw, OFMessage msg,
 			FloodlightContext cntx) {
 		
+		if (msg.getType() == OFType.FLOW_REMOVED) {
+			return flowRemoved((OFFlowRemoved) msg);
+		}
 		OFPacketIn pi = (OFPacketIn) msg;
 		
 		Ethernet eth = IFloodlightProviderService.bcStore
@@ -121,32 +497,311 @@ public class LoadBalancer implements IOFMessageListener, IFloodlightModule, ILoa
 		return Command.STOP;
 	}
 	
+	/**
+	 * Account the packets and the bytes of a removed rule to its server
+	 * @param fr The FLOW_REMOVED message
+	 * @return STOP if the rule was installed by the load balancer
+	 */
+	private Command flowRemoved(OFFlowRemoved fr) {
+		if (AppCookie.extractApp(fr.getCookie()) != LB_APP_ID) {
+			return Command.CONTINUE;
+		}
+		IPv4Address server = getCookieServer(fr.getCookie());
+		long kind = getCookieKind(fr.getCookie());
+		if (kind == COOKIE_FORWARD) {
+			FlowKey flow = FlowKey.of(fr.getMatch());
+			// A closing connection ends with its forward rule
+			if (flow == null || connTable.ruleRemoved(flow)) {
+				servCounter.flowRemoved(server, fr.getPacketCount().getValue(), fr.getByteCount().getValue());
+			} else {
+				servCounter.addTraffic(server, fr.getPacketCount().getValue(), fr.getByteCount().getValue());
+			}
+			if (flowRepair != null && flow != null) {
+				flowRepair.remove(flow);
+			}
+		} else if (kind == COOKIE_REVERSE) {
+			servCounter.addTraffic(server, fr.getPacketCount().getValue(), fr.getByteCount().getValue());
+		}
+		return Command.STOP;
+	}
+	
+	/**
+	 * @param kind COOKIE_FORWARD, COOKIE_REVERSE or COOKIE_TRANSIT
+	 * @param group The index of the anycast group of the server
+	 * @param server The physical IP address of the server of the connection
+	 * @return The cookie of a rule of a connection
+	 */
+	public static U64 makeCookie(long kind, int group, IPv4Address server) {
+		return AppCookie.makeCookie(LB_APP_ID,
+				(((long) group << COOKIE_GROUP_SHIFT) & COOKIE_GROUP_MASK)
+				| (kind << COOKIE_KIND_SHIFT)
+				| (server.getInt() & COOKIE_SERVER_MASK));
+	}
+	
+	/**
+	 * @param cookie The cookie of a rule of a connection
+	 * @return The physical IP address of the server of the connection
+	 */
+	public static IPv4Address getCookieServer(U64 cookie) {
+		return IPv4Address.of((int) (AppCookie.extractUser(cookie) & COOKIE_SERVER_MASK));
+	}
+	
+	/**
+	 * @param cookie The cookie of a rule of a connection
+	 * @return COOKIE_FORWARD, COOKIE_REVERSE or COOKIE_TRANSIT
+	 */
+	public static long getCookieKind(U64 cookie) {
+		return (AppCookie.extractUser(cookie) & COOKIE_KIND_MASK) >>> COOKIE_KIND_SHIFT;
+	}
+	
+	/**
+	 * Delete the rules of some servers of an anycast group, or of the whole
+	 * group, from all the switches, with a single write per switch.
+	 * OpenFlow 1.0 cannot mask the cookie of a FlowDelete: on these switches
+	 * the rules are left to their timeouts
+	 * @param group The index of the anycast group
+	 * @param servers The physical IP addresses of the servers, or null to
+	 * delete the rules of all the servers of the group
+	 */
+	protected static void deleteRules(int group, Collection<IPv4Address> servers) {
+		if (servers == null && group == 0) {
+			// A group without index shares its cookies with the others
+			return;
+		}
+		FlowBatch batch = new FlowBatch();
+		for (DatapathId dpid : switchService.getAllSwitchDpids()) {
+			IOFSwitch sw = switchService.getActiveSwitch(dpid);
+			if (sw == null || sw.getOFFactory().getVersion().compareTo(OFVersion.OF_10) <= 0) {
+				continue;
+			}
+			if (servers == null) {
+				batch.add(sw, sw.getOFFactory().buildFlowDelete()
+						.setCookie(makeCookie(0, group, IPv4Address.NONE))
+						.setCookieMask(U64.of(COOKIE_GROUP_MASK).or(AppCookie.getAppFieldMask()))
+						.build());
+				continue;
+			}
+			for (IPv4Address server : servers) {
+				batch.add(sw, sw.getOFFactory().buildFlowDelete()
+						.setCookie(makeCookie(0, group, server))
+						.setCookieMask(U64.of(COOKIE_GROUP_MASK | COOKIE_SERVER_MASK)
+								.or(AppCookie.getAppFieldMask()))
+						.build());
+			}
+		}
+		log.debug("Deleting the rules of group {} with {} FlowDeletes", group, batch.size());
+		batch.flush();
+	}
+	
 	@Override
 	public String subscribe(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr) {
-		int ret;
-		synchronized (ServiceRegister.class) {
-			ret = servReg.subscribe(anyAddr, phyAddr);
+		int ret = servReg.subscribe(anyAddr, phyAddr);
+		if (ret > 0) {
+			templates.invalidateGroup(anyAddr);
+			updateRules();
 		}
 		String message = ret + " service" + (ret!=1?"s":"") + " (out of " + phyAddr.size() + ") subscribed";
-		System.out.println(message);
+		log.info("{}: {}", anyAddr, message);
 		return message;
 	}
 	
 	@Override
 	public String unsubscribe(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr) {
-		int ret;
-		synchronized (ServiceRegister.class) {
-			ret = servReg.unsubscribe(anyAddr, phyAddr);
+		ServiceRegister.Group before = servReg.getSnapshot().getGroup(anyAddr);
+		int ret = servReg.unsubscribe(anyAddr, phyAddr);
+		ServiceRegister.Group after = servReg.getSnapshot().getGroup(anyAddr);
+		drainMonitor.remove(phyAddr);
+		if (after == null) {
+			serverRanking.invalidateGroup(anyAddr);
+		}
+		if (ret > 0) {
+			templates.invalidateGroup(anyAddr);
+			updateRules();
+			// The connections toward the departed servers are moved at their
+			// next packet, instead of waiting for the timeouts of the rules
+			if (after == null) {
+				deleteRules(before.getIndex(), null);
+			} else {
+				Set<IPv4Address> departed = new HashSet<IPv4Address>(before.getPhyAddrs());
+				departed.removeAll(after.getPhyAddrs());
+				if (!departed.isEmpty()) {
+					deleteRules(before.getIndex(), departed);
+				}
+			}
 		}
 		String message = ret + " service" + (ret!=1?"s":"") + " (out of " + phyAddr.size() + ") unsubscribed";
-		System.out.println(message);
+		log.info("{}: {}", anyAddr, message);
+		return message;
+	}
+
+	@Override
+	public String drain(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr, int timeout) {
+		// The servers keep the buckets of the rules installed in advance
+		// until they are unsubscribed
+		servReg.setDraining(anyAddr, phyAddr, true);
+		ServiceRegister.Group group = servReg.getSnapshot().getGroup(anyAddr);
+		if (group == null) {
+			return "Error: " + anyAddr + " is not registered";
+		}
+		// A server already draining gets the new deadline
+		ArrayList<ServerEntry> draining = new ArrayList<ServerEntry>();
+		for (ServerEntry server : phyAddr) {
+			if (group.getDraining().contains(server)) {
+				draining.add(server);
+			}
+		}
+		drainMonitor.add(anyAddr, draining, timeout < 0 ? drainTimeout : timeout);
+		String message = draining.size() + " service" + (draining.size()!=1?"s":"") + " (out of " + phyAddr.size() + ") draining";
+		log.info(message);
 		return message;
 	}
+	
+	@Override
+	public String undrain(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr) {
+		int ret = servReg.setDraining(anyAddr, phyAddr, false);
+		drainMonitor.remove(phyAddr);
+		return ret + " service" + (ret!=1?"s":"") + " (out of " + phyAddr.size() + ") no longer draining";
+	}
+	
+	@Override
+	public List<Map<String, Object>> getDrainStatus() {
+		return drainMonitor.getStatus();
+	}
+	
+	@Override
+	public Map<String, Long> getAdmissionStats() {
+		Map<String, Long> stats = new HashMap<String, Long>();
+		if (admissionControl != null) {
+			stats.putAll(admissionControl.getStats());
+		}
+		if (pipeline != null) {
+			stats.putAll(pipeline.getStats());
+		}
+		return stats;
+	}
+	
+	@Override
+	public List<Map<String, Object>> getDecisions(int last) {
+		return decisionLog.getLast(last);
+	}
+	
+	@Override
+	public String setDecisionLog(DecisionLog.Level level, int sampling) {
+		if (sampling < 1) {
+			return "Error: the sampling rate must be at least 1";
+		}
+		decisionLog.setLevel(level, sampling);
+		log.info("Decision log level {}, sampling 1 out of {}", level, sampling);
+		return "Decision log level " + level + ", sampling 1 out of " + sampling;
+	}
+	
+	@Override
+	public Map<String, Object> getMetrics() {
+		return metrics.getMetrics();
+	}
+	
+	@Override
+	public Map<String, String> getHealth() {
+		if (healthChecker == null) {
+			return Collections.emptyMap();
+		}
+		return healthChecker.getStatus();
+	}
+
+	/**
+	 * Bring the rules installed in advance (if any) in line with the
+	 * register and the capacity of the servers
+	 */
+	protected static void updateRules() {
+		if (proactiveBalancer != null) {
+			proactiveBalancer.update();
+		}
+		if (groupBalancer != null) {
+			groupBalancer.update();
+		}
+	}
 
 	@Override
 	public ArrayList<IPv4Address> showList(IPv4Address anyAddr) {
-		System.out.println(servReg);
-		ArrayList<IPv4Address> phyAddr = servReg.getServersPhyAddr(anyAddr);
-		return phyAddr;
+		log.debug("Service register: {}", servReg);
+		List<IPv4Address> phyAddr = servReg.getServersPhyAddr(anyAddr);
+		return phyAddr == null ? null : new ArrayList<IPv4Address>(phyAddr);
+	}
+	
+	@Override
+	public String setCapacity(IPv4Address phyAddr, int maxCount) {
+		if (phyAddr == null) {
+			servCounter.setDefaultCapacity(maxCount);
+			updateRules();
+			return "Default capacity set to " + maxCount;
+		}
+		servCounter.setCapacity(phyAddr, maxCount);
+		updateRules();
+		return "Capacity of " + phyAddr + " set to " + maxCount;
+	}
+	
+	@Override
+	public int getCapacity(IPv4Address phyAddr) {
+		if (phyAddr == null) {
+			return servCounter.getDefaultCapacity();
+		}
+		return servCounter.getCapacity(phyAddr);
+	}
+	
+	@Override
+	public int getRequestCounter(IPv4Address phyAddr) {
+		return servCounter.getRequestCounter(phyAddr);
+	}
+	
+	@Override
+	public Map<String, Object> getServerStats(IPv4Address phyAddr) {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		FlowStats f = servCounter.getFlowStats(phyAddr);
+		stats.put("physical", phyAddr.toString());
+		stats.put("load", servCounter.getLoad(phyAddr));
+		stats.put("active-flows", f == null ? 0 : f.getActiveFlows());
+		stats.put("flows", f == null ? 0 : f.getFlows());
+		stats.put("packets", f == null ? 0 : f.getPackets());
+		stats.put("bytes", f == null ? 0 : f.getBytes());
+		stats.put("byte-rate", f == null ? 0 : f.getByteRate());
+		stats.put("packet-rate", f == null ? 0 : f.getPacketRate());
+		stats.put("max-byte-rate", servCounter.getMaxByteRate(phyAddr));
+		return stats;
+	}
+	
+	@Override
+	public String setMaxByteRate(IPv4Address phyAddr, long maxByteRate) {
+		servCounter.setMaxByteRate(phyAddr, maxByteRate);
+		updateRules();
+		return "Maximum throughput of " + (phyAddr == null ? "the servers" : phyAddr)
+				+ " set to " + maxByteRate + " B/s";
+	}
+	
+	@Override
+	public Map<String, Long> getRouteCacheStats() {
+		Map<String, Long> stats = routeCache.getStats();
+		stats.putAll(serverRanking.getStats());
+		if (flowRepair != null) {
+			stats.putAll(flowRepair.getStats());
+		}
+		return stats;
+	}
+	
+	@Override
+	public String setStrategy(IPv4Address anyAddr, String strategy) {
+		ServerSelectionStrategy s = SelectionStrategies.create(strategy);
+		if (s == null) {
+			return "Error: unknown strategy " + strategy;
+		}
+		if (!servReg.setStrategy(anyAddr, s)) {
+			return "Error: " + anyAddr + " is not registered";
+		}
+		return "Strategy of " + anyAddr + " set to " + s.getName();
+	}
+	
+	@Override
+	public String getStrategy(IPv4Address anyAddr) {
+		ServiceRegister.Group group = servReg.getSnapshot().getGroup(anyAddr);
+		return group == null ? null : group.getStrategy().getName();
 	}
 }
\ No newline at end of file
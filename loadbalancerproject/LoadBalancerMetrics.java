@@ -0,0 +1,62 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
+import net.floodlightcontroller.debugcounter.IDebugCounterService.MetaData;
+
+/**
+ * The counters and the latency histograms of the handlers of the
+ * packet-ins. The counters are registered in the debug counter service, so
+ * they are also shown with the other counters of the controller; the
+ * histograms measure where the time of a new flow goes: the lookup of the
+ * routes, the selection of the server and the push of the FlowMods.
+ */
+public class LoadBalancerMetrics {
+	public static final String MODULE = "loadbalancer";
+
+	public final IDebugCounter arpReplies;
+	public final IDebugCounter icmpReplies;
+	public final IDebugCounter selections;
+	public final IDebugCounter noServer;
+	public final IDebugCounter replyRewrites;
+
+	public final LatencyHistogram routeLookup = new LatencyHistogram();
+	public final LatencyHistogram serverSelection = new LatencyHistogram();
+	public final LatencyHistogram flowModPush = new LatencyHistogram();
+
+	/**
+	 * @param debugCounterService The service which registers the counters
+	 */
+	public LoadBalancerMetrics(IDebugCounterService debugCounterService) {
+		debugCounterService.registerModule(MODULE);
+		arpReplies = debugCounterService.registerCounter(MODULE, "arp-replies",
+				"ARP replies sent for the anycast addresses");
+		icmpReplies = debugCounterService.registerCounter(MODULE, "icmp-anycast-replies",
+				"Echo replies sent for the anycast addresses");
+		selections = debugCounterService.registerCounter(MODULE, "anycast-selections",
+				"TCP and UDP flows toward an anycast group given a server");
+		noServer = debugCounterService.registerCounter(MODULE, "no-server",
+				"Packets toward an anycast group without an available server", MetaData.WARN);
+		replyRewrites = debugCounterService.registerCounter(MODULE, "reply-rewrites",
+				"Rules installed to rewrite the source of the answers of a server");
+	}
+
+	/**
+	 * @return The values of the counters and the summaries of the histograms
+	 */
+	public Map<String, Object> getMetrics() {
+		Map<String, Object> metrics = new LinkedHashMap<>();
+		metrics.put("arp-replies", arpReplies.getCounterValue());
+		metrics.put("icmp-anycast-replies", icmpReplies.getCounterValue());
+		metrics.put("anycast-selections", selections.getCounterValue());
+		metrics.put("no-server", noServer.getCounterValue());
+		metrics.put("reply-rewrites", replyRewrites.getCounterValue());
+		metrics.put("route-lookup", routeLookup.getSummary());
+		metrics.put("server-selection", serverSelection.getSummary());
+		metrics.put("flowmod-push", flowModPush.getSummary());
+		return metrics;
+	}
+}
@@ -29,6 +29,24 @@ public class LoadBalancerWebRoutable implements RestletRoutable {
         router.attach("/controller/unsubscribe/json", Unsubscribe.class);        
         // Show the list of physical IP addresses associated with an anycast address
         router.attach("/controller/showlist/json", ShowList.class);
+        // Show or set the capacity of the servers
+        router.attach("/controller/capacity/json", Capacity.class);
+        // Show or set the server selection strategy of an anycast group
+        router.attach("/controller/strategy/json", Strategy.class);
+        // Show the hit, miss and invalidation counters of the route cache
+        router.attach("/controller/routecache/json", RouteCacheStats.class);
+        // Show the flows, packets and bytes of a server
+        router.attach("/controller/serverstats/json", ServerStats.class);
+        // Drain some servers, or show the progress of the draining
+        router.attach("/controller/drain/json", Drain.class);
+        // Show the state of the servers probed by the health checker
+        router.attach("/controller/health/json", Health.class);
+        // Show the counters of the admission control of the packet-ins
+        router.attach("/controller/admission/json", Admission.class);
+        // Show the last decisions of the load balancer, or set what is recorded
+        router.attach("/controller/decisions/json", Decisions.class);
+        // Show the counters and the latency histograms of the handlers
+        router.attach("/controller/metrics/json", Metrics.class);
         /**********************************************/
         
 		return router;
@@ -0,0 +1,223 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent open-addressing table with primitive long keys (IPv4
+ * addresses, DPIDs, ...). Lookups are lock-free and do not allocate;
+ * insertions and removals are serialized and are expected to be rare
+ * compared with lookups.
+ * @param <V> The type of the values
+ */
+public class LongKeyedTable<V> {
+	/**
+	 * Creates the value associated with a key that is not in the table yet
+	 */
+	public interface Factory<V> {
+		public V create(long key);
+	}
+
+	/**
+	 * Visits the entries of the table
+	 */
+	public interface Visitor<V> {
+		public void visit(long key, V value);
+	}
+
+	private static final Object TOMBSTONE = new Object();
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * The arrays of the table. A key is published before its value, so a
+	 * reader that sees a non-null value also sees the right key.
+	 */
+	private static final class Table {
+		final long[] keys;
+		final AtomicReferenceArray<Object> values;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new long[capacity];
+			values = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table table;
+	// Guarded by this
+	private int size;
+	private int used;
+
+	public LongKeyedTable() {
+		table = new Table(INITIAL_CAPACITY);
+	}
+
+	private static int index(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * @param key The key
+	 * @return The value associated with key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		Table t = table;
+		int i = index(key, t.mask);
+		while (true) {
+			Object v = t.values.get(i);
+			if (v == null) {
+				return null;
+			}
+			if (t.keys[i] == key) {
+				return v == TOMBSTONE ? null : (V) v;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Get the value associated with key, creating it with factory if the
+	 * key is not in the table. Only the creation takes a lock
+	 * @param key The key
+	 * @param factory The factory of the value
+	 * @return The value associated with key
+	 */
+	public V getOrCreate(long key, Factory<V> factory) {
+		V v = get(key);
+		if (v != null) {
+			return v;
+		}
+		synchronized (this) {
+			v = get(key);
+			if (v == null) {
+				v = factory.create(key);
+				insert(key, v);
+			}
+			return v;
+		}
+	}
+
+	/**
+	 * Associate value with key, replacing the previous value (if any)
+	 * @param key The key
+	 * @param value The value, not null
+	 */
+	public synchronized void put(long key, V value) {
+		insert(key, value);
+	}
+
+	/**
+	 * Remove the value associated with key
+	 * @param key The key
+	 * @return The removed value, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(long key) {
+		Table t = table;
+		int i = index(key, t.mask);
+		while (true) {
+			Object v = t.values.get(i);
+			if (v == null) {
+				return null;
+			}
+			if (t.keys[i] == key) {
+				if (v == TOMBSTONE) {
+					return null;
+				}
+				t.values.set(i, TOMBSTONE);
+				size--;
+				return (V) v;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * @return The number of entries in the table
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Visit all the entries of the table. The visit is weakly consistent
+	 * @param visitor The visitor
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(Visitor<V> visitor) {
+		Table t = table;
+		for (int i = 0; i <= t.mask; i++) {
+			Object v = t.values.get(i);
+			if (v != null && v != TOMBSTONE) {
+				visitor.visit(t.keys[i], (V) v);
+			}
+		}
+	}
+
+	/**
+	 * Remove all the entries of the table
+	 */
+	public synchronized void clear() {
+		table = new Table(INITIAL_CAPACITY);
+		size = 0;
+		used = 0;
+	}
+
+	// Must be called holding the lock of the table
+	private void insert(long key, Object value) {
+		Table t = table;
+		int i = index(key, t.mask);
+		while (true) {
+			Object v = t.values.get(i);
+			if (v == null) {
+				break;
+			}
+			if (t.keys[i] == key) {
+				if (v == TOMBSTONE) {
+					size++;
+				}
+				t.values.set(i, value);
+				return;
+			}
+			i = (i + 1) & t.mask;
+		}
+		// Keep the table at most half full (tombstones included)
+		if ((used + 1) * 2 > t.mask + 1) {
+			t = resize(size + 1);
+			i = index(key, t.mask);
+			while (t.values.get(i) != null) {
+				i = (i + 1) & t.mask;
+			}
+		}
+		t.keys[i] = key;
+		t.values.set(i, value);
+		size++;
+		used++;
+	}
+
+	// Must be called holding the lock of the table
+	private Table resize(int entries) {
+		Table old = table;
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < entries * 4) {
+			capacity <<= 1;
+		}
+		Table t = new Table(capacity);
+		for (int j = 0; j <= old.mask; j++) {
+			Object v = old.values.get(j);
+			if (v != null && v != TOMBSTONE) {
+				int i = index(old.keys[j], t.mask);
+				while (t.values.get(i) != null) {
+					i = (i + 1) & t.mask;
+				}
+				t.keys[i] = old.keys[j];
+				t.values.set(i, v);
+			}
+		}
+		used = size;
+		table = t;
+		return t;
+	}
+}
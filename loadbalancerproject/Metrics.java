@@ -0,0 +1,25 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * It creates a response for the GET message that requires the metrics of
+ * the handlers: the ARP and echo replies, the servers selected, the packets
+ * without an available server and the reply rewrites installed, then the
+ * count, mean, percentiles and maximum (in nanoseconds) of the time spent
+ * looking up the routes, selecting the server and pushing the FlowMods.
+ *
+ * http://localhost:8080/lb/controller/metrics/json
+ * GET message
+ */
+public class Metrics extends ServerResource {
+	@Get("json")
+	public Map<String, Object> retrieve() {
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.getMetrics();
+	}
+}
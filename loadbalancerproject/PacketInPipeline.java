@@ -0,0 +1,121 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * The optional stage which moves the handling of the packet-ins addressed
+ * to the anycast groups (or answered by their servers) off the OpenFlow
+ * I/O threads. Every worker is a single thread with a bounded queue, and a
+ * packet-in always goes to the worker of its switch or of its flow, so the
+ * packet-ins of a switch (or of a flow) are handled in the order they
+ * arrived. When the queue of a worker is full the packet-in is dropped:
+ * the I/O threads never wait, and the next packet of the flow brings a new
+ * packet-in.
+ */
+public class PacketInPipeline {
+	protected static final Logger log = LoggerFactory.getLogger(PacketInPipeline.class);
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/**
+	 * What keeps its order through the pipeline
+	 */
+	public enum Ordering {
+		SWITCH, FLOW
+	}
+
+	private final ThreadPoolExecutor[] workers;
+	private final Ordering ordering;
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+
+	/**
+	 * @param threads The number of workers
+	 * @param queueSize The number of packet-ins a worker can queue
+	 * @param ordering What keeps its order
+	 */
+	public PacketInPipeline(int threads, int queueSize, Ordering ordering) {
+		if (threads < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("Invalid number of threads or queue size");
+		}
+		this.ordering = ordering;
+		this.workers = new ThreadPoolExecutor[threads];
+		for (int i = 0; i < threads; i++) {
+			final String name = "LB-PacketIn-" + i;
+			workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, name);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	/**
+	 * Hand the handling of a packet-in to its worker, or run it in the
+	 * calling thread if the pipeline is disabled
+	 * @param sw The switch which sent the packet-in
+	 * @param ipv4 The packet
+	 * @param handler The handling of the packet-in
+	 */
+	public static void dispatch(IOFSwitch sw, IPv4 ipv4, Runnable handler) {
+		PacketInPipeline p = LoadBalancer.pipeline;
+		if (p == null) {
+			handler.run();
+		} else {
+			p.submit(sw, ipv4, handler);
+		}
+	}
+
+	private void submit(IOFSwitch sw, IPv4 ipv4, final Runnable handler) {
+		long key = ordering == Ordering.SWITCH ? FlowKey.mix(sw.getId().getLong())
+				: FlowKey.of(ipv4).hash64();
+		ThreadPoolExecutor worker = workers[(int) ((key & Long.MAX_VALUE) % workers.length)];
+		try {
+			worker.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handler.run();
+					} catch (Exception e) {
+						log.error("Exception while handling a packet-in", e);
+					}
+				}
+			});
+			submitted.increment();
+		} catch (RejectedExecutionException e) {
+			shed.increment();
+		}
+	}
+
+	/**
+	 * @return The counters of the pipeline
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		long queued = 0;
+		for (ThreadPoolExecutor w : workers) {
+			queued += w.getQueue().size();
+		}
+		stats.put("pipeline-submitted", submitted.sum());
+		stats.put("pipeline-shed", shed.sum());
+		stats.put("pipeline-queued", queued);
+		return stats;
+	}
+}
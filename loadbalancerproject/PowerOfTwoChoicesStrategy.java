@@ -0,0 +1,47 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pick two servers at random and choose the one with the lowest load with
+ * respect to its capacity
+ */
+public class PowerOfTwoChoicesStrategy implements ServerSelectionStrategy {
+	public static final String NAME = "power-of-two-choices";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public RouteInfo select(List<RouteInfo> routes, FlowKey flow, ServiceCounter counter) {
+		int size = routes.size();
+		if (size == 0) {
+			return null;
+		}
+		RouteInfo best = routes.get(0);
+		if (size > 1) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int i = random.nextInt(size);
+			int j = random.nextInt(size - 1);
+			if (j >= i) {
+				j++;
+			}
+			RouteInfo a = routes.get(i);
+			RouteInfo b = routes.get(j);
+			boolean aAvailable = counter.isAvailable(a.destination);
+			boolean bAvailable = counter.isAvailable(b.destination);
+			if (aAvailable && bAvailable) {
+				best = counter.getLoad(a.destination) <= counter.getLoad(b.destination) ? a : b;
+			} else {
+				best = aAvailable ? a : (bAvailable ? b : null);
+			}
+		}
+		if (best != null && counter.newService(best.destination)) {
+			return best;
+		}
+		return SelectionStrategies.firstAvailable(routes, counter, best);
+	}
+}
@@ -0,0 +1,320 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFMessage;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.action.OFAction;
+import org.projectfloodlight.openflow.protocol.action.OFActions;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.protocol.oxm.OFOxms;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.OFBufferId;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.routing.Path;
+import net.floodlightcontroller.topology.ITopologyListener;
+import net.floodlightcontroller.util.FlowModUtils;
+
+/**
+ * Proactive mode of the load balancer. On every switch, the traffic toward
+ * an anycast address is split in hash buckets on the low bits of IPV4_SRC,
+ * and every bucket is mapped to a server proportionally to the capacity of
+ * the servers. New connections are then balanced in the data plane without
+ * packet-ins; rebalancing rewrites only the buckets whose server or path
+ * changed. The rules are (re)installed by a single task, triggered by
+ * membership, capacity and topology changes. The rules carry the transit
+ * cookie of their group and server, so that they are deleted with the rules
+ * of a server which leaves the group, or of a removed group.
+ * OpenFlow 1.0 cannot mask IPV4_SRC on other bits than a prefix: the switches
+ * which do not support the buckets have no rule toward the anycast addresses,
+ * so their requests keep on being balanced by the packet-in path.
+ */
+public class ProactiveBalancer implements ITopologyListener {
+	public static final int DEFAULT_BUCKETS = 16;
+	// Lower than the reactive rules, which take precedence on single flows
+	public static final int PRIORITY = FlowModUtils.PRIORITY_HIGH;
+	// Topology changes come in bursts
+	private static final long TOPOLOGY_DELAY = 200; // in milliseconds
+
+	private final int buckets;
+	private final SingletonTask task;
+	// DPID -> anycast IP address (as int) -> route installed for every
+	// bucket. Only accessed by the task
+	private final Map<DatapathId, Map<Integer, RouteInfo[]>> installed = new HashMap<>();
+
+	/**
+	 * @param buckets The number of buckets of every anycast group, a power of 2
+	 * @param ses The executor which runs the installation task
+	 */
+	public ProactiveBalancer(int buckets, ScheduledExecutorService ses) {
+		if (buckets < 1 || Integer.bitCount(buckets) != 1) {
+			throw new IllegalArgumentException("The number of buckets must be a power of 2");
+		}
+		this.buckets = buckets;
+		this.task = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run() {
+				install();
+			}
+		});
+	}
+
+	public int getBuckets() {
+		return buckets;
+	}
+
+	/**
+	 * @param sw A switch
+	 * @return true: if the switch is balanced by the buckets (OpenFlow 1.1
+	 * and later)
+	 */
+	public static boolean supportsBuckets(IOFSwitch sw) {
+		return sw.getOFFactory().getVersion().compareTo(OFVersion.OF_11) >= 0;
+	}
+
+	/**
+	 * Bring the rules of all the switches in line with the register
+	 */
+	public void update() {
+		task.reschedule(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void topologyChanged(List<LDUpdate> linkUpdates) {
+		task.reschedule(TOPOLOGY_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	private void install() {
+		ServiceRegister.Snapshot snapshot = LoadBalancer.servReg.getSnapshot();
+		Set<DatapathId> active = new HashSet<>();
+		for (DatapathId dpid : LoadBalancer.switchService.getAllSwitchDpids()) {
+			IOFSwitch sw = LoadBalancer.switchService.getActiveSwitch(dpid);
+			if (sw == null || !supportsBuckets(sw)) {
+				continue;
+			}
+			active.add(dpid);
+			Map<Integer, RouteInfo[]> groups = installed.get(dpid);
+			if (groups == null) {
+				groups = new HashMap<>();
+				installed.put(dpid, groups);
+			}
+			for (ServiceRegister.Group g : snapshot.getGroups()) {
+				installGroup(sw, g, groups);
+			}
+			// Remove the rules of the groups which are not registered anymore
+			Iterator<Integer> i = groups.keySet().iterator();
+			while (i.hasNext()) {
+				IPv4Address anyAddr = IPv4Address.of(i.next());
+				if (snapshot.getGroup(anyAddr) == null) {
+					removeGroup(sw, anyAddr);
+					i.remove();
+				}
+			}
+		}
+		installed.keySet().retainAll(active);
+	}
+
+	/**
+	 * Install the buckets of an anycast group on a switch
+	 * @param sw The switch
+	 * @param group The anycast group
+	 * @param groups The routes installed on the switch for every group
+	 */
+	private void installGroup(IOFSwitch sw, ServiceRegister.Group group, Map<Integer, RouteInfo[]> groups) {
+		List<RouteInfo> servers = nearestServers(sw, group);
+		int anyAddr = group.getAnyAddr().getInt();
+		if (servers.isEmpty()) {
+			if (groups.remove(anyAddr) != null) {
+				removeGroup(sw, group.getAnyAddr());
+			}
+			return;
+		}
+		RouteInfo[] assignment = assign(servers);
+		RouteInfo[] previous = groups.get(anyAddr);
+
+		List<OFMessage> msgs = new ArrayList<>();
+		Set<RouteInfo> changed = new HashSet<>();
+		for (int b = 0; b < buckets; b++) {
+			// The rankings are rebuilt by every topology or device event
+			if (previous != null && previous[b].sameRoute(assignment[b])) {
+				continue;
+			}
+			OFMessage fm = buildBucket(sw, group, b, assignment[b]);
+			if (fm != null) {
+				msgs.add(fm);
+				changed.add(assignment[b]);
+			}
+		}
+		// In the following switches (if any), push the rules to send the
+		// packets towards the servers
+		for (RouteInfo r : changed) {
+			pushDownstream(sw, group.getIndex(), r);
+		}
+		sw.write(msgs);
+		groups.put(anyAddr, assignment);
+	}
+
+	/**
+	 * A draining server keeps its buckets until it is unsubscribed: its
+	 * connections have no rule of their own, so moving its buckets would
+	 * move them too
+	 * @param sw The switch
+	 * @param group The anycast group
+	 * @return The route toward the nearest attachment point of every server
+	 * of the group which is not down, sorted by number of hops
+	 */
+	static List<RouteInfo> nearestServers(IOFSwitch sw, ServiceRegister.Group group) {
+		List<RouteInfo> servers = new ArrayList<>();
+		Set<IPv4Address> seen = new HashSet<>();
+		for (RouteInfo r : LoadBalancer.serverRanking.getRoutes(sw.getId(), group)) {
+			if (seen.add(r.destination)) {
+				servers.add(r);
+			}
+		}
+		return servers;
+	}
+
+	/**
+	 * Map every bucket to a server, proportionally to the capacity of the
+	 * servers (smooth weighted round-robin over the buckets)
+	 * @param servers The routes toward the servers, sorted by number of hops
+	 * @return The route of every bucket
+	 */
+	private RouteInfo[] assign(List<RouteInfo> servers) {
+		RouteInfo[] assignment = new RouteInfo[buckets];
+		long[] current = new long[servers.size()];
+		int[] weights = new int[servers.size()];
+		long total = 0;
+		for (int s = 0; s < weights.length; s++) {
+			weights[s] = LoadBalancer.servCounter.getCapacity(servers.get(s).destination);
+			total += weights[s];
+		}
+		for (int b = 0; b < buckets; b++) {
+			int best = 0;
+			for (int s = 0; s < weights.length; s++) {
+				current[s] += weights[s];
+				if (current[s] > current[best]) {
+					best = s;
+				}
+			}
+			current[best] -= total;
+			assignment[b] = servers.get(best);
+		}
+		return assignment;
+	}
+
+	/**
+	 * Build the rule of a bucket: rewrite the anycast destination with the
+	 * server and send the packet toward it
+	 * @param sw The switch
+	 * @param group The anycast group
+	 * @param bucket The index of the bucket
+	 * @param route The route toward the server of the bucket
+	 * @return The FlowMod, or null if the server is not known by the device
+	 * manager
+	 */
+	private OFMessage buildBucket(IOFSwitch sw, ServiceRegister.Group group, int bucket, RouteInfo route) {
+		List<OFAction> actionList = buildRewrite(sw, route);
+		if (actionList == null) {
+			return null;
+		}
+		Match match = sw.getOFFactory().buildMatch()
+				.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+				.setExact(MatchField.IPV4_DST, group.getAnyAddr())
+				.setMasked(MatchField.IPV4_SRC, IPv4Address.of(bucket), IPv4Address.of(buckets - 1))
+				.build();
+		OFFlowAdd.Builder fmb = sw.getOFFactory().buildFlowAdd()
+				.setIdleTimeout(0)
+				.setHardTimeout(0)
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_TRANSIT, group.getIndex(), route.destination))
+				.setPriority(PRIORITY)
+				.setMatch(match);
+		FlowModUtils.setActions(fmb, actionList, sw);
+		return fmb.build();
+	}
+
+	/**
+	 * Build the actions which rewrite the anycast destination with a server
+	 * and send the packet toward it
+	 * @param sw The switch where the actions are applied
+	 * @param route The route toward the server
+	 * @return The actions, or null if the server is not known by the device
+	 * manager
+	 */
+	static List<OFAction> buildRewrite(IOFSwitch sw, RouteInfo route) {
+		IDevice device = LoadBalancer.routeCache.getDevice(route.destination);
+		if (device == null) {
+			return null;
+		}
+		OFActions actions = sw.getOFFactory().actions();
+		OFOxms oxms = sw.getOFFactory().oxms();
+		List<OFAction> actionList = new ArrayList<OFAction>();
+		actionList.add(actions.buildSetField()
+				.setField(oxms.buildIpv4Dst().setValue(route.destination).build())
+				.build());
+		actionList.add(actions.buildSetField()
+				.setField(oxms.buildEthDst().setValue(device.getMACAddress()).build())
+				.build());
+		actionList.add(actions.buildOutput()
+				.setMaxLen(0xFFffFFff)
+				.setPort(RouteHandler.getOutPort(route.destination, route.path, sw.getId()))
+				.build());
+		return actionList;
+	}
+
+	/**
+	 * Push the permanent rules toward a server in the switches which follow
+	 * the first one of the route (if any)
+	 * @param sw The first switch of the route
+	 * @param groupIndex The index of the anycast group
+	 * @param route The route toward the server
+	 */
+	static void pushDownstream(IOFSwitch sw, int groupIndex, RouteInfo route) {
+		Path newRoute = RouteHandler.cutRouteHead(route.path);
+		if (newRoute == null) {
+			return;
+		}
+		OFFlowAdd.Builder flowMod = sw.getOFFactory().buildFlowAdd()
+				.setIdleTimeout(0)
+				.setHardTimeout(0)
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_TRANSIT, groupIndex, route.destination))
+				.setPriority(PRIORITY);
+		Match match = sw.getOFFactory().buildMatch()
+				.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+				.setExact(MatchField.IPV4_DST, route.destination)
+				.build();
+		RouteHandler.pushRoute(route.destination, newRoute, match, flowMod);
+	}
+
+	/**
+	 * Remove the rules toward an anycast address from a switch
+	 * @param sw The switch
+	 * @param anyAddr The anycast IP address
+	 */
+	private void removeGroup(IOFSwitch sw, IPv4Address anyAddr) {
+		sw.write(sw.getOFFactory().buildFlowDelete()
+				.setMatch(sw.getOFFactory().buildMatch()
+						.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+						.setExact(MatchField.IPV4_DST, anyAddr)
+						.build())
+				.build());
+	}
+}
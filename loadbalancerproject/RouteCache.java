@@ -0,0 +1,215 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv6Address;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.UpdateOperation;
+import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.Path;
+import net.floodlightcontroller.topology.ITopologyListener;
+
+/**
+ * The cache of the paths between two switches, keyed by <start DPID, end
+ * DPID>, and of the devices, keyed by IPv4 address. The paths are dropped
+ * at every topology change, the devices when they move or change address,
+ * so in the steady state no path is computed on the packet-in path.
+ */
+public class RouteCache implements ITopologyListener, IDeviceListener {
+	private final IRoutingService routingService;
+	private final IDeviceService deviceService;
+
+	// Start DPID -> end DPID -> path. The whole table is replaced when
+	// invalidated, so a path computed before an invalidation is never
+	// stored in the new table
+	private volatile LongKeyedTable<LongKeyedTable<Path>> routes;
+	// IPv4 address (as int) -> device
+	private volatile LongKeyedTable<IDevice> devices;
+
+	private static final LongKeyedTable.Factory<LongKeyedTable<Path>> ROW_FACTORY =
+			new LongKeyedTable.Factory<LongKeyedTable<Path>>() {
+				@Override
+				public LongKeyedTable<Path> create(long key) {
+					return new LongKeyedTable<>();
+				}
+			};
+
+	private final LongAdder routeHits = new LongAdder();
+	private final LongAdder routeMisses = new LongAdder();
+	private final LongAdder routeInvalidations = new LongAdder();
+	private final LongAdder deviceHits = new LongAdder();
+	private final LongAdder deviceMisses = new LongAdder();
+	private final LongAdder deviceInvalidations = new LongAdder();
+
+	public RouteCache(IRoutingService routingService, IDeviceService deviceService) {
+		this.routingService = routingService;
+		this.deviceService = deviceService;
+		this.routes = new LongKeyedTable<>();
+		this.devices = new LongKeyedTable<>();
+	}
+
+	/**
+	 * Get the path between two switches
+	 * @param start The first switch of the path
+	 * @param end The last switch of the path
+	 * @return The path computed by the routing service
+	 */
+	public Path getPath(DatapathId start, DatapathId end) {
+		LongKeyedTable<LongKeyedTable<Path>> table = routes;
+		LongKeyedTable<Path> row = table.get(start.getLong());
+		Path route = row == null ? null : row.get(end.getLong());
+		if (route != null) {
+			routeHits.increment();
+			return route;
+		}
+		routeMisses.increment();
+		route = routingService.getPath(start, end);
+		if (route != null) {
+			table.getOrCreate(start.getLong(), ROW_FACTORY).put(end.getLong(), route);
+		}
+		return route;
+	}
+
+	/**
+	 * Get the device with a given IPv4 address
+	 * @param ip The IPv4 address of the device
+	 * @return The device, or null if the device manager does not know it
+	 */
+	public IDevice getDevice(IPv4Address ip) {
+		LongKeyedTable<IDevice> table = devices;
+		IDevice device = table.get(ip.getInt());
+		if (device != null) {
+			deviceHits.increment();
+			return device;
+		}
+		deviceMisses.increment();
+		Iterator<? extends IDevice> iDev =
+				deviceService.queryDevices(
+						MacAddress.NONE, VlanVid.ZERO, ip, IPv6Address.NONE,
+						DatapathId.NONE, OFPort.ZERO
+				);
+		if (iDev == null || !iDev.hasNext()) {
+			return null;
+		}
+		device = iDev.next();
+		table.put(ip.getInt(), device);
+		return device;
+	}
+
+	/**
+	 * Drop all the cached paths
+	 */
+	public void invalidateRoutes() {
+		routes = new LongKeyedTable<>();
+		routeInvalidations.increment();
+	}
+
+	/**
+	 * Drop all the cached devices
+	 */
+	public void invalidateDevices() {
+		devices = new LongKeyedTable<>();
+		deviceInvalidations.increment();
+	}
+
+	/**
+	 * Drop the cached entries of a device
+	 * @param device The device
+	 */
+	public void invalidateDevice(IDevice device) {
+		LongKeyedTable<IDevice> table = devices;
+		for (IPv4Address ip : device.getIPv4Addresses()) {
+			table.remove(ip.getInt());
+		}
+		deviceInvalidations.increment();
+	}
+
+	/**
+	 * @return The hit, miss and invalidation counters of the cache
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		stats.put("route-hits", routeHits.sum());
+		stats.put("route-misses", routeMisses.sum());
+		stats.put("route-invalidations", routeInvalidations.sum());
+		stats.put("device-hits", deviceHits.sum());
+		stats.put("device-misses", deviceMisses.sum());
+		stats.put("device-invalidations", deviceInvalidations.sum());
+		return stats;
+	}
+
+	// ITopologyListener
+
+	@Override
+	public void topologyChanged(List<LDUpdate> linkUpdates) {
+		// Any change may change the shortest paths
+		invalidateRoutes();
+		for (LDUpdate u : linkUpdates) {
+			if (u.getOperation() == UpdateOperation.PORT_DOWN
+					|| u.getOperation() == UpdateOperation.SWITCH_REMOVED) {
+				invalidateDevices();
+				break;
+			}
+		}
+	}
+
+	// IDeviceListener
+
+	@Override
+	public String getName() {
+		return RouteCache.class.getSimpleName();
+	}
+
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name) {
+		return false;
+	}
+
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name) {
+		return false;
+	}
+
+	@Override
+	public void deviceAdded(IDevice device) {
+		// Devices which are not known are not cached
+	}
+
+	@Override
+	public void deviceRemoved(IDevice device) {
+		invalidateDevice(device);
+	}
+
+	@Override
+	public void deviceMoved(IDevice device) {
+		invalidateDevice(device);
+	}
+
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device) {
+		// The old addresses are not known anymore
+		invalidateDevices();
+	}
+
+	@Override
+	public void deviceIPV6AddrChanged(IDevice device) {
+	}
+
+	@Override
+	public void deviceVlanChanged(IDevice device) {
+		invalidateDevice(device);
+	}
+}
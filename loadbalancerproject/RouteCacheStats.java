@@ -0,0 +1,23 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * It creates a response for the GET message that requires the counters of
+ * the cache of paths and attachment points, of the rankings of the servers
+ * and of the repair of the connections after a link failure.
+ * 
+ * http://localhost:8080/lb/controller/routecache/json
+ * GET message
+ */
+public class RouteCacheStats extends ServerResource {
+	@Get("json")
+	public Map<String, Long> retrieve() {
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.getRouteCacheStats();
+	}
+}
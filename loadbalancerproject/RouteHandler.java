@@ -5,17 +5,10 @@ import java.util.Iterator;
 import java.util.List;
 
 import org.projectfloodlight.openflow.protocol.OFFlowAdd;
-import org.projectfloodlight.openflow.protocol.action.OFAction;
-import org.projectfloodlight.openflow.protocol.action.OFActionOutput;
-import org.projectfloodlight.openflow.protocol.instruction.OFInstruction;
-import org.projectfloodlight.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.projectfloodlight.openflow.protocol.match.Match;
 import org.projectfloodlight.openflow.types.DatapathId;
 import org.projectfloodlight.openflow.types.IPv4Address;
-import org.projectfloodlight.openflow.types.IPv6Address;
-import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFPort;
-import org.projectfloodlight.openflow.types.VlanVid;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.types.NodePortTuple;
@@ -34,26 +27,35 @@ public class RouteHandler {
 	 * @return The tuples <number of hops, Path, dest addr>, sorted by number
 	 * of hops
 	 */
-	public static ArrayList<RouteInfo> findAllRoutes(ArrayList<IPv4Address> phys, IDevice sourceDev, DatapathId start) {
+	public static ArrayList<RouteInfo> findAllRoutes(List<IPv4Address> phys, IDevice sourceDev, DatapathId start) {
 		if (phys==null || sourceDev==null)
 			return null;
-		
+		return findAllRoutes(phys, start);
+	}
+	
+	/**
+	 * The function returns the tuples <number of hops, Path, dest addr>,
+	 * sorted by number of hops, from a switch toward the candidate
+	 * destinations. The result only depends on the switch and on the topology
+	 * @param phys The list of physical IP addresses that are candidate
+	 * destinations
+	 * @param start The switch from which the routes start
+	 * @return The tuples <number of hops, Path, dest addr>, sorted by number
+	 * of hops
+	 */
+	public static ArrayList<RouteInfo> findAllRoutes(List<IPv4Address> phys, DatapathId start) {
 		ArrayList<RouteInfo> list = new ArrayList<>();
 		for (IPv4Address dstIp : phys) {
-			Iterator<? extends IDevice> IDev =
-					LoadBalancer.deviceManagerService.queryDevices(
-							MacAddress.NONE, VlanVid.ZERO, dstIp, IPv6Address.NONE,
-							DatapathId.NONE, OFPort.ZERO
-					);
-			//if IDev==null you have to move to the next possible destination
-			if (IDev==null || !IDev.hasNext())
+			IDevice dev = LoadBalancer.routeCache.getDevice(dstIp);
+			//if dev==null you have to move to the next possible destination
+			if (dev==null)
 				continue;
 		
-			SwitchPort[] dest = IDev.next().getAttachmentPoints();
+			SwitchPort[] dest = dev.getAttachmentPoints();
 
 			for (SwitchPort sswD : dest) {
 				DatapathId end = sswD.getNodeId();
-				Path route = LoadBalancer.routingEngineService.getPath(start, end);
+				Path route = LoadBalancer.routeCache.getPath(start, end);
 				list.add(new RouteInfo(route.getHopCount(), dstIp, route));
 			}
 		}
@@ -88,7 +90,7 @@ public class RouteHandler {
 	 * @param start The switch that attached with sourceDev
 	 * @return The IP address of a non-busy server
 	 */
-	public static IPv4Address getNearestNotBusyServer(ArrayList<IPv4Address> phys, IDevice sourceDev, DatapathId start) {
+	public static IPv4Address getNearestNotBusyServer(List<IPv4Address> phys, IDevice sourceDev, DatapathId start) {
 		IPv4Address physicalAddr = null;
 		ArrayList<RouteInfo> routes = findAllRoutes(phys, sourceDev, start);
 		Iterator<RouteInfo> entries = routes.iterator();
@@ -111,39 +113,34 @@ public class RouteHandler {
 	 * @param flowMod The FlowTable rule to ADD
 	 */
 	public static void pushRoute(IPv4Address dstIp, Path route, Match match, OFFlowAdd.Builder flowMod) {
-		List<NodePortTuple> list = route.getPath();
-		OFPort outPort = OFPort.NORMAL;
-		IOFSwitch sw;
-		Iterator<NodePortTuple> iterator = list.iterator();
-		// The Path object has a structure like
-		// || sw1, outport || sw2, inport || sw2, outport ||...
-		// ||sw(n-1), inport || sw(n-1), outport || sw(n), inport ||
-		// If the source sw is equal to the destination sw, the Path object is
-		// empty
-		while(iterator.hasNext()) {
-			NodePortTuple npt = iterator.next();
-			sw = LoadBalancer.switchService.getSwitch(npt.getNodeId());
-			outPort = npt.getPortId();
-			setRule(flowMod, match, outPort, sw);
-			if (iterator.hasNext()) {
-				// Skip the IN-port
-				npt = iterator.next();
-			}
-		}
+		FlowBatch batch = new FlowBatch();
+		pushRoute(dstIp, route, match, flowMod, batch);
+		batch.flush();
+	}
+	
+	/**
+	 * For all the switches in the route, add to a batch the FlowMod messages
+	 * to directly forward packets. The messages are sent when the batch is
+	 * flushed
+	 * @param dstIp The IP address of the destination
+	 * @param route The route through the destination
+	 * @param match The match associated with the incoming packets
+	 * @param flowMod The FlowTable rule to ADD
+	 * @param batch The batch of the FlowMod messages
+	 */
+	public static void pushRoute(IPv4Address dstIp, Path route, Match match, OFFlowAdd.Builder flowMod,
+			FlowBatch batch) {
+		pushPath(route, match, flowMod, batch);
 		// Handle the case of the last switch whose outport is not in the Path
 		// object. The same procedure is applied when the source sw is equal to
 		// the destination sw
-		outPort = OFPort.NORMAL;
-		sw = null;
+		OFPort outPort = OFPort.NORMAL;
+		IOFSwitch sw = null;
 		// Get the device whose address is dstIp
-		Iterator<? extends IDevice> IDev =
-				LoadBalancer.deviceManagerService.queryDevices(
-						MacAddress.NONE, VlanVid.ZERO, dstIp, IPv6Address.NONE,
-						DatapathId.NONE, OFPort.ZERO
-				);
-		if (IDev != null && IDev.hasNext()) {
+		IDevice dev = LoadBalancer.routeCache.getDevice(dstIp);
+		if (dev != null) {
 			// Get the attachment points of  the device
-			SwitchPort[] dest = IDev.next().getAttachmentPoints();
+			SwitchPort[] dest = dev.getAttachmentPoints();
 			for (int i = 0; i < dest.length; i++) {
 				// Get the output port only if the output port belongs to
 				// the considered switch (which is the destination switch)
@@ -156,37 +153,59 @@ public class RouteHandler {
 			if (sw == null) {
 				return;
 			}
-			setRule(flowMod, match, outPort, sw);
+			setRule(flowMod, match, outPort, sw, batch);
 		}
 		return;
 	}
 	
 	/**
-	 * Write a new Flow Table modification entry
+	 * For all the switches in the route but the last one, add to a batch the
+	 * FlowMod messages to forward packets through the output port of the
+	 * route
+	 * @param route The route
+	 * @param match The match associated with the incoming packets
+	 * @param flowMod The FlowTable rule to ADD
+	 * @param batch The batch of the FlowMod messages
+	 */
+	public static void pushPath(Path route, Match match, OFFlowAdd.Builder flowMod, FlowBatch batch) {
+		List<NodePortTuple> list = route.getPath();
+		Iterator<NodePortTuple> iterator = list.iterator();
+		// The Path object has a structure like
+		// || sw1, outport || sw2, inport || sw2, outport ||...
+		// ||sw(n-1), inport || sw(n-1), outport || sw(n), inport ||
+		// If the source sw is equal to the destination sw, the Path object is
+		// empty
+		while(iterator.hasNext()) {
+			NodePortTuple npt = iterator.next();
+			IOFSwitch sw = LoadBalancer.switchService.getSwitch(npt.getNodeId());
+			setRule(flowMod, match, npt.getPortId(), sw, batch);
+			if (iterator.hasNext()) {
+				// Skip the IN-port
+				npt = iterator.next();
+			}
+		}
+	}
+	
+	/**
+	 * Add a new Flow Table modification entry to a batch
 	 * @param flowMod The FlowTable rule to ADD
 	 * @param match The match associated with the incoming packets
 	 * @param outPort The port through which messages will be forwarded
 	 * @param sw The switch where the FlowMod is installed
+	 * @param batch The batch of the FlowMod messages
 	 */
-	private static void setRule(OFFlowAdd.Builder flowMod, Match match, OFPort outPort, IOFSwitch sw) {
+	private static void setRule(OFFlowAdd.Builder flowMod, Match match, OFPort outPort, IOFSwitch sw,
+			FlowBatch batch) {
+		if (sw == null) {
+			// The switch disconnected
+			return;
+		}
 		flowMod.setOutPort(outPort);
-		ArrayList<OFAction> actionList = new ArrayList<OFAction>();
-		OFActionOutput setDstPort = sw.getOFFactory().actions().buildOutput()
-			    .setMaxLen(0xFFffFFff)
-			    .setPort(outPort)
-			    .build();
-		actionList.add(setDstPort);
-		
-		OFInstructionApplyActions applyActions = sw.getOFFactory().instructions().buildApplyActions()
-			    .setActions(actionList)
-			    .build();
-		ArrayList<OFInstruction> instructionList = new ArrayList<OFInstruction>();
-		instructionList.add(applyActions);
 		
-		// Apply the match and the actions associated with such match
-		flowMod.setInstructions(instructionList)
+		// Apply the match and the prebuilt output to the port
+		flowMod.setInstructions(LoadBalancer.templates.outputInstructions(sw.getOFFactory(), outPort))
 				.setMatch(match);
-		sw.write(flowMod.build());
+		batch.add(sw, flowMod.build());
 	}
 	
 	/**
@@ -203,14 +222,10 @@ public class RouteHandler {
 		if(!iterator.hasNext()) {
 			// The destination is attached to the current switch
 			// Find the device whose IP address is dstIp
-			Iterator<? extends IDevice> IDev =
-					LoadBalancer.deviceManagerService.queryDevices(
-							MacAddress.NONE, VlanVid.ZERO, dstIp, IPv6Address.NONE,
-							DatapathId.NONE, OFPort.ZERO
-					);
-			if (IDev != null && IDev.hasNext()) {
+			IDevice dev = LoadBalancer.routeCache.getDevice(dstIp);
+			if (dev != null) {
 				// Find the attachment points of the device
-				SwitchPort[] dest = IDev.next().getAttachmentPoints();
+				SwitchPort[] dest = dev.getAttachmentPoints();
 				for (int i = 0; i < dest.length; i++) {
 					// Take only the attachment point with the current switch
 					if (dest[0].getNodeId().equals(sw)) {
@@ -234,4 +249,33 @@ public class RouteHandler {
 		}
 		return outPort;
 	}
+	
+	/**
+	 * The switches at the beginning of the path need to install different
+	 * rules in their Flow Table. The path that involves the following switches
+	 * is returned by this function: if the Path object has this structure
+	 * || sw1, outport || sw2, inport || sw2, outport || ...
+	 * || sw(n-1), inport || sw(n-1), outport || sw(n), inport ||
+	 * then the returned Path is
+	 * || sw2, outport || ...
+	 * || sw(n-1), inport || sw(n-1), outport || sw(n), inport ||
+	 * @param route The Path object whose head has to be cut
+	 * @return The cut route
+	 */
+	public static Path cutRouteHead(Path route) {
+		Path newRoute = null;
+		List<NodePortTuple> list = route.getPath();
+		if (list.size() > 1) {
+			Iterator<NodePortTuple> iterator = list.iterator();
+			iterator.next();
+			NodePortTuple entry = iterator.next();
+			newRoute = new Path(entry.getNodeId(), route.getId().getDst());
+			ArrayList<NodePortTuple> temp = new ArrayList<>();
+			while(iterator.hasNext()) {
+				temp.add(iterator.next());
+			}
+			newRoute.setPath(temp);
+		}
+		return newRoute;
+	}
 }
@@ -17,6 +17,16 @@ public class RouteInfo {
 		this.path = path;
 	}
 	
+	/**
+	 * @param other Another route
+	 * @return true: if both routes lead to the same server through the same
+	 * path, even if they come from different rankings
+	 */
+	public boolean sameRoute(RouteInfo other) {
+		return other != null && destination.equals(other.destination)
+				&& (path == null ? other.path == null : path.equals(other.path));
+	}
+	
 	@Override
 	public String toString() {
 		return hopNumber + ": " + path.toString()+" "+destination.toString();
@@ -0,0 +1,62 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The built-in server selection strategies
+ */
+public final class SelectionStrategies {
+	public static final String DEFAULT = LeastHopsStrategy.NAME;
+	public static final List<String> NAMES = Arrays.asList(
+			LeastHopsStrategy.NAME,
+			WeightedRoundRobinStrategy.NAME,
+			LeastOutstandingFlowsStrategy.NAME,
+			PowerOfTwoChoicesStrategy.NAME,
+			ConsistentHashStrategy.NAME);
+
+	private SelectionStrategies() {
+	}
+
+	/**
+	 * Create a new instance of a strategy
+	 * @param name The name of the strategy
+	 * @return The new strategy, or null if name is unknown
+	 */
+	public static ServerSelectionStrategy create(String name) {
+		if (name == null) {
+			return null;
+		}
+		switch (name.toLowerCase()) {
+		case LeastHopsStrategy.NAME:
+			return new LeastHopsStrategy();
+		case WeightedRoundRobinStrategy.NAME:
+			return new WeightedRoundRobinStrategy();
+		case LeastOutstandingFlowsStrategy.NAME:
+			return new LeastOutstandingFlowsStrategy();
+		case PowerOfTwoChoicesStrategy.NAME:
+			return new PowerOfTwoChoicesStrategy();
+		case ConsistentHashStrategy.NAME:
+			return new ConsistentHashStrategy();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Choose the nearest server which is not busy and register the request
+	 * @param routes The routes toward the servers, sorted by number of hops
+	 * @param counter The counter of the requests of the servers
+	 * @param skip A route already tried by the caller, or null
+	 * @return The route toward the chosen server, or null if all the servers
+	 * are busy
+	 */
+	static RouteInfo firstAvailable(List<RouteInfo> routes, ServiceCounter counter, RouteInfo skip) {
+		for (RouteInfo r : routes) {
+			if (r != skip && counter.newService(r.destination)) {
+				return r;
+			}
+		}
+		return null;
+	}
+}
@@ -28,4 +28,20 @@ public class ServerEntry {
 	public boolean equals(Object o) {
 		return this.phyAddr.equals(((ServerEntry)o).phyAddr) && this.port == ((ServerEntry)o).port;
 	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * phyAddr.getInt() + port;
+	}
+	
+	/**
+	 * Pack the couple <physical IP address, port> in a single primitive
+	 * value, used as key of the indexes of the ServiceRegister
+	 * @param phyAddr The physical IP address of the server, as an int
+	 * @param port The port used by the service
+	 * @return The packed key
+	 */
+	public static long key(int phyAddr, short port) {
+		return ((phyAddr & 0xFFFFFFFFL) << 16) | (port & 0xFFFFL);
+	}
 }
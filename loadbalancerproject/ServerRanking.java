@@ -0,0 +1,289 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.UpdateOperation;
+import net.floodlightcontroller.topology.ITopologyListener;
+
+/**
+ * For every switch and anycast group, the routes toward the servers of the
+ * group sorted by number of hops, with their precomputed Path. A ranking is
+ * computed the first time it is needed and kept until the membership of the
+ * group changes or a topology change affects the switch, so the selection of
+ * a server is a walk over a prebuilt list.
+ * The ranking receives the topology and device events before the RouteCache,
+ * so that it never rebuilds a ranking out of stale paths.
+ */
+public class ServerRanking implements ITopologyListener, IDeviceListener {
+	/**
+	 * The ranking of the servers of a group, seen from a switch
+	 */
+	private static final class Ranking {
+		final ServiceRegister.Group group;
+		// The routes toward the servers which are not down
+		final List<RouteInfo> routes;
+		// The routes toward the servers which take new connections
+		final List<RouteInfo> selectable;
+		final long stamp;
+
+		Ranking(ServiceRegister.Group group, List<RouteInfo> all, long stamp) {
+			this.group = group;
+			this.stamp = stamp;
+			List<RouteInfo> up = new ArrayList<>(all.size());
+			List<RouteInfo> s = new ArrayList<>(all.size());
+			for (RouteInfo r : all) {
+				if (!group.isDown(r.destination)) {
+					up.add(r);
+				}
+				if (group.isSelectable(r.destination)) {
+					s.add(r);
+				}
+			}
+			this.routes = up.size() == all.size() ? all : Collections.unmodifiableList(up);
+			this.selectable = s.size() == all.size() ? all : Collections.unmodifiableList(s);
+		}
+	}
+
+	/**
+	 * The rankings of a switch
+	 */
+	private static final class Row {
+		// Anycast IP address (as int) -> ranking
+		final LongKeyedTable<Ranking> rankings = new LongKeyedTable<>();
+		// A ranking computed before this stamp is stale
+		volatile long invalidatedAt;
+	}
+
+	private static final LongKeyedTable.Factory<Row> ROW_FACTORY =
+			new LongKeyedTable.Factory<Row>() {
+				@Override
+				public Row create(long key) {
+					return new Row();
+				}
+			};
+
+	private final ServiceRegister register;
+	private final RouteCache routeCache;
+	// DPID -> rankings of the switch. Replaced when all the rankings are
+	// invalidated
+	private volatile LongKeyedTable<Row> rows = new LongKeyedTable<>();
+	private final AtomicLong clock = new AtomicLong();
+
+	private final LongAdder computations = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	public ServerRanking(ServiceRegister register, RouteCache routeCache) {
+		this.register = register;
+		this.routeCache = routeCache;
+	}
+
+	/**
+	 * Get the routes from a switch toward the servers of an anycast group
+	 * which are not down
+	 * @param sw The switch
+	 * @param group The anycast group
+	 * @return The unmodifiable list of routes, sorted by number of hops
+	 */
+	public List<RouteInfo> getRoutes(DatapathId sw, ServiceRegister.Group group) {
+		return getRanking(sw, group).routes;
+	}
+
+	/**
+	 * Get the routes from a switch toward the servers of an anycast group
+	 * which can take new connections
+	 * @param sw The switch
+	 * @param group The anycast group
+	 * @return The unmodifiable list of routes, sorted by number of hops
+	 */
+	public List<RouteInfo> getSelectableRoutes(DatapathId sw, ServiceRegister.Group group) {
+		return getRanking(sw, group).selectable;
+	}
+
+	private Ranking getRanking(DatapathId sw, ServiceRegister.Group group) {
+		Row row = rows.getOrCreate(sw.getLong(), ROW_FACTORY);
+		Ranking r = row.rankings.get(group.getAnyAddr().getInt());
+		if (r != null && r.group == group && r.stamp > row.invalidatedAt) {
+			return r;
+		}
+		long stamp = clock.incrementAndGet();
+		computations.increment();
+		List<RouteInfo> routes = Collections.unmodifiableList(
+				RouteHandler.findAllRoutes(group.getPhyAddrs(), sw));
+		r = new Ranking(group, routes, stamp);
+		row.rankings.put(group.getAnyAddr().getInt(), r);
+		return r;
+	}
+
+	/**
+	 * Drop all the rankings
+	 */
+	public void invalidateAll() {
+		rows = new LongKeyedTable<>();
+		invalidations.increment();
+	}
+
+	/**
+	 * Drop the rankings of an anycast group which has been removed
+	 * @param anyAddr The anycast IP address of the group
+	 */
+	public void invalidateGroup(final IPv4Address anyAddr) {
+		rows.forEach(new LongKeyedTable.Visitor<Row>() {
+			@Override
+			public void visit(long dpid, Row row) {
+				row.rankings.remove(anyAddr.getInt());
+			}
+		});
+		invalidations.increment();
+	}
+
+	/**
+	 * Drop the rankings of the switches which reach a server through a
+	 * failed port, or which are attached to a server through it
+	 * @param failed The failed port
+	 */
+	private void invalidatePort(final NodePortTuple failed) {
+		final long stamp = clock.incrementAndGet();
+		rows.forEach(new LongKeyedTable.Visitor<Row>() {
+			@Override
+			public void visit(long dpid, final Row row) {
+				final boolean[] affected = new boolean[1];
+				row.rankings.forEach(new LongKeyedTable.Visitor<Ranking>() {
+					@Override
+					public void visit(long anyAddr, Ranking r) {
+						for (RouteInfo route : r.routes) {
+							if (route.path.getPath().contains(failed)
+									|| route.path.getId().getDst().equals(failed.getNodeId())) {
+								affected[0] = true;
+								return;
+							}
+						}
+					}
+				});
+				if (affected[0]) {
+					row.invalidatedAt = stamp;
+					row.rankings.clear();
+				}
+			}
+		});
+		invalidations.increment();
+	}
+
+	/**
+	 * @return The computation and invalidation counters of the rankings
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new HashMap<>();
+		stats.put("ranking-computations", computations.sum());
+		stats.put("ranking-invalidations", invalidations.sum());
+		return stats;
+	}
+
+	/**
+	 * @param device A device
+	 * @return true: if the device is a server of an anycast group
+	 */
+	private boolean isServer(IDevice device) {
+		for (ServiceRegister.Group g : register.getSnapshot().getGroups()) {
+			for (IPv4Address ip : device.getIPv4Addresses()) {
+				if (g.getPhyAddrs().contains(ip)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// ITopologyListener
+
+	@Override
+	public void topologyChanged(List<LDUpdate> linkUpdates) {
+		routeCache.topologyChanged(linkUpdates);
+		for (LDUpdate u : linkUpdates) {
+			if (u.getOperation() == UpdateOperation.LINK_REMOVED
+					|| u.getOperation() == UpdateOperation.PORT_DOWN
+					|| u.getOperation() == UpdateOperation.TUNNEL_PORT_REMOVED) {
+				// A removal only invalidates the paths through the failed ports
+				if (u.getSrc() != null && !u.getSrc().equals(DatapathId.NONE)) {
+					invalidatePort(new NodePortTuple(u.getSrc(), u.getSrcPort()));
+				}
+				if (u.getDst() != null && !u.getDst().equals(DatapathId.NONE)) {
+					invalidatePort(new NodePortTuple(u.getDst(), u.getDstPort()));
+				}
+			} else {
+				// A new link or switch may shorten any path
+				invalidateAll();
+				return;
+			}
+		}
+	}
+
+	// IDeviceListener
+
+	@Override
+	public String getName() {
+		return ServerRanking.class.getSimpleName();
+	}
+
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name) {
+		return false;
+	}
+
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name) {
+		return false;
+	}
+
+	@Override
+	public void deviceAdded(IDevice device) {
+		routeCache.deviceAdded(device);
+		if (isServer(device)) {
+			invalidateAll();
+		}
+	}
+
+	@Override
+	public void deviceRemoved(IDevice device) {
+		routeCache.deviceRemoved(device);
+		if (isServer(device)) {
+			invalidateAll();
+		}
+	}
+
+	@Override
+	public void deviceMoved(IDevice device) {
+		routeCache.deviceMoved(device);
+		if (isServer(device)) {
+			invalidateAll();
+		}
+	}
+
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device) {
+		routeCache.deviceIPV4AddrChanged(device);
+		invalidateAll();
+	}
+
+	@Override
+	public void deviceIPV6AddrChanged(IDevice device) {
+		routeCache.deviceIPV6AddrChanged(device);
+	}
+
+	@Override
+	public void deviceVlanChanged(IDevice device) {
+		routeCache.deviceVlanChanged(device);
+	}
+}
@@ -0,0 +1,28 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.List;
+
+/**
+ * The strategy used to choose which server of an anycast group serves a new
+ * flow. Every anycast group has its own instance, so a strategy may keep
+ * state about its group; select is invoked concurrently by the packet-in
+ * threads.
+ */
+public interface ServerSelectionStrategy {
+	/**
+	 * @return The name used to choose the strategy through the REST API
+	 */
+	public String getName();
+
+	/**
+	 * Choose the server for a new flow and register the request with the
+	 * counter of the chosen server (see ServiceCounter.newService)
+	 * @param routes The routes toward the servers of the anycast group,
+	 * sorted by number of hops
+	 * @param flow The 5-tuple of the new flow
+	 * @param counter The counter of the requests of the servers
+	 * @return The route toward the chosen server, or null if no server is
+	 * available
+	 */
+	public RouteInfo select(List<RouteInfo> routes, FlowKey flow, ServiceCounter counter);
+}
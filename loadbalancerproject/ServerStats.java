@@ -0,0 +1,33 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.restlet.data.Form;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * It creates a response for the GET message that requires the load of a
+ * server: its active flows, and the packets and bytes of its removed rules.
+ *
+ * http://localhost:8080/lb/controller/serverstats/json?physical=10.0.0.1
+ * GET message
+ */
+public class ServerStats extends ServerResource {
+	@Get("json")
+	public Map<String, Object> retrieve() {
+		Form form = getQuery();
+		String phyAddr = form.getFirstValue("physical", true);
+		if (phyAddr == null) {
+			Map<String, Object> map = new HashMap<String, Object>();
+			map.put("error", "no physical address");
+			return map;
+		}
+
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.getServerStats(IPv4Address.of(phyAddr));
+	}
+}
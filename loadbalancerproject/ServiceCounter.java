@@ -1,124 +1,285 @@
 package net.floodlightcontroller.loadbalancerproject;
 
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import org.projectfloodlight.openflow.types.IPv4Address;
 
 /**
- * The class handles the data structure that counts the number of requests received 
- * by a certain host
+ * The class handles the data structure that counts the number of requests received
+ * by a certain host. Every server has its own TokenBucket, looked up by the
+ * int value of its IP address: the hot path takes no lock and does not
+ * allocate, so servers of different anycast groups are selected in parallel.
  */
 public class ServiceCounter {
-	//A server can receive at most MAX_COUNT/TIME_INTERVAL requests 
-	private final long TIME_INTERVAL = 5 * 1000; //expressed in milliseconds
-	private final int MAX_COUNT = 10;
-	
+	//By default a server can receive at most DEFAULT_MAX_COUNT requests
+	//within a sliding interval DEFAULT_TIME_INTERVAL long
+	public static final long DEFAULT_TIME_INTERVAL = 5 * 1000; //expressed in milliseconds
+	public static final int DEFAULT_MAX_COUNT = 10;
+
+	private final long timeInterval; //expressed in milliseconds
+	private volatile int defaultMaxCount;
+	private volatile long defaultMaxByteRate; // in bytes per second, 0 if not set
+
+	// Physical IP address (as int) -> requests admitted within the interval
+	private final LongKeyedTable<TokenBucket> buckets;
+	private final LongKeyedTable.Factory<TokenBucket> factory;
+	// Physical IP address (as int) -> flows whose rules are installed
+	private final LongKeyedTable<FlowStats> flowStats;
+	private static final LongKeyedTable.Factory<FlowStats> FLOW_STATS_FACTORY =
+			new LongKeyedTable.Factory<FlowStats>() {
+				@Override
+				public FlowStats create(long key) {
+					return new FlowStats();
+				}
+			};
+
+	public ServiceCounter() {
+		this(DEFAULT_MAX_COUNT, DEFAULT_TIME_INTERVAL);
+	}
+
 	/**
-	 * The basic component of the ServiceCounter class. It contains the IP
-	 * address of a physical host with an associated request counter and a
-	 * timestamp of the oldest request within the time interval.
-	 */
-	private class Entry {
-		public IPv4Address phyAddr;
-		public long timestamp;
-		public int counter;
-		
-		public Entry(IPv4Address phyAddr, long timestamp) {
-			this.phyAddr = phyAddr;
-			this.timestamp = timestamp;
-			this.counter = 1;
+	 * @param maxCount The default number of requests that a server can
+	 * accept within timeInterval
+	 * @param timeInterval The length of the sliding interval, in milliseconds
+	 */
+	public ServiceCounter(int maxCount, long timeInterval) {
+		if (maxCount < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1");
 		}
-		
-		/**
-		 * An entry o is equal to the current entry if its physical addresses
-		 * is equal to the physical address of the current entry.
-		 */
-		@Override
-		public boolean equals(Object o) {
-			if (((Entry)o).phyAddr == this.phyAddr) {
-				return true;
+		this.defaultMaxCount = maxCount;
+		this.timeInterval = timeInterval;
+		this.buckets = new LongKeyedTable<>();
+		this.flowStats = new LongKeyedTable<>();
+		this.factory = new LongKeyedTable.Factory<TokenBucket>() {
+			@Override
+			public TokenBucket create(long key) {
+				return new TokenBucket(defaultMaxCount, ServiceCounter.this.timeInterval, TimeUnit.MILLISECONDS);
 			}
-			return false;
-		}
-		
-		@Override
-		public String toString() {
-			return "<" + phyAddr.toString() + ", " + new Date(timestamp) + ", " + counter + ">";
-		}
+		};
 	}
-	
-	private ArrayList<Entry> list;
-	
-	public ServiceCounter() {
-		list = new ArrayList<>();
-	}
-	
+
 	/**
 	 * Register a new request-for-service addressed to a specific server with
-	 * its physical address equal to phyAddr. A server can accept maximum
-	 * MAX_COUNT requests within a time interval TIME_INTERVAL milliseconds
-	 * long
+	 * its physical address equal to phyAddr. A server can accept at most
+	 * its capacity requests within a sliding interval timeInterval
+	 * milliseconds long, and none while its measured throughput is above
+	 * its maximum throughput (if set). The check and the registration are
+	 * atomic
 	 * @param phyAddr The physical IP address of the server which the request
 	 * is addressed to
 	 * @return true: if the request can be accepted by the server.
 	 * false: if the server is too busy to accept the request
 	 */
 	public boolean newService(IPv4Address phyAddr) {
-		Entry newEntry = new Entry(phyAddr, new Date().getTime());
-		int i = list.indexOf(newEntry);
-		if (i != -1) {
-			Entry toUpdate = list.get(i);
-			if (newEntry.timestamp - toUpdate.timestamp < TIME_INTERVAL) {
-				if (toUpdate.counter < MAX_COUNT) {
-					toUpdate.counter++;
-					return true;
-				}
-				return false;
-			}
-			toUpdate.timestamp = newEntry.timestamp;
-			toUpdate.counter = 1;
-			return true;
+		// Checked first, so that a busy server keeps its tokens
+		if (isAboveByteRate(phyAddr)) {
+			return false;
 		}
-		list.add(newEntry);
-		return true;
+		return buckets.getOrCreate(phyAddr.getInt(), factory).tryAcquire(System.nanoTime());
 	}
-	
+
 	/**
-	 * This function tells if the server can accept other requests
+	 * This function tells if the server can accept other requests: it has
+	 * not received its capacity of requests within the interval, and its
+	 * measured throughput is below its maximum throughput (if set)
 	 * @param phyAddr The physical IP address of the server
 	 * @return true: the server can accept other requests.
 	 * false: the server is busy and cannot accept other requests
 	 */
 	public boolean isAvailable(IPv4Address phyAddr) {
-		Entry newEntry = new Entry(phyAddr, new Date().getTime());
-		int i = list.indexOf(newEntry);
-		if (i != -1) {
-			Entry e = list.get(i);
-			if (newEntry.timestamp - e.timestamp < TIME_INTERVAL && e.counter == MAX_COUNT) {
-				return false;
-			}
+		TokenBucket b = buckets.get(phyAddr.getInt());
+		if (b != null && !b.isAvailable(System.nanoTime())) {
+			return false;
 		}
-		return true;
+		return !isAboveByteRate(phyAddr);
 	}
-	
+
 	/**
-	 * Return the number of request that a server received within TIME_INTERVAL
+	 * @param phyAddr The physical IP address of the server
+	 * @return true: if the measured throughput of the server is above its
+	 * maximum throughput. false: if it is below, or no maximum is set
+	 */
+	private boolean isAboveByteRate(IPv4Address phyAddr) {
+		FlowStats f = flowStats.get(phyAddr.getInt());
+		if (f == null) {
+			return false;
+		}
+		long maxByteRate = f.getMaxByteRate() == 0 ? defaultMaxByteRate : f.getMaxByteRate();
+		return maxByteRate > 0 && f.getByteRate() >= maxByteRate;
+	}
+
+	/**
+	 * Return the number of request that a server received within the interval
 	 * @param phyAddr The physical IP address of the server
 	 * @return -1 if the physical IP address is not in the register.
-	 * The number of request that a server received within TIME_INTERVAL
+	 * The number of request that a server received within the interval
 	 */
 	public int getRequestCounter(IPv4Address phyAddr) {
-		Entry newEntry = new Entry(phyAddr, new Date().getTime());
-		int i = list.indexOf(newEntry);
-		if (i != -1) {
-			Entry e = list.get(i);
-			if (newEntry.timestamp - e.timestamp < TIME_INTERVAL) {
-				return e.counter;
+		TokenBucket b = buckets.get(phyAddr.getInt());
+		if (b == null) {
+			return -1;
+		}
+		return b.getCount(System.nanoTime());
+	}
+
+	/**
+	 * @param phyAddr The physical IP address of the server
+	 * @return The fraction of its capacity that a server uses: the largest
+	 * between the requests received within the interval, the flows whose
+	 * rules are still installed and the measured throughput (if a maximum
+	 * throughput is set). 0 for an idle server, 1 (or more) for a busy one
+	 */
+	public double getLoad(IPv4Address phyAddr) {
+		TokenBucket b = buckets.get(phyAddr.getInt());
+		FlowStats f = flowStats.get(phyAddr.getInt());
+		int capacity = b == null ? defaultMaxCount : b.getCapacity();
+		double load = b == null ? 0 : (double) b.getCount(System.nanoTime()) / capacity;
+		if (f != null) {
+			load = Math.max(load, (double) f.getActiveFlows() / capacity);
+			long maxByteRate = f.getMaxByteRate() == 0 ? defaultMaxByteRate : f.getMaxByteRate();
+			if (maxByteRate > 0) {
+				load = Math.max(load, f.getByteRate() / maxByteRate);
+			}
+		}
+		return load;
+	}
+	
+	/**
+	 * Register the installation of the rules of a new flow toward a server
+	 * @param phyAddr The physical IP address of the server
+	 */
+	public void flowInstalled(IPv4Address phyAddr) {
+		flowStats.getOrCreate(phyAddr.getInt(), FLOW_STATS_FACTORY).flowInstalled();
+	}
+	
+	/**
+	 * Register the removal of the rule of a flow toward a server
+	 * @param phyAddr The physical IP address of the server
+	 * @param packetCount The number of packets matched by the rule
+	 * @param byteCount The number of bytes matched by the rule
+	 */
+	public void flowRemoved(IPv4Address phyAddr, long packetCount, long byteCount) {
+		flowStats.getOrCreate(phyAddr.getInt(), FLOW_STATS_FACTORY).flowRemoved(packetCount, byteCount);
+	}
+	
+	/**
+	 * Register the traffic of a rule toward or from a server which does not
+	 * count as a flow
+	 * @param phyAddr The physical IP address of the server
+	 * @param packetCount The number of packets matched by the rule
+	 * @param byteCount The number of bytes matched by the rule
+	 */
+	public void addTraffic(IPv4Address phyAddr, long packetCount, long byteCount) {
+		flowStats.getOrCreate(phyAddr.getInt(), FLOW_STATS_FACTORY).addTraffic(packetCount, byteCount);
+	}
+	
+	/**
+	 * Add a sample of the throughput of every server to its moving averages
+	 * @param samples Physical IP address (as int) -> {bytes, packets}
+	 * measured in the last period. The servers which are not in the table
+	 * moved no traffic
+	 * @param seconds The length of the period
+	 * @param alpha The weight of the sample, between 0 and 1
+	 */
+	public void updateRates(final LongKeyedTable<long[]> samples, final double seconds, final double alpha) {
+		flowStats.forEach(new LongKeyedTable.Visitor<FlowStats>() {
+			@Override
+			public void visit(long phyAddr, FlowStats f) {
+				long[] sample = samples.get(phyAddr);
+				if (sample == null) {
+					f.updateRates(0, 0, alpha);
+				} else {
+					f.updateRates(sample[0] / seconds, sample[1] / seconds, alpha);
+				}
 			}
-			e.counter = 0;
-			return e.counter;
+		});
+	}
+	
+	/**
+	 * Set the throughput above which a server is busy
+	 * @param phyAddr The physical IP address of the server, or null for the
+	 * default of the servers
+	 * @param maxByteRate The throughput in bytes per second, 0 to unset it
+	 */
+	public void setMaxByteRate(IPv4Address phyAddr, long maxByteRate) {
+		if (maxByteRate < 0) {
+			throw new IllegalArgumentException("The throughput cannot be negative");
+		}
+		if (phyAddr == null) {
+			defaultMaxByteRate = maxByteRate;
+		} else {
+			flowStats.getOrCreate(phyAddr.getInt(), FLOW_STATS_FACTORY).setMaxByteRate(maxByteRate);
+		}
+	}
+	
+	/**
+	 * @param phyAddr The physical IP address of the server, or null for the
+	 * default of the servers
+	 * @return The throughput above which the server is busy, in bytes per
+	 * second, 0 if not set
+	 */
+	public long getMaxByteRate(IPv4Address phyAddr) {
+		if (phyAddr != null) {
+			FlowStats f = flowStats.get(phyAddr.getInt());
+			if (f != null && f.getMaxByteRate() > 0) {
+				return f.getMaxByteRate();
+			}
+		}
+		return defaultMaxByteRate;
+	}
+	
+	/**
+	 * @param phyAddr The physical IP address of the server
+	 * @return The flows of the server, or null if no flow has been installed
+	 * toward it
+	 */
+	public FlowStats getFlowStats(IPv4Address phyAddr) {
+		return flowStats.get(phyAddr.getInt());
+	}
+
+	/**
+	 * Set the number of requests that a server can accept within the interval
+	 * @param phyAddr The physical IP address of the server
+	 * @param maxCount The capacity of the server, at least 1
+	 */
+	public void setCapacity(IPv4Address phyAddr, int maxCount) {
+		if (maxCount < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1");
 		}
-		return -1;
+		buckets.getOrCreate(phyAddr.getInt(), factory)
+				.setRate(maxCount, timeInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param phyAddr The physical IP address of the server
+	 * @return The number of requests that the server can accept within the
+	 * interval
+	 */
+	public int getCapacity(IPv4Address phyAddr) {
+		TokenBucket b = buckets.get(phyAddr.getInt());
+		return b == null ? defaultMaxCount : b.getCapacity();
+	}
+
+	/**
+	 * Set the capacity of the servers whose capacity has not been set
+	 * explicitly and which have not received any request yet
+	 * @param maxCount The default capacity, at least 1
+	 */
+	public void setDefaultCapacity(int maxCount) {
+		if (maxCount < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1");
+		}
+		defaultMaxCount = maxCount;
+	}
+
+	public int getDefaultCapacity() {
+		return defaultMaxCount;
+	}
+
+	/**
+	 * @return The length of the sliding interval, in milliseconds
+	 */
+	public long getTimeInterval() {
+		return timeInterval;
 	}
 }
@@ -1,106 +1,245 @@
 package net.floodlightcontroller.loadbalancerproject;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.projectfloodlight.openflow.types.IPv4Address;
 
+/**
+ * The register of the anycast groups. Readers never block: every lookup is
+ * served by an immutable Snapshot obtained with a single volatile read.
+ * Writers are serialized, build the next Snapshot and publish it atomically.
+ */
 public class ServiceRegister {
 	/**
 	 * The basic component of the ServiceRegister class. It contains the IP
 	 * anycast address with an associated list of physical IP addresses of
 	 * the servers which have subscribed to the former anycast address.
+	 * A Group is immutable: a change of membership creates a new Group,
+	 * which keeps the server selection strategy and the index of the
+	 * previous one.
+	 * A server of the group may be draining: its connections keep on
+	 * reaching it, but it is not chosen for new connections. A server may
+	 * be down: it is not chosen at all.
 	 */
-	private class Entry {
-		public IPv4Address anyAddr;
-		public ArrayList<ServerEntry> servers;
-		
-		public Entry(IPv4Address anyAddr, ArrayList<ServerEntry> phyAddr) {
+	public static final class Group {
+		private final IPv4Address anyAddr;
+		private final int index;
+		private final List<ServerEntry> servers;
+		private final List<IPv4Address> phyAddrs;
+		private final ServerSelectionStrategy strategy;
+		private final Set<ServerEntry> draining;
+		private final Set<ServerEntry> down;
+		// The physical IP addresses which cannot take new connections
+		private final Set<IPv4Address> excluded;
+		// The physical IP addresses which cannot take any connection
+		private final Set<IPv4Address> failed;
+
+		private Group(IPv4Address anyAddr, int index, List<ServerEntry> servers, ServerSelectionStrategy strategy,
+				Set<ServerEntry> draining, Set<ServerEntry> down) {
 			this.anyAddr = anyAddr;
-			this.servers = phyAddr;
+			this.index = index;
+			this.strategy = strategy;
+			ArrayList<IPv4Address> phys = new ArrayList<>(servers.size());
+			for (ServerEntry s : servers) {
+				phys.add(s.getPhyAddr());
+			}
+			this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+			this.phyAddrs = Collections.unmodifiableList(phys);
+			// Only the members of the group can be draining or down
+			Set<ServerEntry> d = new HashSet<>(draining);
+			d.retainAll(servers);
+			Set<ServerEntry> f = new HashSet<>(down);
+			f.retainAll(servers);
+			Set<IPv4Address> failedPhys = new HashSet<>();
+			for (ServerEntry s : f) {
+				failedPhys.add(s.getPhyAddr());
+			}
+			Set<IPv4Address> e = new HashSet<>(failedPhys);
+			for (ServerEntry s : d) {
+				e.add(s.getPhyAddr());
+			}
+			this.draining = Collections.unmodifiableSet(d);
+			this.down = Collections.unmodifiableSet(f);
+			this.excluded = Collections.unmodifiableSet(e);
+			this.failed = Collections.unmodifiableSet(failedPhys);
+		}
+
+		private Group(Group g, List<ServerEntry> servers) {
+			this(g.anyAddr, g.index, servers, g.strategy, g.draining, g.down);
+		}
+
+		public IPv4Address getAnyAddr() {
+			return anyAddr;
 		}
-		
+
 		/**
-		 * An entry o is equal to the current entry if its list of physical
-		 * addresses is a subset of the list of the current entry.
+		 * @return The index of the group, between 1 and MAX_INDEX, which
+		 * does not change as long as the group is registered. It is 0 if
+		 * all the indexes are taken
 		 */
-		@Override
-		public boolean equals(Object o) {
-			if ((((Entry)o).anyAddr).equals(this.anyAddr)) {
-				if (this.servers != null) {
-					if (((Entry)o).servers == null) 
-						return false;
-					for (ServerEntry server : this.servers) {
-						if (!((Entry)o).servers.contains(server)) {
-							return false;
-						}
-					}
-				}
-				return true;
-			}
-			return false;
+		public int getIndex() {
+			return index;
+		}
+
+		public List<ServerEntry> getServers() {
+			return servers;
+		}
+
+		public List<IPv4Address> getPhyAddrs() {
+			return phyAddrs;
+		}
+
+		public ServerSelectionStrategy getStrategy() {
+			return strategy;
+		}
+
+		/**
+		 * @return The servers of the group which are draining
+		 */
+		public Set<ServerEntry> getDraining() {
+			return draining;
+		}
+
+		/**
+		 * @return The servers of the group which are down
+		 */
+		public Set<ServerEntry> getDown() {
+			return down;
+		}
+
+		/**
+		 * @param phyAddr The physical IP address of a server of the group
+		 * @return true: if new connections can be sent to the server, i.e.
+		 * it is neither draining nor down on any port
+		 */
+		public boolean isSelectable(IPv4Address phyAddr) {
+			return !excluded.contains(phyAddr);
 		}
-		
+
+		/**
+		 * @param phyAddr The physical IP address of a server of the group
+		 * @return true: if the server is down on some port, so that no
+		 * connection can be sent to it
+		 */
+		public boolean isDown(IPv4Address phyAddr) {
+			return failed.contains(phyAddr);
+		}
+
 		@Override
 		public String toString() {
 			String addr = "<" + anyAddr.toString() + "> " + servers.toString();
 			return addr;
 		}
 	}
-	
-	private ArrayList<Entry> reg;
-	
+
+	/**
+	 * An immutable, versioned view of the register
+	 */
+	public static final class Snapshot {
+		private final long version;
+		// Primary index: anycast IP address (as int) -> group of servers
+		private final LongKeyedTable<Group> groups;
+		// The groups in the order of their registration
+		private final List<Group> groupList;
+		// Reverse index: <physical IP address, port> (packed) -> anycast IP address
+		private final LongKeyedTable<IPv4Address> owners;
+
+		private Snapshot(long version, LongKeyedTable<Group> groups, List<Group> groupList,
+				LongKeyedTable<IPv4Address> owners) {
+			this.version = version;
+			this.groups = groups;
+			this.groupList = groupList;
+			this.owners = owners;
+		}
+
+		/**
+		 * @return The version of the snapshot, incremented at every change
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @param anyAddr The anycast IP address of the group
+		 * @return The group, or null if anyAddr is not registered
+		 */
+		public Group getGroup(IPv4Address anyAddr) {
+			return groups.get(anyAddr.getInt());
+		}
+
+		/**
+		 * @return All the registered groups
+		 */
+		public Collection<Group> getGroups() {
+			return groupList;
+		}
+
+		/**
+		 * @param phyAddr The physical IP address of the server
+		 * @param port The port used by the service
+		 * @return The anycast IP address of the group which the server
+		 * subscribed at, or null
+		 */
+		public IPv4Address getAnyGroup(IPv4Address phyAddr, short port) {
+			return owners.get(ServerEntry.key(phyAddr.getInt(), port));
+		}
+	}
+
+	// The highest index of a group, so that it fits in 16 bits
+	public static final int MAX_INDEX = 0xFFFF;
+
+	private volatile Snapshot snapshot;
+	// The last index given to a group, only accessed by the writers
+	private int lastIndex;
+
 	// Constructor
 	public ServiceRegister() {
-		reg = new ArrayList<>();
+		snapshot = new Snapshot(0, new LongKeyedTable<Group>(), Collections.<Group>emptyList(),
+				new LongKeyedTable<IPv4Address>());
 	}
-	
-	private synchronized boolean contains(ServerEntry entry) {
-		for (Entry e : reg) {
-			if (e.servers.contains(entry)) {
-				return true;
-			}
-		}
-		return false;
+
+	/**
+	 * @return The current immutable view of the register. Use it when more
+	 * than one lookup has to be consistent
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
 	}
-	
+
 	/**
 	 * For a service, specified by its anycast IP address, a list of service
 	 * providers is returned
 	 * @param anyAddr The anycast IP address associated with a service
-	 * @return The list of the physical IP addresses and the port of the providers of the
-	 * service associated with the anycast IP address anyAddr
+	 * @return The unmodifiable list of the physical IP addresses and the port
+	 * of the providers of the service associated with the anycast IP address
+	 * anyAddr
 	 */
-	public synchronized ArrayList<ServerEntry> getServers(IPv4Address anyAddr) {
-		int i = reg.indexOf(new Entry(anyAddr, null));
-		if (i < 0) {
-			return null;
-		}
-		ArrayList<ServerEntry> servers = new ArrayList<ServerEntry>();
-		for (ServerEntry s : reg.get(i).servers) {
-			servers.add(s);
-		}
-		return servers;
+	public List<ServerEntry> getServers(IPv4Address anyAddr) {
+		Group g = snapshot.getGroup(anyAddr);
+		return g == null ? null : g.getServers();
 	}
-	
+
 	/**
 	 * For a service, specified by its anycast IP address, a list of physical
 	 * IP addresses of the service providers is returned
 	 * @param anyAddr The anycast IP address associated with a service
-	 * @return The list of the physical IP addresses of the providers of the
-	 * service associated with the anycast IP address anyAddr
+	 * @return The unmodifiable list of the physical IP addresses of the
+	 * providers of the service associated with the anycast IP address anyAddr
 	 */
-	public ArrayList<IPv4Address> getServersPhyAddr(IPv4Address anyAddr) {
-		ArrayList<ServerEntry> e = getServers(anyAddr);
-		if (e == null) {
-			return null;
-		}
-		ArrayList<IPv4Address> list = new ArrayList<>();
-		for (ServerEntry tmp : e) {
-			list.add(tmp.getPhyAddr());
-		}
-		return list;
+	public List<IPv4Address> getServersPhyAddr(IPv4Address anyAddr) {
+		Group g = snapshot.getGroup(anyAddr);
+		return g == null ? null : g.getPhyAddrs();
 	}
-	
+
 	/**
 	 * Get the anycast IP address of the group which a server has previously
 	 * subscribed at
@@ -108,14 +247,9 @@ public class ServiceRegister {
 	 * @return The anycast IP address of the group which a server subscribed at
 	 */
 	public IPv4Address getAnyGroup(ServerEntry server) {
-		for (Entry e : reg) {
-			if(e.servers.contains(server)) {
-				return e.anyAddr;
-			}
-		}
-		return null;
+		return getAnyGroup(server.getPhyAddr(), server.getPort());
 	}
-	
+
 	/**
 	 * Get the anycast IP address of the group which a server has previously
 	 * subscribed at
@@ -124,39 +258,22 @@ public class ServiceRegister {
 	 * @return The anycast IP address of the group which a server subscribed at
 	 */
 	public IPv4Address getAnyGroup(IPv4Address phyAddr, short port) {
-		ServerEntry entry = new ServerEntry(phyAddr, port);
-		return getAnyGroup(entry);
+		return snapshot.getAnyGroup(phyAddr, port);
 	}
-	
+
 	/**
 	 * Subscribe a server to a group with an anycast IP address equal to
 	 * anyAddr
 	 * @param anyAddr The anycast IP address to which a server has to be
 	 * subscribed
-	 * @param server The couple <physical IP address, port> of the server 
+	 * @param server The couple <physical IP address, port> of the server
 	 * @return true: if the subscription succeeds.
 	 * false: the service is already subscribed
 	 */
-	public synchronized boolean subscribe(IPv4Address anyAddr, ServerEntry server) {
-		// Look if the server has already been registered with the same port
-		// in another anycast group
-		if (this.contains(server)) {
-			return false;
-		}
-		// Look if the service associated with anyAddr is already registered
-		int i = reg.indexOf(new Entry(anyAddr, null));
-		if (i != -1) {
-			// The anycast group already exist, add the server
-			reg.get(i).servers.add(server);
-			return true;
-		}
-		// The anycast group has not been registered yet
-		ArrayList<ServerEntry> servers = new ArrayList<>();
-		servers.add(server);
-		reg.add(new Entry(anyAddr, servers));
-		return true;
+	public boolean subscribe(IPv4Address anyAddr, ServerEntry server) {
+		return subscribe(anyAddr, Collections.singletonList(server)) == 1;
 	}
-	
+
 	/**
 	 * Subscribe a server to a group with an anycast IP address equal to
 	 * anyAddr
@@ -171,26 +288,53 @@ public class ServiceRegister {
 		ServerEntry server = new ServerEntry(phyAddr, port);
 		return subscribe(anyAddr, server);
 	}
-	
+
 	/**
 	 * Subscribe a list of servers to a group with an anycast IP address equal
-	 * to anyAddr
+	 * to anyAddr. The whole list is published with a single new snapshot
 	 * @param anyAddr The anycast IP address to which a server has to be
 	 * subscribed
 	 * @param servers The list of <physical IP address, port> of servers that
-	 * has to be subscribedclone()
+	 * has to be subscribed
 	 * @return The number of successful subscriptions
 	 */
-	public int subscribe(IPv4Address anyAddr, ArrayList<ServerEntry> servers){
-		int count = 0;
-		for (ServerEntry server : servers) {
-			if (subscribe(anyAddr, server)) {
+	public int subscribe(IPv4Address anyAddr, List<ServerEntry> servers) {
+		synchronized (this) {
+			Snapshot current = snapshot;
+			Map<Long, IPv4Address> owners = null;
+			Group g = current.groups.get(anyAddr.getInt());
+			List<ServerEntry> members = g == null ?
+					new ArrayList<ServerEntry>() : new ArrayList<>(g.getServers());
+			int count = 0;
+			for (ServerEntry server : servers) {
+				long key = ServerEntry.key(server.getPhyAddr().getInt(), server.getPort());
+				// Look if the server has already been registered with the same
+				// port in this or in another anycast group
+				if (current.owners.get(key) != null || (owners != null && owners.containsKey(key))) {
+					continue;
+				}
+				if (owners == null) {
+					owners = copyOwners(current);
+				}
+				owners.put(key, anyAddr);
+				members.add(server);
 				count++;
 			}
+			if (count > 0) {
+				Map<Integer, Group> groups = copyGroups(current);
+				if (g == null) {
+					groups.put(anyAddr.getInt(), new Group(anyAddr, nextIndex(current), members,
+							SelectionStrategies.create(SelectionStrategies.DEFAULT),
+							Collections.<ServerEntry>emptySet(), Collections.<ServerEntry>emptySet()));
+				} else {
+					groups.put(anyAddr.getInt(), new Group(g, members));
+				}
+				publish(current, groups, owners);
+			}
+			return count;
 		}
-		return count;
 	}
-	
+
 	/**
 	 * Subscribe a list of servers to a group with an anycast IP address equal
 	 * to anyAddr
@@ -201,7 +345,7 @@ public class ServiceRegister {
 	 * @param ports The list of ports of the servers that has to be subscribed
 	 * @return The number of successful subscriptions
 	 */
-	public int subscribe(IPv4Address anyAddr, ArrayList<IPv4Address> phyAddr, short[] ports){
+	public int subscribe(IPv4Address anyAddr, List<IPv4Address> phyAddr, short[] ports){
 		int size = phyAddr.size();
 		if (size != ports.length) {
 			return 0;
@@ -212,35 +356,20 @@ public class ServiceRegister {
 		}
 		return subscribe(anyAddr, servers);
 	}
-	
+
 	/**
 	 * Unsubscribe a server belogning to a group with an anycast IP address
 	 * equal to anyAddr
 	 * @param anyAddr The anycast IP address representing the service that the
 	 * server no longer offers
-	 * @param server The couple <physical IP address, port> of the server 
+	 * @param server The couple <physical IP address, port> of the server
 	 * @return true: if the subscription is successfully cancelled.
 	 * false: if the service was not subscribed to the specified anycast group
 	 */
-	public synchronized boolean unsubscribe(IPv4Address anyAddr, ServerEntry server) {
-		ArrayList<ServerEntry> servers = new ArrayList<>();
-		servers.add(server);
-		// Look if the anycast group has been registered
-		int i = reg.indexOf(new Entry(anyAddr, servers));
-		if (i != -1) {
-			// The server has been registered with the specified anycast group
-			Entry e = reg.get(i);
-			e.servers.remove(server);
-			// If the anycast group has no server, delete the group
-			if (e.servers.isEmpty()) {
-				reg.remove(i);
-			}
-			return true;
-		}
-		// The specified anycast IP addres and server were not found
-		return false;
+	public boolean unsubscribe(IPv4Address anyAddr, ServerEntry server) {
+		return unsubscribe(anyAddr, Collections.singletonList(server)) == 1;
 	}
-	
+
 	/**
 	 * Unsubscribe a server belogning to a group with an anycast IP address
 	 * equal to anyAddr
@@ -255,26 +384,52 @@ public class ServiceRegister {
 		ServerEntry server = new ServerEntry(phyAddr, port);
 		return unsubscribe(anyAddr, server);
 	}
-	
+
 	/**
 	 * Unsubscribe a server belogning to a group with an anycast IP address
-	 * equal to anyAddr
+	 * equal to anyAddr. The whole list is published with a single new snapshot
 	 * @param anyAddr The anycast IP address representing the service that the
 	 * server no longer offers
 	 * @param servers The list of <physical IP address, port> of servers that
 	 * no longer offer the service
 	 * @return The number of successful cancelled subscriptions
 	 */
-	public int unsubscribe(IPv4Address anyAddr, ArrayList<ServerEntry> servers) {
-		int count = 0;
-		for (ServerEntry server : servers) {
-			if (unsubscribe(anyAddr, server)) {
+	public int unsubscribe(IPv4Address anyAddr, List<ServerEntry> servers) {
+		synchronized (this) {
+			Snapshot current = snapshot;
+			Group g = current.groups.get(anyAddr.getInt());
+			if (g == null) {
+				return 0;
+			}
+			Map<Long, IPv4Address> owners = null;
+			List<ServerEntry> members = new ArrayList<>(g.getServers());
+			int count = 0;
+			for (ServerEntry server : servers) {
+				// Look if the server has been registered with the specified
+				// anycast group
+				if (!members.remove(server)) {
+					continue;
+				}
+				if (owners == null) {
+					owners = copyOwners(current);
+				}
+				owners.remove(ServerEntry.key(server.getPhyAddr().getInt(), server.getPort()));
 				count++;
 			}
+			if (count > 0) {
+				Map<Integer, Group> groups = copyGroups(current);
+				// If the anycast group has no server, delete the group
+				if (members.isEmpty()) {
+					groups.remove(anyAddr.getInt());
+				} else {
+					groups.put(anyAddr.getInt(), new Group(g, members));
+				}
+				publish(current, groups, owners);
+			}
+			return count;
 		}
-		return count;
 	}
-	
+
 	/**
 	 * Unsubscribe a server belogning to a group with an anycast IP address
 	 * equal to anyAddr
@@ -286,7 +441,7 @@ public class ServiceRegister {
 	 * subscription
 	 * @return The number of successful cancelled subscriptions
 	 */
-	public int unsubscribe(IPv4Address anyAddr, ArrayList<IPv4Address> phyAddr, short[] ports){
+	public int unsubscribe(IPv4Address anyAddr, List<IPv4Address> phyAddr, short[] ports){
 		int size = phyAddr.size();
 		if (size != ports.length) {
 			return 0;
@@ -297,7 +452,101 @@ public class ServiceRegister {
 		}
 		return unsubscribe(anyAddr, servers);
 	}
-	
+
+	/**
+	 * Change the server selection strategy of an anycast group
+	 * @param anyAddr The anycast IP address of the group
+	 * @param strategy The new strategy, used only by this group
+	 * @return true: if the strategy has been changed.
+	 * false: if the anycast group is not registered
+	 */
+	public boolean setStrategy(IPv4Address anyAddr, ServerSelectionStrategy strategy) {
+		synchronized (this) {
+			Snapshot current = snapshot;
+			Group g = current.groups.get(anyAddr.getInt());
+			if (g == null) {
+				return false;
+			}
+			Map<Integer, Group> groups = copyGroups(current);
+			groups.put(anyAddr.getInt(), new Group(anyAddr, g.getIndex(), g.getServers(), strategy,
+					g.getDraining(), g.getDown()));
+			publish(current, groups, null);
+			return true;
+		}
+	}
+
+	/**
+	 * Start or stop the draining of some servers of an anycast group. The
+	 * whole list is published with a single new snapshot
+	 * @param anyAddr The anycast IP address of the group
+	 * @param servers The list of <physical IP address, port> of the servers
+	 * @param draining true to start the draining, false to stop it
+	 * @return The number of servers whose state has changed
+	 */
+	public int setDraining(IPv4Address anyAddr, List<ServerEntry> servers, boolean draining) {
+		synchronized (this) {
+			Snapshot current = snapshot;
+			Group g = current.groups.get(anyAddr.getInt());
+			if (g == null) {
+				return 0;
+			}
+			Set<ServerEntry> d = new HashSet<>(g.getDraining());
+			int count = 0;
+			for (ServerEntry server : servers) {
+				if (g.getServers().contains(server) && (draining ? d.add(server) : d.remove(server))) {
+					count++;
+				}
+			}
+			if (count > 0) {
+				Map<Integer, Group> groups = copyGroups(current);
+				groups.put(anyAddr.getInt(), new Group(anyAddr, g.getIndex(), g.getServers(),
+						g.getStrategy(), d, g.getDown()));
+				publish(current, groups, null);
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Mark some servers as down or up, in whichever anycast group they have
+	 * subscribed at. The whole list is published with a single new snapshot
+	 * @param servers The list of <physical IP address, port> of the servers
+	 * @param down true if the servers are down, false if they are up
+	 * @return The number of servers whose state has changed
+	 */
+	public int setDown(List<ServerEntry> servers, boolean down) {
+		synchronized (this) {
+			Snapshot current = snapshot;
+			// Anycast IP address (as int) -> servers down
+			Map<Integer, Set<ServerEntry>> changed = new HashMap<>();
+			int count = 0;
+			for (ServerEntry server : servers) {
+				IPv4Address anyAddr = current.getAnyGroup(server.getPhyAddr(), server.getPort());
+				if (anyAddr == null) {
+					continue;
+				}
+				Set<ServerEntry> f = changed.get(anyAddr.getInt());
+				if (f == null) {
+					f = new HashSet<>(current.groups.get(anyAddr.getInt()).getDown());
+					changed.put(anyAddr.getInt(), f);
+				}
+				if (down ? f.add(server) : f.remove(server)) {
+					count++;
+				}
+			}
+			if (count > 0) {
+				Map<Integer, Group> groups = copyGroups(current);
+				for (Map.Entry<Integer, Set<ServerEntry>> e : changed.entrySet()) {
+					Group g = groups.get(e.getKey());
+					groups.put(e.getKey(), new Group(g.getAnyAddr(), g.getIndex(), g.getServers(),
+							g.getStrategy(), g.getDraining(), e.getValue()));
+				}
+				publish(current, groups, null);
+			}
+			return count;
+		}
+	}
+
 	/**
 	 * Get the servers which have subscribed to the anycast group offering a
 	 * service on the specified port
@@ -306,13 +555,12 @@ public class ServiceRegister {
 	 * @return The list of the physical IP address of the servers that offer
 	 * the service on the specified port and anycast group
 	 */
-	public synchronized ArrayList<IPv4Address> getServicesByPort(IPv4Address anyAddr, short port) {
+	public ArrayList<IPv4Address> getServicesByPort(IPv4Address anyAddr, short port) {
 		// Look if the service associated with anyAddr is registered
 		ArrayList<IPv4Address> list = new ArrayList<>();
-		int i = reg.indexOf(new Entry(anyAddr, null));
-		if (i != -1) {
-			Entry e = reg.get(i);
-			for (ServerEntry server : e.servers) {
+		Group g = snapshot.getGroup(anyAddr);
+		if (g != null) {
+			for (ServerEntry server : g.getServers()) {
 				if (server.getPort() == port) {
 					list.add(server.getPhyAddr());
 				}
@@ -320,12 +568,87 @@ public class ServiceRegister {
 		}
 		return list;
 	}
-	
+
+	/**
+	 * Find an index not used by the groups of a snapshot. The indexes are
+	 * given in a round-robin fashion, so that the index of a removed group
+	 * is reused as late as possible
+	 * @param current The snapshot
+	 * @return The index, or 0 if all the indexes are taken
+	 */
+	private int nextIndex(Snapshot current) {
+		if (current.groupList.size() >= MAX_INDEX) {
+			return 0;
+		}
+		BitSet used = new BitSet(MAX_INDEX + 1);
+		for (Group g : current.groupList) {
+			used.set(g.getIndex());
+		}
+		int index = lastIndex;
+		do {
+			index = index % MAX_INDEX + 1;
+		} while (used.get(index));
+		lastIndex = index;
+		return index;
+	}
+
+	/**
+	 * Publish the next snapshot. Must be called holding the lock of the
+	 * register
+	 * @param current The snapshot the changes have been computed from
+	 * @param groups The new primary index
+	 * @param owners The new reverse index, or null if it has not changed
+	 */
+	private void publish(Snapshot current, Map<Integer, Group> groups, Map<Long, IPv4Address> owners) {
+		LongKeyedTable<Group> groupTable = new LongKeyedTable<>();
+		for (Map.Entry<Integer, Group> e : groups.entrySet()) {
+			groupTable.put(e.getKey(), e.getValue());
+		}
+		LongKeyedTable<IPv4Address> ownerTable = current.owners;
+		if (owners != null) {
+			ownerTable = new LongKeyedTable<>();
+			for (Map.Entry<Long, IPv4Address> e : owners.entrySet()) {
+				ownerTable.put(e.getKey(), e.getValue());
+			}
+		}
+		// The tables are never modified once published
+		snapshot = new Snapshot(current.version + 1, groupTable,
+				Collections.unmodifiableList(new ArrayList<>(groups.values())), ownerTable);
+	}
+
+	/**
+	 * @param current A snapshot
+	 * @return A modifiable copy of the primary index of the snapshot, in the
+	 * order of the registration of the groups
+	 */
+	private static Map<Integer, Group> copyGroups(Snapshot current) {
+		Map<Integer, Group> groups = new LinkedHashMap<>();
+		for (Group g : current.groupList) {
+			groups.put(g.getAnyAddr().getInt(), g);
+		}
+		return groups;
+	}
+
+	/**
+	 * @param current A snapshot
+	 * @return A modifiable copy of the reverse index of the snapshot
+	 */
+	private static Map<Long, IPv4Address> copyOwners(Snapshot current) {
+		final Map<Long, IPv4Address> owners = new HashMap<>();
+		current.owners.forEach(new LongKeyedTable.Visitor<IPv4Address>() {
+			@Override
+			public void visit(long key, IPv4Address anyAddr) {
+				owners.put(key, anyAddr);
+			}
+		});
+		return owners;
+	}
+
 	@Override
 	public String toString() {
 		String list = new String();
-		for (Entry e : reg) {
-			list+=e.toString()+"  ";
+		for (Group g : snapshot.getGroups()) {
+			list+=g.toString()+"  ";
 		}
 		return list;
 	}
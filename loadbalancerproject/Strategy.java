@@ -0,0 +1,72 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.restlet.data.Form;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * It handles the server selection strategy of an anycast group.
+ * 
+ * http://localhost:8080/lb/controller/strategy/json
+ * POST message
+ * Data: Custom
+ * MIME format: application/json
+ * Message format: {"anycast":"9.9.9.9", "strategy":"weighted-round-robin"}
+ * Available strategies: least-hops, weighted-round-robin,
+ * least-outstanding-flows, power-of-two-choices, consistent-hash
+ * 
+ * http://localhost:8080/lb/controller/strategy/json?anycast=9.9.9.9
+ * GET message
+ */
+public class Strategy extends ServerResource {
+	
+	@Get("json")
+	public Map<String, Object> retrieve() {
+		Form form = getQuery();
+		String anyAddr = form.getFirstValue("anycast", true);
+		
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		
+		//Build a response
+		Map<String, Object> map = new HashMap<String, Object>();
+		if (anyAddr != null) {
+			String strategy = lb.getStrategy(IPv4Address.of(anyAddr));
+			map.put(anyAddr, strategy == null ? "No physical addresses associated" : strategy);
+		}
+		map.put("available", SelectionStrategies.NAMES);
+		return map;
+	}
+	
+	@Post("application/json")
+	public String store(String fmJson){
+		if (fmJson == null)
+			return new String("Error: no attributes");
+		ObjectMapper mapper = new ObjectMapper();
+		IPv4Address anyAddr = null;
+		String strategy = null;
+		try {
+			JsonNode root = mapper.readTree(fmJson);
+			if (root.get("anycast") == null || root.get("strategy") == null)
+				return new String("Error: invalid message");
+			anyAddr = IPv4Address.of(root.get("anycast").asText());
+			strategy = root.get("strategy").asText();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new String("Error: invalid message");
+		}
+		
+		//Invoke the correspondent function on the controller
+		ILoadBalancerREST lb = (ILoadBalancerREST)getContext().getAttributes().get(ILoadBalancerREST.class.getCanonicalName());
+		return lb.setStrategy(anyAddr, strategy);
+	}
+}
@@ -26,8 +26,6 @@ public class Subscribe extends ServerResource {
 	public String store(String fmJson){
 		if (fmJson == null)
 			return new String("Error: no attributes");
-		System.out.println();
-		System.out.println(fmJson);
 		ObjectMapper mapper = new ObjectMapper();
 		IPv4Address anyAddr = null;
 		ArrayList<ServerEntry> servers = new ArrayList<>();
@@ -1,36 +1,26 @@
 package net.floodlightcontroller.loadbalancerproject;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
+import org.projectfloodlight.openflow.protocol.OFFactory;
 import org.projectfloodlight.openflow.protocol.OFFlowAdd;
+import org.projectfloodlight.openflow.protocol.OFFlowModFlags;
 import org.projectfloodlight.openflow.protocol.OFPacketIn;
 import org.projectfloodlight.openflow.protocol.OFPacketOut;
 import org.projectfloodlight.openflow.protocol.action.OFAction;
-import org.projectfloodlight.openflow.protocol.action.OFActionOutput;
-import org.projectfloodlight.openflow.protocol.action.OFActionSetField;
-import org.projectfloodlight.openflow.protocol.action.OFActions;
 import org.projectfloodlight.openflow.protocol.instruction.OFInstruction;
-import org.projectfloodlight.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.projectfloodlight.openflow.protocol.match.Match;
 import org.projectfloodlight.openflow.protocol.match.MatchField;
-import org.projectfloodlight.openflow.protocol.oxm.OFOxms;
-import org.projectfloodlight.openflow.types.DatapathId;
 import org.projectfloodlight.openflow.types.EthType;
 import org.projectfloodlight.openflow.types.IPv4Address;
-import org.projectfloodlight.openflow.types.IPv6Address;
 import org.projectfloodlight.openflow.types.IpProtocol;
-import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFBufferId;
-import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.TransportPort;
-import org.projectfloodlight.openflow.types.U64;
-import org.projectfloodlight.openflow.types.VlanVid;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IOFSwitch;
-import net.floodlightcontroller.core.types.NodePortTuple;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.packet.Ethernet;
@@ -41,27 +31,51 @@ import net.floodlightcontroller.routing.Path;
 import net.floodlightcontroller.util.FlowModUtils;
 
 public class TcpUdpHandler {
-public static boolean handle(Ethernet eth, IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx) {
+	// TCP flags which close a connection
+	private static final short TCP_FIN = 0x01;
+	private static final short TCP_RST = 0x04;
+	// The rules of the replies of a service, below the rules of the
+	// connections and of the answers to the probes of the health checker
+	public static final int REPLY_PRIORITY = FlowModUtils.PRIORITY_VERY_HIGH;
+	
+	/**
+	 * Handle a TCP or UDP packet from or to an anycast group. The handling
+	 * may be run by the packet-in pipeline after the return
+	 * @return false: if the packet is neither from nor to an anycast group
+	 */
+	public static boolean handle(final Ethernet eth, final IOFSwitch sw, final OFPacketIn pi,
+			final FloodlightContext cntx) {
 		
 		IPv4 ipv4 = (IPv4) eth.getPayload();
 		
-		TransportPort srcPort = ipv4.getProtocol() == IpProtocol.UDP ?
+		final TransportPort srcPort = ipv4.getProtocol() == IpProtocol.UDP ?
 				((UDP)(ipv4.getPayload())).getSourcePort():
 				((TCP)(ipv4.getPayload())).getSourcePort();
 				
 		/* FROM ANYCAST TO UNICAST */
-		IPv4Address anyGroup = LoadBalancer.servReg.getAnyGroup(
+		final IPv4Address anyGroup = LoadBalancer.servReg.getAnyGroup(
 				ipv4.getSourceAddress(), (short)(srcPort.getPort()));
 		if (anyGroup != null) {
-			toUnicast(anyGroup, srcPort, eth, sw, pi, cntx);
+			PacketInPipeline.dispatch(sw, ipv4, new Runnable() {
+				@Override
+				public void run() {
+					toUnicast(anyGroup, srcPort, eth, sw, pi, cntx);
+				}
+			});
 			return true;
 		}
 		
 		/* FROM UNICAST TO ANYCAST */
-		ArrayList<IPv4Address> phys = LoadBalancer.servReg.getServersPhyAddr(
+		final ServiceRegister.Group group = LoadBalancer.servReg.getSnapshot().getGroup(
 				ipv4.getDestinationAddress());
-		if (phys!=null) {
-			return toAnycast(phys, eth, sw, pi, cntx);
+		if (group!=null) {
+			PacketInPipeline.dispatch(sw, ipv4, new Runnable() {
+				@Override
+				public void run() {
+					toAnycast(group, eth, sw, pi, cntx);
+				}
+			});
+			return true;
 		}
 		
 		/* FROM UNICAST TO UNICAST */
@@ -70,84 +84,80 @@ public static boolean handle(Ethernet eth, IOFSwitch sw, OFPacketIn pi, Floodlig
 	
 	/**
 	 * Handle messages from an unicast address to an anycast address
+	 * @param group The anycast group addressed by the packet
 	 * @param eth The packet received
 	 * @param sw The switch that received the packet
 	 * @param pi The OpenFlow packet
 	 * @param cntx The Floodlight context
 	 * @return
 	 */
-	public static boolean toAnycast(ArrayList<IPv4Address> phys, Ethernet eth, IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx) {
-		
+	public static boolean toAnycast(ServiceRegister.Group group, Ethernet eth, IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx) {
+		long start = System.nanoTime();
 		// The physical unicast address chosen instead of the anycast address
 		IPv4Address dstIp = null;
 		// The route from the current switch to addr
 		Path route = null;
-		synchronized (ServiceCounter.class) {
-			// Find all the routes to reach the servers whose addresses are in phys
-			ArrayList<RouteInfo> routes =
-					RouteHandler.findAllRoutes(
-							phys,
-							IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE),
-							sw.getId());
-			Iterator<RouteInfo> entries = routes.iterator();
-			// The routes are sorted based on the number of hops needed to reach a destination
-			while (entries.hasNext()) {
-				RouteInfo entry = entries.next();
-				// Check if the destination is available
-				if (LoadBalancer.servCounter.isAvailable(entry.destination)) {
-					System.out.printf("Server %s is available\n", entry.destination);
-					dstIp = entry.destination;
-					route = entry.path;
-					LoadBalancer.servCounter.newService(dstIp);
+		IPv4 ipv4 = (IPv4) eth.getPayload();
+		FlowKey flow = FlowKey.of(ipv4);
+		// Get the precomputed routes to reach the servers of the group
+		List<RouteInfo> routes = LoadBalancer.serverRanking.getRoutes(sw.getId(), group);
+		long routed = System.nanoTime();
+		LoadBalancer.metrics.routeLookup.record(routed - start);
+		// A known connection keeps its server, as long as the server is in
+		// the group, even if it is draining
+		RouteInfo entry = null;
+		IPv4Address known = LoadBalancer.connTable.get(flow);
+		if (known != null) {
+			for (RouteInfo r : routes) {
+				if (r.destination.equals(known)) {
+					entry = r;
 					break;
 				}
 			}
 		}
+		if (entry == null) {
+			// The routes are sorted based on the number of hops needed to
+			// reach a destination: the strategy of the group chooses the
+			// server and registers the request
+			entry = group.getStrategy().select(
+					LoadBalancer.serverRanking.getSelectableRoutes(sw.getId(), group),
+					flow, LoadBalancer.servCounter);
+			if (entry != null) {
+				LoadBalancer.connTable.put(flow, entry.destination);
+			}
+		}
+		LoadBalancer.metrics.serverSelection.record(System.nanoTime() - routed);
+		if (entry != null) {
+			dstIp = entry.destination;
+			route = entry.path;
+		}
 
 		if (dstIp == null) {
-			System.out.println("No server is available!");
+			LoadBalancer.metrics.noServer.increment();
+			DecisionLog.decision(DecisionLog.Level.WARN, "no-server", flow, null, 0,
+					System.nanoTime() - start);
 			return true;
 		}
+		DecisionLog.decision(DecisionLog.Level.INFO, known == null ? "new" : "known", flow, dstIp,
+				entry.hopNumber, System.nanoTime() - start);
+		LoadBalancer.metrics.selections.increment();
 
 		/* SEND THE PACKET TO THE PHYSICAL SERVER */
 		
-		// Create the actions associated with the incoming packet:
+        // Find the MAC of the available server
+        IDevice device = LoadBalancer.routeCache.getDevice(dstIp);
+		
+		// Create the actions associated with the incoming packet, from the
+		// templates of the group:
 		// - Set as destination IP address the unicast address of the available
 		//   server
 		// - Set as destination MAC address the MAC of the available server
 		// - Set as output port the swich port found by RouteFinder
-        OFActions actions = sw.getOFFactory().actions();
-        ArrayList<OFAction> actionList = new ArrayList<OFAction>();
-        OFOxms oxms = sw.getOFFactory().oxms();
-        // Set dstIp as the destination address for the incoming packet
-        OFActionSetField setDstIp = actions.buildSetField()
-        	    .setField(
-        	        oxms.buildIpv4Dst()
-        	        .setValue(dstIp)
-        	        .build()
-        	    ).build();
-        actionList.add(setDstIp);
-		
-        // Find the MAC of the available server
-        Iterator<? extends IDevice> dstDev = LoadBalancer.deviceManagerService.queryDevices(MacAddress.NONE, VlanVid.ZERO, dstIp, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
-        if(dstDev.hasNext()) {
-        	// Set the MAC of the server as destination MAC address
-        	IDevice device = dstDev.next();
-        	OFActionSetField setDestMAC = actions.buildSetField()
-        			.setField(
-        					oxms.buildEthDst()
-        					.setValue(device.getMACAddress())
-        					.build()
-        					).build();
-        	actionList.add(setDestMAC);
-        }
-		
-        // Set the output port
-        OFActionOutput setDstPort = sw.getOFFactory().actions().buildOutput()
-			    .setMaxLen(0xFFffFFff)
-			    .setPort(RouteHandler.getOutPort(dstIp, route, sw.getId()))
-			    .build();
-		actionList.add(setDstPort);
+		OFFactory factory = sw.getOFFactory();
+		List<OFAction> actionList = FlowTemplates.append(
+				LoadBalancer.templates.toServer(factory, ipv4.getDestinationAddress(), dstIp,
+						device == null ? null : device.getMACAddress()),
+				LoadBalancer.templates.output(factory, RouteHandler.getOutPort(dstIp, route, sw.getId())));
         
         // Create the packet to send to the available server
 		OFPacketOut.Builder pob = sw.getOFFactory().buildPacketOut()
@@ -161,25 +171,38 @@ public static boolean handle(Ethernet eth, IOFSwitch sw, OFPacketIn pi, Floodlig
             pob.setData(pi.getData());
 		} 
 
+		FlowBatch batch = new FlowBatch();
+		if (hasFlag(ipv4, TCP_RST)) {
+			// A reset connection needs no new rules, and its next packet may
+			// select another server
+			LoadBalancer.connTable.remove(flow);
+		} else {
+			if (hasFlag(ipv4, TCP_FIN)) {
+				// The last packets of both sides keep the server for the
+				// linger time
+				LoadBalancer.connTable.close(flow);
+			}
+			/* In the ingress switch, push the rules of the connection in
+			   both directions */
+			pushConnection(flow, group.getIndex(), eth, dstIp, device, route, actionList, sw, pi, batch);
+		}
+
 		/* In the following switches (if any), push the rules to send the
 		   packet towards dstIp */
-		Path newRoute = cutRouteHead(route);
+		Path newRoute = RouteHandler.cutRouteHead(route);
 		if (newRoute != null) {
 			// Create a flow table modification to add a rule
-			OFFlowAdd.Builder flowMod = sw.getOFFactory().buildFlowAdd()
-					.setIdleTimeout(LoadBalancer.IDLE_TIMEOUT)
-					.setHardTimeout(LoadBalancer.HARD_TIMEOUT)
-					.setBufferId(OFBufferId.NO_BUFFER)
-					.setCookie(U64.of(0))
-					.setPriority(FlowModUtils.PRIORITY_MAX);
+			OFFlowAdd.Builder flowMod = flowMod(sw, group.getIndex(), dstIp);
 			// Create the match
 			Match.Builder match = sw.getOFFactory().buildMatch()
 					.setExact(MatchField.ETH_TYPE, EthType.IPv4)
 					.setExact(MatchField.IPV4_DST, dstIp);
-			RouteHandler.pushRoute(dstIp, newRoute, match.build(), flowMod);
+			RouteHandler.pushRoute(dstIp, newRoute, match.build(), flowMod, batch);
 		}
 
-		sw.write(pob.build());
+		long push = System.nanoTime();
+		batch.flush(sw, pob.build());
+		LoadBalancer.metrics.flowModPush.record(System.nanoTime() - push);
 		return true;
 	}
 	/**
@@ -196,17 +219,18 @@ public static boolean handle(Ethernet eth, IOFSwitch sw, OFPacketIn pi, Floodlig
 		IPv4 ipv4 = (IPv4)eth.getPayload();
 		IPv4Address dstIp = ipv4.getDestinationAddress();
 		// Find the fastest route to get to the client
+		long start = System.nanoTime();
 		Path route = RouteHandler.getFastestRoute(dstIp, 
 				IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE),
 				sw.getId());
+		LoadBalancer.metrics.routeLookup.record(System.nanoTime() - start);
 		
-		// Create a flow table modification message to add a rule
-		OFFlowAdd.Builder flowMod = sw.getOFFactory().buildFlowAdd()
-				.setIdleTimeout(LoadBalancer.IDLE_TIMEOUT)
-				.setHardTimeout(LoadBalancer.HARD_TIMEOUT)
-				.setBufferId(OFBufferId.NO_BUFFER)
-				.setCookie(U64.of(0))
-				.setPriority(FlowModUtils.PRIORITY_MAX);
+		// Create a flow table modification message to add a rule, deleted
+		// with the rules of the server
+		ServiceRegister.Group group = LoadBalancer.servReg.getSnapshot().getGroup(anycast);
+		OFFlowAdd.Builder flowMod = flowMod(sw, group == null ? 0 : group.getIndex(),
+				ipv4.getSourceAddress())
+				.setPriority(REPLY_PRIORITY);
 		
 		// Create the match with the anycast source address and the port
 		Match.Builder match = sw.getOFFactory().buildMatch()
@@ -225,54 +249,27 @@ public static boolean handle(Ethernet eth, IOFSwitch sw, OFPacketIn pi, Floodlig
 		// - Swap the MAC address of the server with a MAC address
 		//   associated with the anycast group
 		// - Set as output port the one found with RouteFinder
-		OFActions actions = sw.getOFFactory().actions();
-		ArrayList<OFAction> actionList = new ArrayList<OFAction>();
-		OFOxms oxms = sw.getOFFactory().oxms();
-		// Set as source of the packet the anycast address
-		OFActionSetField setSrcIp = actions.buildSetField()
-				.setField(
-					oxms.buildIpv4Src()
-			        .setValue(anycast)
-			        .build()
-			    ).build();
-		actionList.add(setSrcIp);
-		// Set the source MAC address
-		OFActionSetField setDstMAC = actions.buildSetField()
-			    .setField(
-				oxms.buildEthSrc()
-				.setValue(
-						eth.getSourceMACAddress().equals(LoadBalancer.anycastMacAddress[0])?
-				 			LoadBalancer.anycastMacAddress[1] :
-				 			LoadBalancer.anycastMacAddress[0]
-				)
-				.build()
-			    ).build();
-		actionList.add(setDstMAC);
-		// Send the packet through the port in order to follow the right route
-		OFActionOutput output = actions.buildOutput()
-			    .setMaxLen(0xFFffFFff)
-			    .setPort(RouteHandler.getOutPort(dstIp, route, sw.getId()))
-			    .build();
-		actionList.add(output);
-		
-		
-		OFInstructionApplyActions applyActions = sw.getOFFactory().instructions().buildApplyActions()
-			    .setActions(actionList)
-			    .build();
-		ArrayList<OFInstruction> instructionList = new ArrayList<OFInstruction>();
-		instructionList.add(applyActions);
+		OFFactory factory = sw.getOFFactory();
+		List<OFAction> actionList = FlowTemplates.append(
+				LoadBalancer.templates.fromServer(factory, anycast, ipv4.getSourceAddress(),
+						eth.getSourceMACAddress()),
+				LoadBalancer.templates.output(factory, RouteHandler.getOutPort(dstIp, route, sw.getId())));
+		List<OFInstruction> instructionList = Collections.singletonList(
+				(OFInstruction) factory.instructions().applyActions(actionList));
 		
 		// Apply the match and the actions associated with such match
 		flowMod.setInstructions(instructionList)
 				.setMatch(match.build());
-		sw.write(flowMod.build());
+		FlowBatch batch = new FlowBatch();
+		batch.add(sw, flowMod.build());
+		LoadBalancer.metrics.replyRewrites.increment();
 		
 		/* In the following switches (if any), push the rules to send the
 		   packet towards the client */
-		Path newRoute = cutRouteHead(route);
+		Path newRoute = RouteHandler.cutRouteHead(route);
 		if (newRoute != null) {
 			match.setExact(MatchField.IPV4_SRC, anycast);
-			RouteHandler.pushRoute(dstIp, route, match.build(), flowMod);
+			RouteHandler.pushRoute(dstIp, route, match.build(), flowMod, batch);
 		}
 		
 		// Create the packet to send to the client
@@ -287,36 +284,130 @@ public static boolean handle(Ethernet eth, IOFSwitch sw, OFPacketIn pi, Floodlig
             pob.setData(pi.getData());
 		}
 
-		sw.write(pob.build());	
+		long push = System.nanoTime();
+		batch.flush(sw, pob.build());
+		LoadBalancer.metrics.flowModPush.record(System.nanoTime() - push);
 		return;
 	}
 	
 	/**
-	 * The switches at the beginning of the path need to install different
-	 * rules in their Flow Table. The path that involves the following switches
-	 * is returned by this function: if the Path object has this structure
-	 * || sw1, outport || sw2, inport || sw2, outport || ...
-	 * || sw(n-1), inport || sw(n-1), outport || sw(n), inport ||
-	 * then the returned Path is
-	 * || sw2, outport || ...
-	 * || sw(n-1), inport || sw(n-1), outport || sw(n), inport ||
-	 * @param route The Path object whose head has to be cut
-	 * @return The cut route
+	 * Push the rules of a connection toward an anycast group in the switch
+	 * which received its first packet: the forward rule rewrites the anycast
+	 * destination with the server, the reverse rule rewrites the source of
+	 * the answers with the anycast address. The switches between the server
+	 * and the ingress switch forward the answers unchanged, so no answer is
+	 * sent to the controller
+	 * @param flow The 5-tuple of the client
+	 * @param groupIndex The index of the anycast group
+	 * @param eth The packet received
+	 * @param dstIp The physical IP address of the server
+	 * @param device The server, or null if its MAC is not known
+	 * @param route The route from the ingress switch to the server
+	 * @param actionList The actions applied to the packet
+	 * @param sw The ingress switch
+	 * @param pi The OpenFlow packet
+	 * @param batch The batch of the FlowMod messages
 	 */
-	private static Path cutRouteHead(Path route) {
-		Path newRoute = null;
-		List<NodePortTuple> list = route.getPath();
-		if (list.size() > 1) {
-			Iterator<NodePortTuple> iterator = list.iterator();
-			iterator.next();
-			NodePortTuple entry = iterator.next();
-			newRoute = new Path(entry.getNodeId(), route.getId().getDst());
-			ArrayList<NodePortTuple> temp = new ArrayList<>();
-			while(iterator.hasNext()) {
-				temp.add(iterator.next());
-			}
-			newRoute.setPath(temp);
+	private static void pushConnection(FlowKey flow, int groupIndex, Ethernet eth, IPv4Address dstIp, IDevice device,
+			Path route, List<OFAction> actionList, IOFSwitch sw, OFPacketIn pi, FlowBatch batch) {
+		if (device == null || (flow.getProto() != IpProtocol.TCP.getIpProtocolNumber()
+				&& flow.getProto() != IpProtocol.UDP.getIpProtocolNumber())) {
+			return;
+		}
+		IPv4Address client = IPv4Address.of(flow.getSrcIp());
+		IPv4Address anycast = IPv4Address.of(flow.getDstIp());
+		
+		// Forward rule. Its removal ends the flow for the accounting of the
+		// load of the server
+		OFFlowAdd.Builder forward = flowMod(sw, groupIndex, dstIp)
+				.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_FORWARD, groupIndex, dstIp))
+				.setFlags(Collections.singleton(OFFlowModFlags.SEND_FLOW_REM))
+				.setMatch(match(sw, flow.getProto(), client, anycast,
+						flow.getSrcPort(), flow.getDstPort()));
+		FlowModUtils.setActions(forward, actionList, sw);
+		batch.add(sw, forward.build());
+		// The rule of a known connection is installed again when it expires:
+		// the flow is counted again only once the removal of the former
+		// rule is seen
+		if (LoadBalancer.connTable.ruleInstalled(flow)) {
+			LoadBalancer.servCounter.flowInstalled(dstIp);
+		}
+		LoadBalancer.statsPoller.addSwitch(sw.getId());
+		
+		// Reverse rule: from the server to the client port of the ingress
+		// switch
+		Match reverseMatch = match(sw, flow.getProto(), dstIp, client,
+				flow.getDstPort(), flow.getSrcPort());
+		OFFactory factory = sw.getOFFactory();
+		List<OFAction> reverseActions = new ArrayList<OFAction>(
+				LoadBalancer.templates.fromServer(factory, anycast, dstIp, device.getMACAddress()));
+		reverseActions.add(factory.actions().buildSetField()
+				.setField(factory.oxms().buildEthDst().setValue(eth.getSourceMACAddress()).build())
+				.build());
+		reverseActions.add(LoadBalancer.templates.output(factory, pi.getMatch().get(MatchField.IN_PORT)));
+		OFFlowAdd.Builder reverse = flowMod(sw, groupIndex, dstIp)
+				.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_REVERSE, groupIndex, dstIp))
+				.setFlags(Collections.singleton(OFFlowModFlags.SEND_FLOW_REM))
+				.setMatch(reverseMatch);
+		FlowModUtils.setActions(reverse, reverseActions, sw);
+		batch.add(sw, reverse.build());
+		LoadBalancer.metrics.replyRewrites.increment();
+		
+		// The answers reach the ingress switch through the reverse path
+		Path reversePath = LoadBalancer.routeCache.getPath(route.getId().getDst(), sw.getId());
+		if (reversePath != null) {
+			RouteHandler.pushPath(reversePath, reverseMatch, flowMod(sw, groupIndex, dstIp), batch);
+		}
+		// Rerouted by the repair if a port of the paths fails
+		FlowRepair.track(flow, groupIndex, dstIp, sw.getId(), route, reversePath);
+	}
+	
+	/**
+	 * @param sw The switch
+	 * @param groupIndex The index of the anycast group
+	 * @param server The physical IP address of the server
+	 * @return A FlowMod with the timeouts of the load balancer and the
+	 * cookie of a transit rule of the server
+	 */
+	static OFFlowAdd.Builder flowMod(IOFSwitch sw, int groupIndex, IPv4Address server) {
+		return sw.getOFFactory().buildFlowAdd()
+				.setIdleTimeout(LoadBalancer.IDLE_TIMEOUT)
+				.setHardTimeout(LoadBalancer.HARD_TIMEOUT)
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setCookie(LoadBalancer.makeCookie(LoadBalancer.COOKIE_TRANSIT, groupIndex, server))
+				.setPriority(FlowModUtils.PRIORITY_MAX);
+	}
+	
+	/**
+	 * @return The exact match of a TCP or UDP 5-tuple
+	 */
+	static Match match(IOFSwitch sw, short proto, IPv4Address src, IPv4Address dst,
+			int srcPort, int dstPort) {
+		Match.Builder mb = sw.getOFFactory().buildMatch()
+				.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+				.setExact(MatchField.IPV4_SRC, src)
+				.setExact(MatchField.IPV4_DST, dst);
+		if (proto == IpProtocol.TCP.getIpProtocolNumber()) {
+			mb.setExact(MatchField.IP_PROTO, IpProtocol.TCP)
+				.setExact(MatchField.TCP_SRC, TransportPort.of(srcPort))
+				.setExact(MatchField.TCP_DST, TransportPort.of(dstPort));
+		} else {
+			mb.setExact(MatchField.IP_PROTO, IpProtocol.UDP)
+				.setExact(MatchField.UDP_SRC, TransportPort.of(srcPort))
+				.setExact(MatchField.UDP_DST, TransportPort.of(dstPort));
+		}
+		return mb.build();
+	}
+	
+	/**
+	 * @param ipv4 A packet
+	 * @param flag TCP_FIN or TCP_RST
+	 * @return true: if the packet is a TCP segment with the flag
+	 */
+	private static boolean hasFlag(IPv4 ipv4, short flag) {
+		if (ipv4.getProtocol() != IpProtocol.TCP) {
+			return false;
 		}
-		return newRoute;
+		return (((TCP) ipv4.getPayload()).getFlags() & flag) != 0;
 	}
 }
@@ -0,0 +1,97 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket which admits at most capacity requests within a sliding
+ * interval, with bursts up to capacity. It is implemented as a virtual
+ * scheduling algorithm (GCRA): the whole state is a single theoretical
+ * arrival time updated with CAS, so it is lock-free and allocation-free.
+ * Times are expressed in nanoseconds as returned by System.nanoTime().
+ */
+public class TokenBucket {
+	private volatile int capacity;
+	private volatile long interval;
+	// Time between two requests at the steady rate
+	private volatile long emission;
+	// Theoretical arrival time of the next request
+	private final AtomicLong tat;
+
+	/**
+	 * @param capacity The maximum number of requests within the interval
+	 * @param interval The length of the interval
+	 * @param unit The time unit of interval
+	 */
+	public TokenBucket(int capacity, long interval, TimeUnit unit) {
+		this.tat = new AtomicLong(System.nanoTime());
+		setRate(capacity, interval, unit);
+	}
+
+	/**
+	 * Change the rate of the bucket. The requests already admitted are kept
+	 * @param capacity The maximum number of requests within the interval
+	 * @param interval The length of the interval
+	 * @param unit The time unit of interval
+	 */
+	public void setRate(int capacity, long interval, TimeUnit unit) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be at least 1");
+		}
+		long nanos = unit.toNanos(interval);
+		this.emission = Math.max(1, nanos / capacity);
+		this.interval = nanos;
+		this.capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getInterval(TimeUnit unit) {
+		return unit.convert(interval, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Consume a token, if available
+	 * @param now The current time
+	 * @return true: if the request is admitted.
+	 * false: if the bucket is empty
+	 */
+	public boolean tryAcquire(long now) {
+		long t = emission;
+		long tolerance = interval - t;
+		while (true) {
+			long current = tat.get();
+			long start = current - now > 0 ? current : now;
+			if (start - now > tolerance) {
+				return false;
+			}
+			if (tat.compareAndSet(current, start + t)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param now The current time
+	 * @return true: if a request would be admitted
+	 */
+	public boolean isAvailable(long now) {
+		long current = tat.get();
+		return current - now <= interval - emission;
+	}
+
+	/**
+	 * @param now The current time
+	 * @return The number of requests admitted within the last interval
+	 */
+	public int getCount(long now) {
+		long backlog = tat.get() - now;
+		if (backlog <= 0) {
+			return 0;
+		}
+		long t = emission;
+		return (int) Math.min(capacity, (backlog + t - 1) / t);
+	}
+}
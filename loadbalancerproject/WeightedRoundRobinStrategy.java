@@ -0,0 +1,57 @@
+package net.floodlightcontroller.loadbalancerproject;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Smooth weighted round-robin: every server is chosen proportionally to its
+ * capacity, and the choices of the same server are spread evenly over time
+ */
+public class WeightedRoundRobinStrategy implements ServerSelectionStrategy {
+	public static final String NAME = "weighted-round-robin";
+
+	// Physical IP address (as int) -> current weight
+	private final HashMap<Integer, long[]> current = new HashMap<>();
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public RouteInfo select(List<RouteInfo> routes, FlowKey flow, ServiceCounter counter) {
+		RouteInfo best = null;
+		synchronized (this) {
+			long total = 0;
+			long[] bestWeight = null;
+			for (RouteInfo r : routes) {
+				if (!counter.isAvailable(r.destination)) {
+					continue;
+				}
+				long[] w = current.get(r.destination.getInt());
+				if (w == null) {
+					w = new long[1];
+					current.put(r.destination.getInt(), w);
+				}
+				int weight = counter.getCapacity(r.destination);
+				w[0] += weight;
+				total += weight;
+				if (bestWeight == null || w[0] > bestWeight[0]) {
+					best = r;
+					bestWeight = w;
+				}
+			}
+			if (bestWeight != null) {
+				bestWeight[0] -= total;
+			}
+			if (current.size() > routes.size() * 2) {
+				// Forget the servers which left the group
+				current.clear();
+			}
+		}
+		if (best != null && counter.newService(best.destination)) {
+			return best;
+		}
+		return SelectionStrategies.firstAvailable(routes, counter, best);
+	}
+}